@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Lookup of access points in a database: the binary search of ApStore, the hash index of ApIndex and a
+ * HashMap keyed by the BSSID string, as a naive in-memory database would be.
+ * The memory used for each entry is printed when the database is built.
+ */
+@State(Scope.Benchmark)
+public class ApLookupBenchmark {
+    static final int LOOKUPS = 1024;
+
+    @Param({"10000", "1000000"})
+    int size;
+
+    @Param({"store", "index", "stringMap"})
+    String backend;
+
+    ApLookup aps;
+    HashMap<String, double[]> stringMap;
+    long[] macs = new long[LOOKUPS];
+    String[] bssids = new String[LOOKUPS];
+    File file;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(size);
+        long[] all = new long[size];
+        for (int i = 0; i < size; i++) all[i] = (random.nextLong() & 0xFFFFFFFFFFFFL) | 1;
+        // half of the lookups are for unknown access points, as in real scans
+        for (int i = 0; i < LOOKUPS; i++) {
+            macs[i] = i % 2 == 0 ? all[random.nextInt(size)] : (random.nextLong() & 0xFFFFFFFFFFFFL) | 1;
+            bssids[i] = Bssid.format(macs[i]);
+        }
+        long before = usedHeap();
+        if ("stringMap".equals(backend)) {
+            stringMap = new HashMap<String, double[]>();
+            for (long mac : all) stringMap.put(Bssid.format(mac), new double[]{45.0, 7.0, 50});
+            report((usedHeap() - before) / (double) size, "heap");
+            return;
+        }
+        file = File.createTempFile("aps", ".db");
+        file.delete();
+        ApStore store = ApStore.open(file);
+        for (long mac : all) store.put(mac, 45.0, 7.0, (short) 50);
+        store.flush();
+        if ("store".equals(backend)) {
+            aps = store;
+            report(file.length() / (double) size, "memory-mapped file");
+        } else {
+            ApIndex index = ApIndex.build(store);
+            aps = index;
+            report(index.getMemoryBytes() / (double) index.size(), "off-heap");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (file != null) file.delete();
+    }
+
+    private void report(double bytes, String where) {
+        System.out.printf("%n%s with %d entries: %.1f bytes per entry (%s)%n", backend, size, bytes, where);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void lookup(Blackhole bh) {
+        double[] out = new double[3];
+        if (stringMap != null) {
+            for (String bssid : bssids) bh.consume(stringMap.get(bssid));
+        } else {
+            for (long mac : macs) bh.consume(aps.lookup(mac, out));
+        }
+    }
+}
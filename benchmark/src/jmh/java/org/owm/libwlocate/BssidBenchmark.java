@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+
+/**
+ * BSSID normalization for every access point of a scan: the String rewriting formerly done in
+ * WifiReceiver.onReceive against Bssid.parse().
+ */
+@State(Scope.Benchmark)
+public class BssidBenchmark {
+    @Param({"10", "60", "500"})
+    int size;
+
+    ScanFixtures.Ap[] scan;
+
+    @Setup
+    public void setup() {
+        scan = ScanFixtures.scan(size);
+    }
+
+    @Benchmark
+    public void legacyNormalize(Blackhole bh) {
+        for (ScanFixtures.Ap ap : scan) {
+            String bssid = ap.BSSID.toUpperCase(Locale.US).replace(".", "");
+            bssid = bssid.toUpperCase(Locale.US).replace(":", "");
+            bh.consume(bssid.equalsIgnoreCase("000000000000"));
+            bh.consume(bssid);
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        for (ScanFixtures.Ap ap : scan) bh.consume(Bssid.parse(ap.BSSID));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Conversion of all the country codes (valid and not) to their name, as done by wloc_get_country_from_code(),
+ * of the names back to their code, and lookup of the country of random positions with a CountryLocator.
+ */
+@State(Scope.Benchmark)
+public class CountryCodeBenchmark {
+    static final short MAX_CODE = 200;
+    static final int POSITIONS = 1024;
+    /** The borders are a grid of GRID x GRID countries of VERTICES each */
+    static final int GRID = 12, VERTICES = 200;
+
+    private final String[] names = new String[MAX_CODE];
+    private final double[] lat = new double[POSITIONS], lon = new double[POSITIONS];
+    private CountryLocator locator;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (short code = 0; code < MAX_CODE; code++) names[code] = WlocCountry.fromCode(code);
+        StringBuilder borders = new StringBuilder();
+        for (int row = 0; row < GRID; row++) {
+            for (int col = 0; col < GRID; col++) {
+                String name = names[1 + (row * GRID + col) % 150];
+                borders.append(name.length() > 0 ? name : "DE");
+                // a ring of points around the center of the cell, 2 degrees wide
+                for (int v = 0; v < VERTICES; v++) {
+                    double angle = 2 * Math.PI * v / VERTICES;
+                    borders.append(' ').append(36 + 2 * row + 1 + Math.sin(angle))
+                            .append(' ').append(-5 + 2 * col + 1 + Math.cos(angle));
+                }
+                borders.append('\n');
+            }
+        }
+        locator = CountryLocator.read(new ByteArrayInputStream(borders.toString().getBytes("US-ASCII")));
+        Random random = new Random(42);
+        for (int i = 0; i < POSITIONS; i++) {
+            lat[i] = 36 + 2 * GRID * random.nextDouble();
+            lon[i] = -5 + 2 * GRID * random.nextDouble();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MAX_CODE)
+    public void fromCode(Blackhole bh) {
+        for (short code = 0; code < MAX_CODE; code++) bh.consume(WlocCountry.fromCode(code));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MAX_CODE)
+    public void toCode(Blackhole bh) {
+        for (short code = 0; code < MAX_CODE; code++) bh.consume(WlocCountry.toCode(names[code]));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void locate(Blackhole bh) {
+        for (int i = 0; i < POSITIONS; i++) bh.consume(locator.locate(lat[i], lon[i]));
+    }
+}
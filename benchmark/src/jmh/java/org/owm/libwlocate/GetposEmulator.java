@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for getpos.php that behaves like a real server, for the ReplayHarness: it reads the networks
+ * of the request (text or binary), answers with a position that depends only on them, after a latency with a
+ * log-normal distribution, and fails some of the requests.
+ * Everything is derived from the networks and the seed, so the same trace always gets the same responses
+ * and latencies. The number of threads limits how many requests are served at the same time, the others wait.
+ */
+final class GetposEmulator {
+    /** Spread of the latency, the standard deviation of its logarithm */
+    static final double LATENCY_SIGMA = 0.5;
+    /** Fraction of the scans the server has no position for */
+    static final double UNKNOWN_RATE = 0.02;
+    /** Positions are spread over an area of about 20 km around this point */
+    static final double LAT = 45.07, LON = 7.69, SPREAD_DEGREES = 0.1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long seed;
+    private final long medianLatencyNanos;
+    private final double errorRate;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger(), maxActive = new AtomicInteger();
+
+    /**
+     * @param threads number of requests served at the same time
+     * @param medianLatencyMillis median time spent on a request
+     * @param errorRate fraction of the requests answered with HTTP 500
+     * @param seed the same seed gives the same responses
+     */
+    GetposEmulator(int threads, double medianLatencyMillis, double errorRate, long seed) throws IOException {
+        this.seed = seed;
+        this.medianLatencyNanos = (long) (medianLatencyMillis * 1000000);
+        this.errorRate = errorRate;
+        // without this the JDK server waits for the delayed ACK of the headers before sending the body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getposURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php";
+    }
+
+    /** @return the number of requests received */
+    long getRequests() {
+        return requests.get();
+    }
+
+    /** @return the largest number of requests that have been served at the same time */
+    int getMaxActive() {
+        return maxActive.get();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int now = active.incrementAndGet();
+        int max;
+        while (now > (max = maxActive.get()) && !maxActive.compareAndSet(max, now)) {
+            // retry
+        }
+        try {
+            boolean binary = "application/octet-stream".equals(exchange.getRequestHeaders().getFirst("Content-Type"));
+            byte[] body = readAll(exchange.getRequestBody());
+            // the same networks in any order give the same key
+            long key = seed;
+            int networks = 0;
+            if (binary) {
+                for (int i = 0; i < wloc_req.WLOC_MAX_NETWORKS && 2 + 6 * i + 6 <= body.length; i++) {
+                    long mac = 0;
+                    for (int b = 0; b < 6; b++) mac = (mac << 8) | (body[2 + 6 * i + b] & 0xFF);
+                    if (mac == 0) continue;
+                    key += mix(mac);
+                    networks++;
+                }
+            } else {
+                int start = 0;
+                for (int i = 0; i <= body.length; i++) {
+                    if (i < body.length && body[i] != '\r' && body[i] != '\n') continue;
+                    if (i > start) {
+                        long mac = Bssid.parse(new String(body, start, i - start, "US-ASCII"));
+                        if (mac > 0) {
+                            key += mix(mac);
+                            networks++;
+                        }
+                    }
+                    start = i + 1;
+                }
+            }
+            Random random = new Random(mix(key));
+            long latency = (long) (medianLatencyNanos * Math.exp(LATENCY_SIGMA * random.nextGaussian()));
+            try {
+                Thread.sleep(latency / 1000000, (int) (latency % 1000000));
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (random.nextDouble() < errorRate) {
+                respond(exchange, 500, new byte[0]);
+                return;
+            }
+            boolean known = networks > 0 && random.nextDouble() >= UNKNOWN_RATE;
+            double lat = LAT + SPREAD_DEGREES * (random.nextDouble() - 0.5);
+            double lon = LON + SPREAD_DEGREES * (random.nextDouble() - 0.5);
+            int quality = 20 + random.nextInt(80);
+            byte[] response;
+            if (binary) {
+                response = StubServer.binaryResponse(lat, lon, quality);
+                if (!known) response[2] = 0;
+            } else response = known ? StubServer.textResponse(lat, lon, quality) : "result=0\r\n".getBytes("US-ASCII");
+            respond(exchange, 200, response);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] response) throws IOException {
+        exchange.sendResponseHeaders(status, response.length > 0 ? response.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreads the bits of similar values
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * A whole position request, from the request data to the parsed position, against a local stub of
+ * getpos.php over a keep-alive connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+public class LocatorClientBenchmark {
+    @Param({"false", "true"})
+    boolean binary;
+
+    StubServer server;
+    LocatorClient client;
+    wloc_req request;
+
+    @Setup
+    public void setup() throws IOException {
+        server = StubServer.start();
+        client = new LocatorClient(new URL(server.getposURL()), binary);
+        request = ScanFixtures.request(ScanFixtures.scan(60));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public WlocPosition request() {
+        WlocPosition position = new WlocPosition();
+        if (client.requestPosition(request, position) != ResultCode.OK) throw new IllegalStateException("Request failed");
+        return position;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace of scans end to end against a GetposEmulator, to load test the request path without a phone
+ * or the real server: throughput, behavior when the server is saturated and tail latency.
+ * The scans go through the same steps as in WLocate: each record is parsed into a ScanBuffer and the strongest
+ * networks are copied into a request, the requests are grouped in ScanBatch and each batch is resolved on a
+ * fixed pool by a new PositionResolver, as DatabaseRequester does. The latency of a scan is measured from the
+ * time it is due in the trace to the end of its batch, so it includes the time spent waiting for a thread.
+ * <pre>
+ * ReplayHarness [options] trace
+ *   trace               a scan log (see ScanLog) with the time of each scan, or -synthetic n for n scans of a
+ *                       device walking along a street, one every 5 s
+ *   -speed x            replay at x times the speed of the trace, 0 (the default) as fast as possible
+ *   -devices n          replay the trace on n devices at the same time, 1 by default. Each device sees
+ *                       networks of its own, so that the devices don't send the same requests
+ *   -threads n          threads resolving the batches, 4 by default
+ *   -batch n            scans in a batch, 1 by default
+ *   -binary             use the binary protocol
+ *   -servers n          number of emulated servers, the requests are hedged between them, 1 by default
+ *   -server-threads n   requests an emulated server handles at the same time, 16 by default
+ *   -latency ms         median latency of the emulated servers, 20 by default
+ *   -error-rate r       fraction of the requests failing with HTTP 500, 0 by default
+ *   -seed n             seed of the emulated servers and the synthetic trace, 1 by default
+ * </pre>
+ * The same options and trace give the same requests and responses, only the timings change from run to run.
+ */
+public final class ReplayHarness {
+    /** Time between two scans of the synthetic trace */
+    static final long SYNTHETIC_INTERVAL_MILLIS = 5000;
+    /** Batches waiting for a thread or being resolved, for each thread, before a device waits */
+    static final int PENDING_BATCHES_PER_THREAD = 2;
+
+    private double speed;
+    private int devices = 1, threads = 4, batchSize = 1, servers = 1, serverThreads = 16;
+    private boolean binary;
+    private double latencyMillis = 20, errorRate;
+    private long seed = 1;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private ExecutorService pool;
+    private Semaphore pending;
+    private LocatorPool locatorPool;
+
+    public static void main(String[] args) throws Exception {
+        ReplayHarness harness = new ReplayHarness();
+        List<String> trace = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-speed".equals(arg)) harness.speed = Double.parseDouble(args[++i]);
+            else if ("-devices".equals(arg)) harness.devices = Integer.parseInt(args[++i]);
+            else if ("-threads".equals(arg)) harness.threads = Integer.parseInt(args[++i]);
+            else if ("-batch".equals(arg)) harness.batchSize = Integer.parseInt(args[++i]);
+            else if ("-binary".equals(arg)) harness.binary = true;
+            else if ("-servers".equals(arg)) harness.servers = Integer.parseInt(args[++i]);
+            else if ("-server-threads".equals(arg)) harness.serverThreads = Integer.parseInt(args[++i]);
+            else if ("-latency".equals(arg)) harness.latencyMillis = Double.parseDouble(args[++i]);
+            else if ("-error-rate".equals(arg)) harness.errorRate = Double.parseDouble(args[++i]);
+            else if ("-seed".equals(arg)) harness.seed = Long.parseLong(args[++i]);
+            else if ("-synthetic".equals(arg)) trace = synthetic(Integer.parseInt(args[++i]), harness.seed);
+            else if (i == args.length - 1 && trace == null) trace = read(arg);
+            else usage();
+        }
+        if (trace == null || harness.devices < 1 || harness.threads < 1 || harness.batchSize < 1
+                || harness.servers < 1 || harness.serverThreads < 1) usage();
+        harness.run(trace);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ReplayHarness [-speed x] [-devices n] [-threads n] [-batch n] [-binary] [-servers n]"
+                + " [-server-threads n] [-latency ms] [-error-rate r] [-seed n] trace|-synthetic n");
+        System.exit(2);
+    }
+
+    static List<String> read(String file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (line.trim().length() > 0) lines.add(line);
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A device walking at 1.4 m/s along a street with an access point every 10 m, on both sides.
+     * The level of each access point depends on its distance, with some noise
+     * @param scans number of scans
+     * @param seed seed of the noise
+     * @return the trace, as scan log records
+     */
+    static List<String> synthetic(int scans, long seed) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<String>(scans);
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < scans; s++) {
+            long time = s * SYNTHETIC_INTERVAL_MILLIS;
+            double position = 1.4 * time / 1000;
+            sb.setLength(0);
+            sb.append("{\"id\":").append(s).append(",\"time\":").append(time).append(",\"networks\":[");
+            int first = Math.max(0, (int) ((position - 150) / 10)), last = (int) ((position + 150) / 10);
+            boolean comma = false;
+            for (int ap = first; ap <= last; ap++) {
+                for (int side = 0; side < 2; side++) {
+                    double d = Math.max(1, Math.hypot(ap * 10 - position, 15));
+                    int level = (int) Math.round(-40 - 30 * Math.log10(d) + 4 * random.nextGaussian());
+                    if (level < -95) continue;
+                    if (comma) sb.append(',');
+                    comma = true;
+                    // 16 MACs per access point, so that they aren't taken for virtual BSSIDs of the same one
+                    sb.append("{\"bssid\":\"").append(Bssid.format(0x00AA00000000L + ((2L * ap + side) << 4)))
+                            .append("\",\"level\":").append(level).append('}');
+                }
+            }
+            lines.add(sb.append("]}").toString());
+        }
+        return lines;
+    }
+
+    private void run(List<String> trace) throws Exception {
+        GetposEmulator[] emulators = new GetposEmulator[servers];
+        URL[] urls = new URL[servers];
+        for (int i = 0; i < servers; i++) {
+            emulators[i] = new GetposEmulator(serverThreads, latencyMillis, errorRate, seed + i);
+            urls[i] = new URL(emulators[i].getposURL());
+        }
+        locatorPool = new LocatorPool(urls);
+        pool = Executors.newFixedThreadPool(threads);
+        pending = new Semaphore(threads * PENDING_BATCHES_PER_THREAD);
+        WlocMetrics.get().reset();
+        long start = System.nanoTime();
+        Thread[] deviceThreads = new Thread[devices];
+        for (int d = 0; d < devices; d++) {
+            // the devices are spread over the interval between two scans
+            final long offsetNanos = speed > 0 ? (long) (SYNTHETIC_INTERVAL_MILLIS * 1000000L / speed * d / devices) : 0;
+            final List<String> lines = trace;
+            final long deviceStart = start;
+            final int device = d;
+            deviceThreads[d] = new Thread("replay-device-" + (d + 1)) {
+                @Override
+                public void run() {
+                    replay(lines, device, deviceStart + offsetNanos);
+                }
+            };
+            deviceThreads[d].start();
+        }
+        for (Thread thread : deviceThreads) thread.join();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        for (GetposEmulator emulator : emulators) emulator.stop();
+        report(elapsed, emulators);
+    }
+
+    /**
+     * Send the scans of a device, as the WifiReceiver and WLocate do
+     * @param device index of the device, added to the MACs of the networks
+     * @param start when the first scan is due, System.nanoTime()
+     */
+    private void replay(List<String> lines, int device, long start) {
+        ScanLog scanLog = new ScanLog();
+        List<wloc_req> requests = new ArrayList<wloc_req>(batchSize);
+        long[] due = new long[batchSize];
+        long firstTime = -1;
+        for (String line : lines) {
+            wloc_req request = new wloc_req();
+            if (!scanLog.parse(line, request)) continue;
+            for (int i = 0; device > 0 && i < wloc_req.WLOC_MAX_NETWORKS; i++) {
+                if (request.macs[i] == 0) continue;
+                request.macs[i] ^= (long) device << 24;
+                request.bssids[i] = Bssid.format(request.macs[i]);
+            }
+            long time = scanLog.getTime();
+            long dueNanos = System.nanoTime();
+            if (speed > 0 && time >= 0) {
+                if (firstTime < 0) firstTime = time;
+                dueNanos = start + (long) ((time - firstTime) * 1000000L / speed);
+                long wait;
+                while ((wait = dueNanos - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            }
+            due[requests.size()] = dueNanos;
+            requests.add(request);
+            if (requests.size() == batchSize) {
+                submit(requests, due);
+                requests.clear();
+                due = new long[batchSize];
+            }
+        }
+        if (!requests.isEmpty()) submit(requests, due);
+    }
+
+    private void submit(List<wloc_req> requests, final long[] due) {
+        final ScanBatch batch = new ScanBatch(requests.toArray(new wloc_req[requests.size()]));
+        pending.acquireUninterruptibly();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // what DatabaseRequester does
+                    PositionResolver resolver = new PositionResolver(locatorPool, binary);
+                    resolver.resolve(batch);
+                    long now = System.nanoTime();
+                    for (int i = 0; i < batch.size(); i++) {
+                        latency.record(now - due[i]);
+                        WlocMetrics.get().recordResult(batch.results[i]);
+                    }
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    private void report(long elapsedNanos, GetposEmulator[] emulators) {
+        WlocMetrics metrics = WlocMetrics.get();
+        long scans = latency.getCount();
+        System.out.println(String.format(Locale.US, "%d scans in %.0f ms, %.0f scans/s: %d devices, %d threads, batches of %d",
+                scans, elapsedNanos / 1e6, scans * 1e9 / elapsedNanos, devices, threads, batchSize));
+        String[] names = {"OK", "CONNECTION_ERROR", "SERVER_ERROR", "PARSING_RESPONSE_ERROR", "IO_ERROR", "NO_LOCAL_POSITION"};
+        StringBuilder results = new StringBuilder("results:");
+        for (int code = 0; code < names.length; code++) {
+            long count = metrics.getResultCount(code);
+            if (count > 0) results.append(' ').append(names[code]).append('=').append(count);
+        }
+        System.out.println(results);
+        System.out.println(String.format(Locale.US, "%-12s %8s %9s %9s %9s %9s %9s %9s",
+                "ms", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        printLatency("scan", latency);
+        printLatency("connect", metrics.getHistogram(WlocMetrics.STAGE_CONNECT));
+        printLatency("first byte", metrics.getHistogram(WlocMetrics.STAGE_FIRST_BYTE));
+        printLatency("parse", metrics.getHistogram(WlocMetrics.STAGE_PARSE));
+        for (int i = 0; i < emulators.length; i++) {
+            LocatorEndpoint endpoint = locatorPool.getEndpoints()[i];
+            System.out.println(String.format(Locale.US, "server %d: %d requests, at most %d at the same time, timeout %d ms",
+                    i + 1, emulators[i].getRequests(), emulators[i].getMaxActive(), endpoint.getTimeoutMillis()));
+        }
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.println(String.format(Locale.US, "%-12s %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f", name,
+                histogram.getCount(), histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+                histogram.getPercentile(90) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+    }
+}
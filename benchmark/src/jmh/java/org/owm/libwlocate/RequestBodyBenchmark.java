@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Construction of the body of a position request, text and binary.
+ */
+@State(Scope.Benchmark)
+public class RequestBodyBenchmark {
+    wloc_req request;
+    ByteBuffer binary = ByteBuffer.allocate(WlocCodec.REQUEST_LENGTH);
+
+    @Setup
+    public void setup() {
+        request = ScanFixtures.request(ScanFixtures.scan(60));
+    }
+
+    @Benchmark
+    public byte[] text() throws UnsupportedEncodingException {
+        return LocatorClient.postData(request).getBytes("US-ASCII");
+    }
+
+    @Benchmark
+    public ByteBuffer binary() {
+        binary.clear();
+        WlocCodec.encodeRequest(request, binary);
+        return binary;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+
+/**
+ * Parsing of the server response: the BufferedReader loop formerly in DatabaseRequester.run against
+ * ResponseParser and the binary WlocCodec.
+ */
+@State(Scope.Benchmark)
+public class ResponseParserBenchmark {
+    byte[] text;
+    ByteBuffer binary;
+
+    @Setup
+    public void setup() throws IOException {
+        text = StubServer.textResponse(45.0612345, 7.6612345, 77);
+        binary = ByteBuffer.wrap(StubServer.binaryResponse(45.0612345, 7.6612345, 77));
+    }
+
+    @Benchmark
+    public WlocPosition legacyReader() throws IOException {
+        WlocPosition position = new WlocPosition();
+        BufferedReader buffReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text)));
+        String line;
+        while ((line = buffReader.readLine()) != null) {
+            line = line.trim();
+            if (line.contains("result=0")) return null;
+            else if (line.contains("quality=")) {
+                line = line.substring(8);
+                position.setQuality((short) Integer.parseInt(line));
+            } else if (line.contains("lat=")) {
+                line = line.substring(4);
+                position.lat = Double.parseDouble(line);
+            } else if (line.contains("lon=")) {
+                line = line.substring(4);
+                position.lon = Double.parseDouble(line);
+            }
+        }
+        buffReader.close();
+        return position;
+    }
+
+    @Benchmark
+    public WlocPosition parser() {
+        WlocPosition position = new WlocPosition();
+        ResponseParser.parse(text, text.length, position);
+        return position;
+    }
+
+    @Benchmark
+    public WlocPosition binary() {
+        WlocPosition position = new WlocPosition();
+        binary.position(0);
+        WlocCodec.decodeResponse(binary, position);
+        return position;
+    }
+}
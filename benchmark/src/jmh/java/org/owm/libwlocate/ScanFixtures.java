@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.util.Random;
+
+/**
+ * Synthetic scans used by the benchmarks, always generated with the same seed.
+ */
+final class ScanFixtures {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Stand-in for android.net.wifi.ScanResult, with the fields used by WifiReceiver
+     */
+    static final class Ap {
+        String BSSID;
+        int level;
+
+        Ap(String bssid, int level) {
+            BSSID = bssid;
+            this.level = level;
+        }
+    }
+
+    private ScanFixtures() {
+    }
+
+    /**
+     * @param size number of access points
+     * @return a scan in the order the system returns it, mostly lower case BSSIDs with ':' and a few with '.'
+     */
+    static Ap[] scan(int size) {
+        Random random = new Random(size);
+        Ap[] aps = new Ap[size];
+        for (int i = 0; i < size; i++) {
+            char separator = random.nextInt(10) == 0 ? '.' : ':';
+            StringBuilder sb = new StringBuilder(17);
+            for (int b = 0; b < 6; b++) {
+                if (b > 0) sb.append(separator);
+                int v = random.nextInt(256);
+                sb.append(HEX[v >> 4]).append(HEX[v & 0xF]);
+            }
+            aps[i] = new Ap(sb.toString(), -30 - random.nextInt(66));
+        }
+        return aps;
+    }
+
+    /**
+     * @return a request filled the way WifiReceiver does, with the strongest networks of the scan
+     */
+    static wloc_req request(Ap[] scan) {
+        ScanBuffer buffer = new ScanBuffer();
+        for (Ap ap : scan) buffer.add(ap.BSSID, ap.level);
+        buffer.selectStrongestDevices(wloc_req.WLOC_MAX_NETWORKS);
+        wloc_req request = new wloc_req();
+        buffer.fill(request);
+        return request;
+    }
+}
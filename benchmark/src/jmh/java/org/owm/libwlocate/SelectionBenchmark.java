@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Choice of the strongest networks of a scan: the full sort formerly done in WifiReceiver.onReceive
+ * against the partial selection of ScanBuffer, with and without the grouping of the BSSIDs by access point.
+ */
+@State(Scope.Benchmark)
+public class SelectionBenchmark {
+    @Param({"10", "60", "500"})
+    int size;
+
+    ScanFixtures.Ap[] scan;
+    List<ScanFixtures.Ap> list;
+    ScanBuffer buffer = new ScanBuffer();
+
+    @Setup
+    public void setup() {
+        scan = ScanFixtures.scan(size);
+        list = new ArrayList<ScanFixtures.Ap>(size);
+    }
+
+    @Benchmark
+    public void legacySort(Blackhole bh) {
+        // the list given by the system is sorted in place, refill it as every scan is a new one
+        list.clear();
+        Collections.addAll(list, scan);
+        Comparator<ScanFixtures.Ap> strongerSignalComp = new Comparator<ScanFixtures.Ap>() {
+            @Override
+            public int compare(ScanFixtures.Ap lhs, ScanFixtures.Ap rhs) {
+                if (lhs.level < rhs.level) return 1;
+                else if (lhs.level == rhs.level) return 0;
+                else return -1;
+            }
+        };
+        Collections.sort(list, strongerSignalComp);
+        for (int i = 0; i < wloc_req.WLOC_MAX_NETWORKS && i < list.size(); i++) bh.consume(list.get(i));
+    }
+
+    @Benchmark
+    public void scanBuffer(Blackhole bh) {
+        buffer.clear();
+        for (ScanFixtures.Ap ap : scan) buffer.add(ap.BSSID, ap.level);
+        int n = buffer.selectStrongest(wloc_req.WLOC_MAX_NETWORKS);
+        for (int i = 0; i < n; i++) bh.consume(buffer.selectedMac(i));
+    }
+
+    @Benchmark
+    public void scanBufferDevices(Blackhole bh) {
+        buffer.clear();
+        for (ScanFixtures.Ap ap : scan) buffer.add(ap.BSSID, ap.level);
+        int n = buffer.selectStrongestDevices(wloc_req.WLOC_MAX_NETWORKS);
+        for (int i = 0; i < n; i++) bh.consume(buffer.selectedMac(i));
+    }
+
+    @Benchmark
+    public wloc_req ingestToRequest() {
+        buffer.clear();
+        for (ScanFixtures.Ap ap : scan) buffer.add(ap.BSSID, ap.level);
+        buffer.selectStrongestDevices(wloc_req.WLOC_MAX_NETWORKS);
+        wloc_req request = new wloc_req();
+        buffer.fill(request);
+        return request;
+    }
+}
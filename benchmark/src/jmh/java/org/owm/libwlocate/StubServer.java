@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for getpos.php, always answering with the same position in the text or binary format
+ * depending on the content type of the request.
+ */
+final class StubServer {
+    static final double LAT = 45.0612345, LON = 7.6612345;
+    static final int QUALITY = 77;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private StubServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    static StubServer start() throws IOException {
+        // without this the JDK server waits for the delayed ACK of the headers before sending the body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final byte[] text = textResponse(LAT, LON, QUALITY);
+        final byte[] binary = binaryResponse(LAT, LON, QUALITY);
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[512];
+                while (in.read(buffer) != -1) {
+                    // the request is not looked at
+                }
+                in.close();
+                byte[] response = "application/octet-stream".equals(exchange.getRequestHeaders().getFirst("Content-Type"))
+                        ? binary : text;
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+        return new StubServer(server, executor);
+    }
+
+    String getposURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static byte[] textResponse(double lat, double lon, int quality) throws IOException {
+        return ("result=1\r\nquality=" + quality + "\r\nlat=" + lat + "\r\nlon=" + lon + "\r\n").getBytes("US-ASCII");
+    }
+
+    static byte[] binaryResponse(double lat, double lon, int quality) {
+        ByteBuffer out = ByteBuffer.allocate(WlocCodec.RESPONSE_LENGTH);
+        out.put((byte) 1).put((byte) WlocCodec.RESPONSE_LENGTH).put((byte) WlocCodec.RESULT_OK).put((byte) 0)
+                .put((byte) quality).put(new byte[3])
+                .putInt((int) Math.round(lat * 1e7)).putInt((int) Math.round(lon * 1e7))
+                .putShort((short) 0).put(new byte[6]);
+        return out.array();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hash index of access points for large databases, e.g. tens of millions of entries on a server.
+ * It is an open-addressing table with linear probing, keyed by the 48 bit MAC, stored in a direct buffer or
+ * in a memory-mapped file. There is no object for each entry: a slot takes 20 bytes (MAC, latitude and
+ * longitude in 1e-7 degrees, quality) and the number of slots is a power of two with a load factor of at most
+ * 0.75, so an entry takes between 27 and 54 bytes. A lookup is usually a single probe, instead of the binary
+ * search of ApStore.
+ * Lookups can be done from many threads at once, but the index must be filled before it is shared.
+ */
+public class ApIndex implements ApLookup {
+    static final int MAGIC = 0x574C4149; // "WLAI"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 20;
+    /** Largest number of slots that fits in a single buffer */
+    static final int MAX_SLOTS = 1 << 26;
+    static final float MAX_LOAD = 0.75f;
+
+    private static final double SCALE = 1e7;
+
+    private final ByteBuffer slots;
+    private final int capacity;
+    private final int shift;
+    private int size;
+
+    /**
+     * Create an empty index in a direct buffer, outside of the Java heap
+     * @param expectedEntries number of access points that will be put
+     */
+    public ApIndex(int expectedEntries) {
+        this(ByteBuffer.allocateDirect(slotsFor(expectedEntries) * SLOT_SIZE), slotsFor(expectedEntries), 0);
+    }
+
+    private ApIndex(ByteBuffer slots, int capacity, int size) {
+        this.slots = slots;
+        this.capacity = capacity;
+        this.size = size;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private static int slotsFor(int entries) {
+        if (entries < 0) throw new IllegalArgumentException("expectedEntries can't be negative");
+        int slots = 16;
+        while (slots < MAX_SLOTS && slots * MAX_LOAD < entries) slots <<= 1;
+        if (slots * MAX_LOAD < entries) throw new IllegalArgumentException("Too many entries for an ApIndex");
+        return slots;
+    }
+
+    /**
+     * Build an index with all the access points of a database, except the pending ones
+     * @param store the database
+     * @return the new index
+     */
+    public static ApIndex build(ApStore store) {
+        ApIndex index = new ApIndex(store.size());
+        store.copyTo(index);
+        return index;
+    }
+
+    /**
+     * Map an index written by write(), read-only
+     * @param file the index file
+     * @return the index
+     * @throws IOException if the file can't be read or isn't a valid index
+     */
+    public static ApIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) throw new IOException("Truncated AP index " + file);
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getShort(4) != VERSION || header.getShort(6) != SLOT_SIZE)
+                throw new IOException("Not an AP index " + file);
+            int capacity = header.getInt(8), size = header.getInt(12);
+            if (capacity < 16 || capacity > MAX_SLOTS || Integer.bitCount(capacity) != 1 || size > capacity
+                    || channel.size() < HEADER_SIZE + (long) capacity * SLOT_SIZE)
+                throw new IOException("Corrupted AP index " + file);
+            ByteBuffer slots = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) capacity * SLOT_SIZE);
+            return new ApIndex(slots, capacity, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the index to a file, that can be mapped with open()
+     * @param file the destination
+     * @throws IOException if writing fails
+     */
+    public synchronized void write(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) SLOT_SIZE).putInt(capacity).putInt(size);
+        header.flip();
+        ByteBuffer body = slots.duplicate();
+        body.clear();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) channel.write(header);
+            while (body.hasRemaining()) channel.write(body);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add an access point or replace its position
+     * @param mac the MAC of the access point, must be positive
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param quality quality of the position
+     * @throws IllegalStateException if the index already holds the number of entries it was created for
+     */
+    public void put(long mac, double lat, double lon, short quality) {
+        putRaw(mac, (int) Math.round(lat * SCALE), (int) Math.round(lon * SCALE), quality);
+    }
+
+    synchronized void putRaw(long mac, int lat, int lon, short quality) {
+        if (mac <= 0) throw new IllegalArgumentException("Invalid MAC");
+        int offset = find(mac);
+        if (slots.getLong(offset) == 0) {
+            if (size >= capacity * MAX_LOAD) throw new IllegalStateException("ApIndex is full");
+            size++;
+        }
+        // the MAC is written last, so that a lookup never sees a slot without its position
+        slots.putInt(offset + 8, lat);
+        slots.putInt(offset + 12, lon);
+        slots.putShort(offset + 16, quality);
+        slots.putLong(offset, mac);
+    }
+
+    @Override
+    public boolean lookup(long mac, double[] out) {
+        if (mac <= 0) return false;
+        int offset = find(mac);
+        if (slots.getLong(offset) != mac) return false;
+        out[0] = slots.getInt(offset + 8) / SCALE;
+        out[1] = slots.getInt(offset + 12) / SCALE;
+        out[2] = slots.getShort(offset + 16);
+        return true;
+    }
+
+    public boolean contains(long mac) {
+        return mac > 0 && slots.getLong(find(mac)) == mac;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the bytes used by the slots, outside of the Java heap
+     */
+    public long getMemoryBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * @return the offset of the slot of the MAC, or of the empty slot where it would be put
+     */
+    private int find(long mac) {
+        // Fibonacci hashing spreads the MACs of the same vendor, that differ only in the lower bits
+        int slot = (int) ((mac * 0x9E3779B97F4A7C15L) >>> shift);
+        int mask = capacity - 1;
+        while (true) {
+            int offset = slot * SLOT_SIZE;
+            long current = slots.getLong(offset);
+            if (current == mac || current == 0) return offset;
+            slot = (slot + 1) & mask;
+        }
+    }
+}
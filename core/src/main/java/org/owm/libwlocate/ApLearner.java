@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Learns the positions of the access points from the scans made while a GPS fix is available, so that the
+ * following scans in the same places can be resolved by the ApStore without asking the server.
+ * Each access point seen in a scan is observed at the position of the fix, with an uncertainty that grows
+ * with the radius of the fix and with the distance of the access point (see PathLoss). Its position in the
+ * store is the running mean of its observations, weighted by the inverse of their variance. The total weight
+ * is kept in the record and stops growing at MAX_WEIGHT, so that an access point that has moved is followed.
+ * The observations are aggregated in background, in batches, and written when enough access points have
+ * been observed: each write rewrites the whole store, so it's done after a number of new access points
+ * proportional to its size, or by flush().
+ */
+public class ApLearner {
+    /** Fixes less accurate than this, in meters, are not used */
+    public static final float MAX_RADIUS = 50;
+    public static final int DEFAULT_BATCH_SIZE = 32;
+    public static final long DEFAULT_LINGER_MILLIS = 30 * 1000;
+    /** Maximum number of scans waiting to be written, the following ones are dropped */
+    static final int MAX_PENDING = 1024;
+    /** Variance in square meters of an observation with weight 1 */
+    static final double WEIGHT_SCALE = 1000;
+    static final int MAX_WEIGHT = 10000;
+    /** Weight of the positions given by the server, when they are first updated with observations */
+    static final int SERVER_WEIGHT = 10;
+    /** Minimum number of observed access points written to the store at once */
+    static final int MIN_WRITE = 256;
+    /** The access points are written when they are at least 1 / WRITE_RATIO of the store */
+    static final int WRITE_RATIO = 8;
+
+    private final ApStore store;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final ScheduledThreadPoolExecutor executor;
+    private ArrayList<Observation> pending = new ArrayList<Observation>();
+    private final AtomicLong learnt = new AtomicLong(), dropped = new AtomicLong();
+    private final double[] ap = new double[3];
+    // weight, weighted latitude and longitude of the observations of each access point not written yet,
+    // only used by the background thread
+    private final HashMap<Long, double[]> sums = new HashMap<Long, double[]>();
+    private int unwritten;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain(false);
+        }
+    };
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            drain(true);
+        }
+    };
+
+    public ApLearner(ApStore store) {
+        this(store, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * @param store the local database the positions are written to
+     * @param batchSize number of scans written at once
+     * @param lingerMillis how long a scan can wait for the others of its batch
+     */
+    public ApLearner(ApStore store, int batchSize, long lingerMillis) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+        this.store = store;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "wlocate-learner");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Learn the access points of a request from the position where it has been scanned. Returns immediately
+     * @param request the scan
+     * @param lat latitude of the GPS fix
+     * @param lon longitude of the GPS fix
+     * @param radius accuracy of the fix in meters, including how far the device has moved since
+     * @return false if the fix isn't accurate enough or too many scans are waiting
+     */
+    public boolean learn(wloc_req request, double lat, double lon, float radius) {
+        Observation o = new Observation(lat, lon, radius, request.bssids.length);
+        for (int i = 0; i < request.bssids.length; i++) {
+            long mac = request.macAt(i);
+            if (mac > 0) o.add(mac, PathLoss.distance(request.signal[i]));
+        }
+        return add(o);
+    }
+
+    /**
+     * Learn all the access points of a scan, not only the ones chosen for the request
+     */
+    boolean learn(ScanBuffer scan, double lat, double lon, float radius) {
+        Observation o = new Observation(lat, lon, radius, scan.size());
+        for (int i = 0; i < scan.size(); i++)
+            o.add(scan.mac(i), PathLoss.distance((byte) Math.min(127, Math.abs(scan.level(i)))));
+        return add(o);
+    }
+
+    private boolean add(Observation o) {
+        if (o.count == 0 || !(o.radius >= 0 && o.radius <= MAX_RADIUS)) return false;
+        synchronized (this) {
+            if (pending.size() >= MAX_PENDING) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            pending.add(o);
+            if (pending.size() == batchSize) executor.execute(drainTask);
+            else if (pending.size() == 1) executor.schedule(drainTask, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Write the waiting scans without waiting for their batch to be full, nor for enough access points
+     * @return done when they have been written
+     */
+    public Future<?> flush() {
+        return executor.submit(writeTask);
+    }
+
+    /**
+     * Write the waiting scans, then stop the background thread
+     */
+    public void shutdown() {
+        executor.execute(writeTask);
+        executor.shutdown();
+    }
+
+    /**
+     * @param write true to write the observations to the store even if there are few of them
+     */
+    private void drain(boolean write) {
+        ArrayList<Observation> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<Observation>();
+        }
+        for (Observation o : batch) {
+            for (int i = 0; i < o.count; i++) {
+                double w = WEIGHT_SCALE / (o.radius * o.radius + o.distances[i] * o.distances[i]);
+                double[] sum = sums.get(o.macs[i]);
+                if (sum == null) sums.put(o.macs[i], sum = new double[3]);
+                sum[0] += w;
+                sum[1] += w * o.lat;
+                sum[2] += w * o.lon;
+            }
+        }
+        unwritten += batch.size();
+        if (sums.isEmpty() || (!write && sums.size() < Math.max(MIN_WRITE, store.size() / WRITE_RATIO))) return;
+        try {
+            synchronized (store) {
+                for (Map.Entry<Long, double[]> e : sums.entrySet()) {
+                    long mac = e.getKey();
+                    double[] sum = e.getValue();
+                    double w0 = 0, lat0 = 0, lon0 = 0;
+                    if (store.lookup(mac, ap)) {
+                        int weight = store.weight(mac);
+                        w0 = weight > 0 ? weight : SERVER_WEIGHT;
+                        lat0 = ap[0];
+                        lon0 = ap[1];
+                    }
+                    double w = w0 + sum[0];
+                    short weight = (short) Math.max(1, Math.min(MAX_WEIGHT, Math.round(w)));
+                    // the uncertainty of the mean, turned into a quality as given by the server (radius = 120 - quality)
+                    double sigma = Math.sqrt(WEIGHT_SCALE / weight);
+                    short quality = (short) Math.max(0, Math.min(100, Math.round(120 - sigma)));
+                    store.put(mac, (w0 * lat0 + sum[1]) / w, (w0 * lon0 + sum[2]) / w, quality, weight);
+                }
+                store.flush();
+            }
+            learnt.addAndGet(unwritten);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            sums.clear();
+            unwritten = 0;
+        }
+    }
+
+    /**
+     * @return the number of scans written to the store
+     */
+    public long getLearnt() {
+        return learnt.get();
+    }
+
+    /**
+     * @return the number of scans dropped because too many were waiting
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The access points of a scan and the GPS fix taken at the same time
+     */
+    private static class Observation {
+        final double lat, lon;
+        final float radius;
+        final long[] macs;
+        final double[] distances;
+        int count;
+
+        Observation(double lat, double lon, float radius, int capacity) {
+            this.lat = lat;
+            this.lon = lon;
+            this.radius = radius;
+            macs = new long[capacity];
+            distances = new double[capacity];
+        }
+
+        void add(long mac, double distance) {
+            macs[count] = mac;
+            distances[count++] = distance;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Evaluates positions from the access points of a database
+ */
+final class ApLocator {
+    private ApLocator() {
+    }
+
+    /**
+     * Evaluate the position from the access points in the request that are known to the database
+     * @param aps the database
+     * @param request the request data
+     * @param solver evaluates the position from the known access points and their signal strength
+     * @return the position, or null if none of the access points is known
+     */
+    static WlocPosition locate(ApLookup aps, wloc_req request, PositionSolver solver) {
+        return locate(aps, request, solver, 1);
+    }
+
+    /**
+     * Evaluate the position from the access points in the request that are known to the database
+     * @param aps the database
+     * @param request the request data
+     * @param solver evaluates the position from the known access points and their signal strength
+     * @param minKnown minimum number of access points that must be known
+     * @return the position, or null if less than minKnown access points are known
+     */
+    static WlocPosition locate(ApLookup aps, wloc_req request, PositionSolver solver, int minKnown) {
+        int n = request.bssids.length;
+        double[] lat = new double[n], lon = new double[n], ap = new double[3];
+        byte[] signal = new byte[n];
+        double quality = 0;
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            long mac = request.macAt(i);
+            if (mac <= 0 || !aps.lookup(mac, ap)) continue;
+            lat[found] = ap[0];
+            lon[found] = ap[1];
+            signal[found] = request.signal[i];
+            quality += ap[2];
+            found++;
+        }
+        if (found == 0 || found < minKnown || !solver.solve(lat, lon, signal, found, ap)) return null;
+        WlocPosition position = new WlocPosition(ap[PositionSolver.LAT], ap[PositionSolver.LON]);
+        position.setQuality((short) (quality / found));
+        position.radius = (float) ap[PositionSolver.RADIUS];
+        return position;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Database of the positions of the access points, used to evaluate positions locally
+ */
+public interface ApLookup {
+    /**
+     * Look for the position of an access point
+     * @param mac the MAC of the access point
+     * @param out array of at least 3 elements, filled with latitude, longitude and quality
+     * @return true if the access point is known
+     */
+    boolean lookup(long mac, double[] out);
+
+    /**
+     * @return the number of access points
+     */
+    int size();
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses the access points of a scan that are sent in a request, and how many.
+ * The policies are:
+ * <ul>
+ * <li>STRONGEST: the strongest access points, as always done before</li>
+ * <li>KNOWN_FIRST: the access points of the local database first, then the ones the server hasn't recently
+ * failed to locate, the strongest first in each group</li>
+ * <li>DIVERSE: like KNOWN_FIRST, but the known access points closer than DIVERSE_METERS to one already chosen
+ * are only sent when there is room left, so that the request covers more places</li>
+ * </ul>
+ * When the server has no position for a request, its access points are remembered for a while as misses and the
+ * policies other than STRONGEST send them last.
+ * Thread safe, it can be shared by the scan receiver and the resolvers.
+ */
+public class ApSelector {
+    public static final int STRONGEST = 0, KNOWN_FIRST = 1, DIVERSE = 2;
+    /** How long an access point stays a miss */
+    public static final long DEFAULT_MISS_TTL_MILLIS = 30 * 60 * 1000;
+    /** Maximum number of misses remembered, the oldest ones are forgotten first */
+    static final int MAX_MISSES = 1024;
+    /** Known access points closer than this to a chosen one are sent last by the DIVERSE policy */
+    static final double DIVERSE_METERS = 30;
+
+    private static final int RANK_MISSED = -1, RANK_KNOWN = 1;
+
+    private final int policy;
+    private final int capacity;
+    private final long missTtlMillis;
+    // MAC -> time of the miss, oldest first
+    private final LinkedHashMap<Long, Long> misses = new LinkedHashMap<Long, Long>();
+    private final double[] ap = new double[3];
+    private int[] chosen = new int[0], deferred = new int[0];
+    private double[] lats = new double[0], lons = new double[0];
+
+    /**
+     * @param policy STRONGEST, KNOWN_FIRST or DIVERSE
+     * @param capacity maximum number of access points of a request. Only the first wloc_req.WLOC_MAX_NETWORKS
+     *                 are sent with the binary protocol
+     */
+    public ApSelector(int policy, int capacity) {
+        this(policy, capacity, DEFAULT_MISS_TTL_MILLIS);
+    }
+
+    /**
+     * @param policy STRONGEST, KNOWN_FIRST or DIVERSE
+     * @param capacity maximum number of access points of a request
+     * @param missTtlMillis how long an access point the server couldn't locate is sent last
+     */
+    public ApSelector(int policy, int capacity, long missTtlMillis) throws IllegalArgumentException {
+        if (policy < STRONGEST || policy > DIVERSE) throw new IllegalArgumentException("Unknown policy " + policy);
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.policy = policy;
+        this.capacity = capacity;
+        this.missTtlMillis = missTtlMillis;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Choose the access points of a scan and copy them into a new request, in the order of the policy
+     * @param scan the access points of the scan
+     * @param perDevice true to choose a single BSSID for each physical access point, see Bssid.sameDevice()
+     * @param local the local database, null if there is none
+     * @param now current time in milliseconds, on the clock given to missed()
+     * @return the request
+     */
+    synchronized wloc_req select(ScanBuffer scan, boolean perDevice, ApLookup local, long now) {
+        wloc_req request = new wloc_req(capacity);
+        if (policy == STRONGEST) {
+            if (perDevice) scan.selectStrongestDevices(capacity);
+            else scan.selectStrongest(capacity);
+            scan.fill(request);
+            return request;
+        }
+        expireMisses(now);
+        for (int i = 0; i < scan.size(); i++) {
+            long mac = scan.mac(i);
+            if (local != null && local.lookup(mac, ap)) scan.setRank(i, RANK_KNOWN);
+            else if (misses.containsKey(mac)) scan.setRank(i, RANK_MISSED);
+            else scan.setRank(i, 0);
+        }
+        if (policy == KNOWN_FIRST) {
+            if (perDevice) scan.selectStrongestDevices(capacity);
+            else scan.selectStrongest(capacity);
+            scan.fill(request);
+            return request;
+        }
+        // DIVERSE: from twice as many candidates, the known access points too close to the chosen ones come last
+        int candidates = perDevice ? scan.selectStrongestDevices(2 * capacity) : scan.selectStrongest(2 * capacity);
+        if (chosen.length < candidates) {
+            chosen = new int[candidates];
+            deferred = new int[candidates];
+            lats = new double[candidates];
+            lons = new double[candidates];
+        }
+        int nChosen = 0, nDeferred = 0;
+        for (int c = 0; c < candidates && nChosen < capacity; c++) {
+            int i = scan.selectedIndex(c);
+            boolean known = local != null && local.lookup(scan.mac(i), ap);
+            if (known && isNearChosen(ap[0], ap[1], nChosen)) {
+                deferred[nDeferred++] = i;
+                continue;
+            }
+            lats[nChosen] = known ? ap[0] : Double.NaN;
+            lons[nChosen] = known ? ap[1] : Double.NaN;
+            chosen[nChosen++] = i;
+        }
+        for (int d = 0; d < nDeferred && nChosen < capacity; d++) chosen[nChosen++] = deferred[d];
+        for (int c = 0; c < nChosen; c++) {
+            int i = chosen[c];
+            request.macs[c] = scan.mac(i);
+            request.bssids[c] = Bssid.format(scan.mac(i));
+            request.signal[c] = (byte) Math.abs(scan.level(i));
+        }
+        return request;
+    }
+
+    private boolean isNearChosen(double lat, double lon, int nChosen) {
+        double cos = Math.cos(Math.toRadians(lat));
+        for (int c = 0; c < nChosen; c++) {
+            if (Double.isNaN(lats[c])) continue;
+            double dy = (lats[c] - lat) * PathLoss.METERS_PER_DEGREE;
+            double dx = (lons[c] - lon) * PathLoss.METERS_PER_DEGREE * cos;
+            if (dx * dx + dy * dy < DIVERSE_METERS * DIVERSE_METERS) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember the access points of a request the server had no position for
+     * @param request the request
+     * @param sent number of access points of the request that have been sent
+     * @param now current time in milliseconds
+     */
+    synchronized void missed(wloc_req request, int sent, long now) {
+        for (int i = 0; i < sent && i < request.bssids.length; i++) {
+            long mac = request.macAt(i);
+            if (mac <= 0) continue;
+            // removed first, so that the entry moves to the end of the order
+            misses.remove(mac);
+            misses.put(mac, now);
+        }
+        Iterator<Long> it = misses.keySet().iterator();
+        while (misses.size() > MAX_MISSES) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void expireMisses(long now) {
+        Iterator<Map.Entry<Long, Long>> it = misses.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() <= missTtlMillis) break;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the number of access points the server recently failed to locate
+     */
+    public synchronized int getMissCount() {
+        return misses.size();
+    }
+}
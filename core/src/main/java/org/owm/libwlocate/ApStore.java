@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * On-disk database of access point positions, used to evaluate the position without network access.
+ *
+ * The file is a header followed by fixed-width records sorted by MAC:
+ * <pre>
+ *   header: int magic, short version, short record size, int record count, int reserved
+ *   record: long mac, int lat * 1e7, int lon * 1e7, short quality, short weight
+ * </pre>
+ * The weight is the one of the GPS observations the position has been learnt from (see ApLearner), 0 for
+ * the positions given by the server.
+ * The file is memory-mapped read-only and lookups are binary searches on the mapped buffer.
+ * New records are kept in memory until flush(), which merges them with the file into a new one.
+ * There is one instance per file in the process, shared by all the users of the file, so that the
+ * records put by one of them are not lost by the flush() of another.
+ */
+public class ApStore implements ApLookup {
+    static final int MAGIC = 0x574C4150; // "WLAP"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 20;
+    /** Pending records are written to disk when they reach this number, and 1 / FLUSH_RATIO of the file */
+    static final int FLUSH_THRESHOLD = 64;
+    static final int FLUSH_RATIO = 8;
+    /** Records merged in memory before they are written to the new file by flush() */
+    static final int WRITE_BUFFER_RECORDS = 4096;
+
+    private static final double SCALE = 1e7;
+    private static final HashMap<File, ApStore> OPEN = new HashMap<File, ApStore>();
+
+    private final File file;
+    private volatile Mapping mapping;
+    // number of imports running, learn() leaves the pending records to them
+    private int importing;
+
+    // records not yet written, kept in insertion order
+    private long[] pendingMac = new long[FLUSH_THRESHOLD];
+    private int[] pendingLat = new int[FLUSH_THRESHOLD], pendingLon = new int[FLUSH_THRESHOLD];
+    private short[] pendingQuality = new short[FLUSH_THRESHOLD], pendingWeight = new short[FLUSH_THRESHOLD];
+    private int pendingCount;
+
+    private ApStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open a database file, creating an empty one if it doesn't exist. The file is read, so this is better
+     * not called on the main thread
+     * @param file the database file
+     * @return the opened database, the same instance for every call with the same file until close()
+     * @throws IOException if the file can't be created or isn't a valid database
+     */
+    public static ApStore open(File file) throws IOException {
+        File key = file.getCanonicalFile();
+        synchronized (OPEN) {
+            ApStore store = OPEN.get(key);
+            if (store == null) {
+                store = new ApStore(key);
+                if (!key.exists()) writeFile(key, ByteBuffer.allocate(0), 0);
+                store.map();
+                OPEN.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Write the pending records and release the file, the next open() reads it again. The instance
+     * must not be used anymore, by any of its users
+     * @throws IOException if the pending records can't be written
+     */
+    public void close() throws IOException {
+        synchronized (OPEN) {
+            if (OPEN.get(file) == this) OPEN.remove(file);
+        }
+        flush();
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) throw new IOException("Truncated AP database " + file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION || buffer.getShort(6) != RECORD_SIZE)
+                throw new IOException("Not an AP database " + file);
+            int n = buffer.getInt(8);
+            if (channel.size() < HEADER_SIZE + (long) n * RECORD_SIZE) throw new IOException("Truncated AP database " + file);
+            mapping = new Mapping(buffer, n);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the number of records on disk, pending ones are not counted
+     */
+    @Override
+    public int size() {
+        return mapping.count;
+    }
+
+    /**
+     * Binary search of a MAC in the mapped file
+     * @param mac the MAC to look for
+     * @return the index of the record, or -1 if it's not in the database
+     */
+    private static int find(ByteBuffer buffer, int n, long mac) {
+        int low = 0, high = n - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midMac = buffer.getLong(HEADER_SIZE + mid * RECORD_SIZE);
+            if (midMac < mac) low = mid + 1;
+            else if (midMac > mac) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Look for the position of an access point
+     * @param mac the MAC of the access point
+     * @param out array of at least 3 elements, filled with latitude, longitude and quality
+     * @return true if the access point is known
+     */
+    @Override
+    public boolean lookup(long mac, double[] out) {
+        Mapping m = mapping;
+        ByteBuffer buffer = m.buffer;
+        int index = find(buffer, m.count, mac);
+        if (index < 0) return false;
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        out[0] = buffer.getInt(offset + 8) / SCALE;
+        out[1] = buffer.getInt(offset + 12) / SCALE;
+        out[2] = buffer.getShort(offset + 16);
+        return true;
+    }
+
+    /**
+     * @param mac the MAC of the access point
+     * @return the weight of the GPS observations its position has been learnt from, 0 if it has been given by
+     * the server, -1 if the access point is not known
+     */
+    int weight(long mac) {
+        Mapping m = mapping;
+        int index = find(m.buffer, m.count, mac);
+        return index < 0 ? -1 : m.buffer.getShort(HEADER_SIZE + index * RECORD_SIZE + 18);
+    }
+
+    public boolean contains(long mac) {
+        Mapping m = mapping;
+        return find(m.buffer, m.count, mac) >= 0;
+    }
+
+    /**
+     * Evaluate the position from the access points in the request that are known to the database
+     * @param request the request data
+     * @param solver evaluates the position from the known access points and their signal strength
+     * @return the position, or null if none of the access points is known
+     */
+    WlocPosition locate(wloc_req request, PositionSolver solver) {
+        return ApLocator.locate(this, request, solver);
+    }
+
+    /**
+     * Add an access point or replace its position. The record is written on the next flush().
+     * @param mac the MAC of the access point
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param quality quality of the position, as given by the server
+     */
+    public void put(long mac, double lat, double lon, short quality) {
+        put(mac, lat, lon, quality, (short) 0);
+    }
+
+    /**
+     * @param weight weight of the GPS observations the position has been learnt from, 0 if it's from the server
+     */
+    synchronized void put(long mac, double lat, double lon, short quality, short weight) {
+        if (pendingCount == pendingMac.length) {
+            int size = pendingCount * 2;
+            long[] macs = new long[size];
+            int[] lats = new int[size], lons = new int[size];
+            short[] qualities = new short[size], weights = new short[size];
+            System.arraycopy(pendingMac, 0, macs, 0, pendingCount);
+            System.arraycopy(pendingLat, 0, lats, 0, pendingCount);
+            System.arraycopy(pendingLon, 0, lons, 0, pendingCount);
+            System.arraycopy(pendingQuality, 0, qualities, 0, pendingCount);
+            System.arraycopy(pendingWeight, 0, weights, 0, pendingCount);
+            pendingMac = macs;
+            pendingLat = lats;
+            pendingLon = lons;
+            pendingQuality = qualities;
+            pendingWeight = weights;
+        }
+        pendingMac[pendingCount] = mac;
+        pendingLat[pendingCount] = (int) Math.round(lat * SCALE);
+        pendingLon[pendingCount] = (int) Math.round(lon * SCALE);
+        pendingQuality[pendingCount] = quality;
+        pendingWeight[pendingCount] = weight;
+        pendingCount++;
+    }
+
+    /**
+     * Remember the position returned by the server for the access points of a request that are not
+     * known yet. The position of the request is only an approximation of the one of the access points,
+     * so existing records (e.g. from an imported dump) are never replaced.
+     * The pending records are written once they are a fraction of the file, as each flush rewrites it.
+     * @param request the request that was sent
+     * @param position the position returned by the server
+     * @throws IOException if the pending records had to be written and that failed
+     */
+    synchronized void learn(wloc_req request, WlocPosition position) throws IOException {
+        for (int i = 0; i < request.bssids.length; i++) {
+            long mac = request.macAt(i);
+            if (mac > 0 && !contains(mac)) put(mac, position.lat, position.lon, position.getQuality());
+        }
+        if (importing == 0 && pendingCount >= Math.max(FLUSH_THRESHOLD, mapping.count / FLUSH_RATIO)) flush();
+    }
+
+    /**
+     * Import a dump of access points, one per line as "BSSID latitude longitude [quality]",
+     * separated by spaces or tabs. Lines that can't be parsed are skipped.
+     * The records are kept in memory and written with a single flush() at the end, as each flush rewrites
+     * the whole file.
+     * @param in the dump, it is not closed
+     * @param defaultQuality the quality given to the lines without one
+     * @return the number of imported access points
+     * @throws IOException if reading the dump or writing the database fails
+     */
+    public int importDump(InputStream in, short defaultQuality) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        int imported = 0;
+        String line;
+        startImport();
+        try {
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("[ \t]+");
+                if (fields.length < 3) continue;
+                long mac = Bssid.parse(fields[0]);
+                if (mac <= 0) continue;
+                try {
+                    double lat = Double.parseDouble(fields[1]);
+                    double lon = Double.parseDouble(fields[2]);
+                    short quality = fields.length > 3 ? Short.parseShort(fields[3]) : defaultQuality;
+                    if (Math.abs(lat) > 90 || Math.abs(lon) > 180) continue;
+                    put(mac, lat, lon, quality);
+                    imported++;
+                } catch (NumberFormatException nfe) {
+                    // not a record, e.g. a header line
+                }
+            }
+        } finally {
+            endImport();
+        }
+        flush();
+        return imported;
+    }
+
+    /**
+     * Stop learn() from flushing until endImport(), for a long run of puts that is flushed once at the end
+     */
+    synchronized void startImport() {
+        importing++;
+    }
+
+    synchronized void endImport() {
+        importing--;
+    }
+
+    /**
+     * Merge the pending records with the file. A pending record replaces the one on disk
+     * with the same MAC, and the last one put wins over earlier ones.
+     * The whole file is rewritten, through a buffer of WRITE_BUFFER_RECORDS records, so flushes are better
+     * done after many put() than after each of them.
+     * @throws IOException if the new file can't be written
+     */
+    public synchronized void flush() throws IOException {
+        if (pendingCount == 0) return;
+        int n = pendingCount;
+        // sort the pending records by MAC, keeping the insertion order of duplicates
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = pendingMac[lhs], r = pendingMac[rhs];
+                if (l < r) return -1;
+                else if (l > r) return 1;
+                return lhs - rhs;
+            }
+        });
+        ByteBuffer old = mapping.buffer;
+        int oldCount = mapping.count;
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer merged = ByteBuffer.allocate(WRITE_BUFFER_RECORDS * RECORD_SIZE);
+            // the number of records is written at the end
+            merged.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putInt(0).putInt(0);
+            int total = merge(old, oldCount, order, merged, channel);
+            write(channel, merged);
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(0, total);
+            while (count.hasRemaining()) channel.write(count, 8 + count.position());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo doesn't replace the destination on every platform
+            if (!file.delete() || !tmp.renameTo(file)) throw new IOException("Can't replace " + file);
+        }
+        pendingCount = 0;
+        map();
+    }
+
+    /**
+     * Merge the sorted pending records with the ones on disk into the channel
+     * @param merged the buffer, written to the channel when it's full
+     * @return the number of merged records
+     */
+    private int merge(ByteBuffer old, int oldCount, Integer[] order, ByteBuffer merged, FileChannel channel)
+            throws IOException {
+        int n = order.length;
+        int i = 0, j = 0, total = 0;
+        while (i < oldCount || j < n) {
+            if (merged.remaining() < RECORD_SIZE) write(channel, merged);
+            long oldMac = i < oldCount ? old.getLong(HEADER_SIZE + i * RECORD_SIZE) : Long.MAX_VALUE;
+            if (j < n) {
+                int p = order[j];
+                // skip duplicates, only the last one put is kept
+                if (j + 1 < n && pendingMac[order[j + 1]] == pendingMac[p]) {
+                    j++;
+                    continue;
+                }
+                if (pendingMac[p] <= oldMac) {
+                    merged.putLong(pendingMac[p]).putInt(pendingLat[p]).putInt(pendingLon[p])
+                            .putShort(pendingQuality[p]).putShort(pendingWeight[p]);
+                    if (pendingMac[p] == oldMac) i++;
+                    j++;
+                    total++;
+                    continue;
+                }
+            }
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            for (int k = 0; k < RECORD_SIZE; k++) merged.put(old.get(offset + k));
+            i++;
+            total++;
+        }
+        return total;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Copy the records on disk into an index, pending ones are not copied
+     * @param index the destination
+     */
+    void copyTo(ApIndex index) {
+        Mapping m = mapping;
+        ByteBuffer buffer = m.buffer;
+        for (int i = 0; i < m.count; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            index.putRaw(buffer.getLong(offset), buffer.getInt(offset + 8), buffer.getInt(offset + 12),
+                    buffer.getShort(offset + 16));
+        }
+    }
+
+    /**
+     * The mapped file and its number of records, replaced together after a flush()
+     */
+    private static class Mapping {
+        final MappedByteBuffer buffer;
+        final int count;
+
+        Mapping(MappedByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+    }
+
+    private static void writeFile(File file, ByteBuffer body, int records) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putInt(records).putInt(0);
+        header.flip();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) channel.write(header);
+            while (body.hasRemaining()) channel.write(body);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
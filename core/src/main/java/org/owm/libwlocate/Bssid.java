@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Helper methods to convert BSSIDs between their text form and a 48 bit MAC stored in a long.
+ */
+final class Bssid {
+    /** Value returned by parse() when the text is not a valid BSSID */
+    static final long INVALID = -1L;
+
+    /** Bits of the MAC that change between the virtual BSSIDs of an access point, for its radios and SSIDs */
+    static final long VIRTUAL_BITS = 0xFL;
+    /** Bit of the first octet set in the locally administered MACs, which some vendors use for the virtual BSSIDs */
+    static final long LOCAL_BIT = 0x020000000000L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private Bssid() {
+    }
+
+    /**
+     * Parse a BSSID like "00:11:22:aa:bb:cc", "00.11.22.AA.BB.CC" or "001122AABBCC".
+     * Separators are skipped, as some strange devices use a dot instead of ':'
+     * @param bssid the text to parse
+     * @return the MAC in the lower 48 bits, or INVALID if there aren't exactly 12 hex digits
+     */
+    static long parse(CharSequence bssid) {
+        if (bssid == null) return INVALID;
+        return parse(bssid, 0, bssid.length());
+    }
+
+    /**
+     * Parse a BSSID from a part of a text, without copying it
+     * @param text the text that contains the BSSID
+     * @param start index of the first character of the BSSID
+     * @param end index after the last character of the BSSID
+     * @return the MAC in the lower 48 bits, or INVALID if there aren't exactly 12 hex digits
+     */
+    static long parse(CharSequence text, int start, int end) {
+        long mac = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int v;
+            if (c >= '0' && c <= '9') v = c - '0';
+            else if (c >= 'a' && c <= 'f') v = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F') v = c - 'A' + 10;
+            else if (c == ':' || c == '.' || c == '-') continue;
+            else return INVALID;
+            if (++digits > 12) return INVALID;
+            mac = (mac << 4) | v;
+        }
+        return digits == 12 ? mac : INVALID;
+    }
+
+    /**
+     * Guess if two BSSIDs are virtual BSSIDs of the same physical access point: the vendors derive them from
+     * the MAC of the device by changing its last digit, or by setting the locally administered bit (and some
+     * other bits) of the first octet.
+     * @param a a MAC
+     * @param b another MAC
+     * @return true if the MACs only differ in VIRTUAL_BITS, or in the first octet when one is locally administered
+     */
+    static boolean sameDevice(long a, long b) {
+        long diff = a ^ b;
+        if ((diff & 0xFFFFFFFFFFL & ~VIRTUAL_BITS) != 0) return false;
+        return (diff >>> 40) == 0 || ((a | b) & LOCAL_BIT) != 0;
+    }
+
+    /**
+     * @param mac the MAC, only the lower 48 bits are used
+     * @return the BSSID as 12 upper case hex digits without separators, as sent to the server
+     */
+    static String format(long mac) {
+        char[] out = new char[12];
+        for (int i = 11; i >= 0; i--) {
+            out[i] = HEX[(int) (mac & 0xF)];
+            mac >>>= 4;
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the positions of scan logs on the JVM, with the same pipeline as the library: the records are read
+ * from a newline-delimited JSON stream (see ScanLog), resolved in parallel by a pool of threads, each with its
+ * own PositionResolver, and the results are written in the same order as the input, as soon as they are ready.
+ * The lines are handled in chunks and only a few chunks for each thread are in memory at the same time,
+ * whatever the size of the input.
+ */
+public class BulkResolver {
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+    /** Number of chunks in memory for each thread, being resolved or waiting to be written */
+    static final int CHUNKS_PER_THREAD = 2;
+
+    private final URL getposURL;
+    private final boolean binary;
+    private ApStore apStore;
+    private ApLookup apLookup;
+    private PositionCache positionCache;
+    private CountryLocator countryLocator;
+    private PositionSolver solver = new WeightedCentroidSolver();
+    private boolean networkAccess = true;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * @param getposURL URL of getpos.php, null to only use the local database
+     * @param binary true to use the binary format of WlocCodec instead of the text one
+     */
+    public BulkResolver(URL getposURL, boolean binary) {
+        this.getposURL = getposURL;
+        this.binary = binary;
+        networkAccess = getposURL != null;
+    }
+
+    /**
+     * @param store the local access point database, shared by all the threads. Null to not use it. The access
+     *              points learnt from the server are written once, at the end of resolve()
+     */
+    public void setApStore(ApStore store) {
+        apStore = store;
+    }
+
+    /**
+     * @param lookup the database used to evaluate positions locally instead of the ApStore, shared by all the
+     *               threads, e.g. an ApIndex. Null (the default) to use the ApStore
+     */
+    public void setApLookup(ApLookup lookup) {
+        apLookup = lookup;
+    }
+
+    /**
+     * @param cache cache of the positions, shared by all the threads. Null (the default) to not use it
+     */
+    public void setPositionCache(PositionCache cache) {
+        positionCache = cache;
+    }
+
+    /**
+     * @param locator finds the country of the positions without a country code, shared by all the threads.
+     *                Null (the default) to leave it unknown
+     */
+    public void setCountryLocator(CountryLocator locator) {
+        countryLocator = locator;
+    }
+
+    public void setPositionSolver(PositionSolver solver) {
+        if (solver == null) throw new IllegalArgumentException("solver can't be null");
+        this.solver = solver;
+    }
+
+    /**
+     * @param enabled false to only use the cache and the local database
+     */
+    public void setNetworkAccess(boolean enabled) {
+        networkAccess = enabled;
+    }
+
+    /**
+     * @param threads number of threads resolving the scans, the number of processors by default. When the
+     *                server is used most of the time is spent waiting for it, so more threads may help
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.threads = threads;
+    }
+
+    /**
+     * @param chunkSize number of lines handed to a thread at once
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Resolve all the scans of a log
+     * @param in the scans, one JSON record per line in UTF-8. Empty lines are skipped
+     * @param out where the results are written, one JSON record per line in UTF-8, in the order of the scans.
+     *            Lines that are not valid records get an error record with their line number
+     * @return the counters of the run
+     * @throws IOException if reading or writing fails, or the thread is interrupted
+     */
+    public Stats resolve(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                return new Worker();
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "wlocate-bulk-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        // each flush rewrites the whole store, and the workers would wait for it
+        ApStore store = apStore;
+        if (store != null) store.startImport();
+        try {
+            long lineNumber = 0;
+            Chunk chunk = new Chunk(chunkSize, workers);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0) continue;
+                chunk.add(line, lineNumber);
+                if (chunk.count == chunkSize) {
+                    submit(pool, inFlight, chunk, writer, stats);
+                    chunk = new Chunk(chunkSize, workers);
+                }
+            }
+            if (chunk.count > 0) submit(pool, inFlight, chunk, writer, stats);
+            while (!inFlight.isEmpty()) write(inFlight.poll(), writer, stats);
+            writer.flush();
+        } finally {
+            pool.shutdownNow();
+            if (store != null) store.endImport();
+        }
+        if (store != null) store.flush();
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private void submit(ExecutorService pool, ArrayDeque<Future<Chunk>> inFlight, Chunk chunk, Writer writer,
+                        Stats stats) throws IOException {
+        // wait for the oldest chunk before reading more, so that memory stays bounded
+        if (inFlight.size() >= threads * CHUNKS_PER_THREAD) write(inFlight.poll(), writer, stats);
+        inFlight.add(pool.submit(chunk));
+    }
+
+    private static void write(Future<Chunk> future, Writer writer, Stats stats) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving the scans");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+        writer.append(chunk.output);
+        stats.scans += chunk.count - chunk.malformed;
+        stats.resolved += chunk.resolved;
+        stats.malformed += chunk.malformed;
+    }
+
+    /**
+     * State of a thread of the pool
+     */
+    private class Worker {
+        final PositionResolver resolver = new PositionResolver(getposURL, binary);
+        final ScanLog scanLog = new ScanLog();
+        final WlocPosition position = new WlocPosition();
+
+        Worker() {
+            resolver.setApStore(apStore);
+            resolver.setApLookup(apLookup);
+            resolver.setPositionCache(positionCache);
+            resolver.setCountryLocator(countryLocator);
+            resolver.setPositionSolver(solver);
+            resolver.setNetworkAccess(networkAccess);
+        }
+    }
+
+    /**
+     * Lines resolved together by a thread, with their results
+     */
+    private static class Chunk implements Callable<Chunk> {
+        final String[] lines;
+        final long[] lineNumbers;
+        final ThreadLocal<Worker> workers;
+        int count, resolved, malformed;
+        StringBuilder output;
+
+        Chunk(int size, ThreadLocal<Worker> workers) {
+            lines = new String[size];
+            lineNumbers = new long[size];
+            this.workers = workers;
+        }
+
+        void add(String line, long lineNumber) {
+            lines[count] = line;
+            lineNumbers[count] = lineNumber;
+            count++;
+        }
+
+        @Override
+        public Chunk call() {
+            Worker worker = workers.get();
+            output = new StringBuilder(count * 80);
+            for (int i = 0; i < count; i++) {
+                wloc_req request = new wloc_req();
+                if (!worker.scanLog.parse(lines[i], request)) {
+                    ScanLog.appendMalformed(output, lineNumbers[i]);
+                    malformed++;
+                } else {
+                    int rc = worker.resolver.resolve(request, worker.position);
+                    if (rc == ResultCode.OK) resolved++;
+                    worker.scanLog.appendResult(output, rc, worker.position);
+                }
+                lines[i] = null;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Counters of a run of resolve()
+     */
+    public static class Stats {
+        long scans, resolved, malformed, elapsedNanos;
+
+        /** @return number of valid scans */
+        public long getScans() {
+            return scans;
+        }
+
+        /** @return number of scans with a position */
+        public long getResolved() {
+            return resolved;
+        }
+
+        /** @return number of lines that were not valid records */
+        public long getMalformed() {
+            return malformed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** @return the throughput of the run */
+        public double getScansPerSecond() {
+            return elapsedNanos == 0 ? 0 : scans * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return scans + " scans, " + resolved + " resolved, " + malformed + " malformed lines in "
+                    + elapsedNanos / 1000000 + " ms (" + Math.round(getScansPerSecond()) + " scans/s)";
+        }
+    }
+
+    /**
+     * Resolve a scan log from the command line:
+     * BulkResolver [-server url] [-binary] [-db file] [-index file] [-countries file] [-threads n] input output
+     * where input and output can be - for the standard input and output. Without -server, only the local
+     * database is used. With -index, the positions are evaluated with an ApIndex written by ApIndex.write()
+     * instead of the database. With -countries, the country of the positions is found with the borders read by
+     * CountryLocator.read(). The counters are printed on the standard error
+     */
+    public static void main(String[] args) throws IOException {
+        URL url = null;
+        boolean binary = false;
+        File db = null, index = null, countries = null;
+        int threads = 0, i = 0;
+        for (; i < args.length - 2; i++) {
+            if ("-server".equals(args[i])) url = new URL(args[++i]);
+            else if ("-binary".equals(args[i])) binary = true;
+            else if ("-db".equals(args[i])) db = new File(args[++i]);
+            else if ("-index".equals(args[i])) index = new File(args[++i]);
+            else if ("-countries".equals(args[i])) countries = new File(args[++i]);
+            else if ("-threads".equals(args[i])) threads = Integer.parseInt(args[++i]);
+            else break;
+        }
+        if (args.length - i != 2) {
+            System.err.println("Usage: BulkResolver [-server url] [-binary] [-db file] [-index file] [-countries file] [-threads n] input output");
+            System.exit(2);
+        }
+        BulkResolver resolver = new BulkResolver(url, binary);
+        ApStore store = db != null ? ApStore.open(db) : null;
+        resolver.setApStore(store);
+        if (index != null) resolver.setApLookup(ApIndex.open(index));
+        if (countries != null) {
+            InputStream borders = new FileInputStream(countries);
+            try {
+                resolver.setCountryLocator(CountryLocator.read(borders));
+            } finally {
+                borders.close();
+            }
+        }
+        if (threads > 0) resolver.setThreads(threads);
+        InputStream in = "-".equals(args[i]) ? System.in : new FileInputStream(args[i]);
+        OutputStream out = "-".equals(args[i + 1]) ? System.out : new FileOutputStream(args[i + 1]);
+        try {
+            System.err.println(resolver.resolve(in, out));
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Finds the country of a position locally, from the borders of the countries.
+ * The borders are read from a text file with one polygon per line, as a country name (see WlocCountry)
+ * followed by the latitude and longitude of each vertex:
+ * <pre>
+ *   LU 49.45 5.73 49.55 6.38 50.18 6.13 49.85 5.75
+ * </pre>
+ * A country can have several polygons, e.g. for islands. Polygons must not cross the antimeridian, split them.
+ * The vertices are kept as integers in a single array. The world is divided in cells of CELL_DEGREES, each with
+ * the polygons whose bounding box overlaps it, so a lookup only tests the bounding boxes of a few polygons and
+ * the points of those that contain the position. Smaller polygons are tested first, so that enclaves win over
+ * the country around them.
+ * Immutable, so it can be shared between threads.
+ */
+public final class CountryLocator {
+    static final double SCALE = 1e7;
+    static final int CELL_DEGREES = 10;
+    private static final int ROWS = 180 / CELL_DEGREES, COLUMNS = 360 / CELL_DEGREES;
+    private static final int[] NO_POLYGONS = new int[0];
+
+    /** latitude and longitude of the vertices of all the polygons, scaled by SCALE */
+    private final int[] points;
+    /** index in points of the first vertex of each polygon, the last element is the end of the last polygon */
+    private final int[] starts;
+    private final short[] countries;
+    /** min latitude, min longitude, max latitude, max longitude of each polygon */
+    private final int[] bounds;
+    /** polygons whose bounding box overlaps each cell, smallest first */
+    private final int[][] cells = new int[ROWS * COLUMNS][];
+
+    private CountryLocator(int[] points, int[] starts, short[] countries, int[] bounds) {
+        this.points = points;
+        this.starts = starts;
+        this.countries = countries;
+        this.bounds = bounds;
+        int n = countries.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(area(lhs), area(rhs));
+            }
+        });
+        int[] counts = new int[cells.length];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int k = 0; k < n; k++) {
+                int p = order[k];
+                int row0 = row(bounds[4 * p]), row1 = row(bounds[4 * p + 2]);
+                int col0 = column(bounds[4 * p + 1]), col1 = column(bounds[4 * p + 3]);
+                for (int row = row0; row <= row1; row++) {
+                    for (int col = col0; col <= col1; col++) {
+                        int cell = row * COLUMNS + col;
+                        if (pass == 0) counts[cell]++;
+                        else cells[cell][cells[cell].length - counts[cell]--] = p;
+                    }
+                }
+            }
+            if (pass == 0)
+                for (int cell = 0; cell < cells.length; cell++)
+                    cells[cell] = counts[cell] > 0 ? new int[counts[cell]] : NO_POLYGONS;
+        }
+    }
+
+    /**
+     * Read the borders of the countries. Lines with less than 3 vertices, invalid coordinates or an unknown
+     * country are skipped
+     * @param in the borders in the format described above, it is not closed
+     * @return the locator
+     * @throws IOException if the borders can't be read
+     */
+    public static CountryLocator read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        int[] points = new int[1024], starts = new int[64], bounds = new int[256];
+        short[] countries = new short[64];
+        int pointCount = 0, n = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') continue;
+            String[] fields = line.split("[ \t]+");
+            short country = WlocCountry.toCode(fields[0]);
+            int vertices = (fields.length - 1) / 2;
+            if (country == 0 || vertices < 3 || fields.length % 2 == 0) continue;
+            if (points.length < pointCount + 2 * vertices) points = grow(points, pointCount + 2 * vertices);
+            if (n + 1 >= countries.length) {
+                starts = grow(starts, n + 2);
+                bounds = grow(bounds, 4 * (n + 1));
+                short[] grown = new short[countries.length * 2];
+                System.arraycopy(countries, 0, grown, 0, n);
+                countries = grown;
+            }
+            int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+            int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+            try {
+                for (int v = 0; v < vertices; v++) {
+                    double lat = Double.parseDouble(fields[1 + 2 * v]), lon = Double.parseDouble(fields[2 + 2 * v]);
+                    if (!(Math.abs(lat) <= 90 && Math.abs(lon) <= 180)) throw new NumberFormatException();
+                    int y = (int) Math.round(lat * SCALE), x = (int) Math.round(lon * SCALE);
+                    points[pointCount + 2 * v] = y;
+                    points[pointCount + 2 * v + 1] = x;
+                    minLat = Math.min(minLat, y);
+                    maxLat = Math.max(maxLat, y);
+                    minLon = Math.min(minLon, x);
+                    maxLon = Math.max(maxLon, x);
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            starts[n] = pointCount;
+            countries[n] = country;
+            bounds[4 * n] = minLat;
+            bounds[4 * n + 1] = minLon;
+            bounds[4 * n + 2] = maxLat;
+            bounds[4 * n + 3] = maxLon;
+            pointCount += 2 * vertices;
+            n++;
+        }
+        starts[n] = pointCount;
+        int[] exactStarts = new int[n + 1], exactBounds = new int[4 * n], exactPoints = new int[pointCount];
+        short[] exactCountries = new short[n];
+        System.arraycopy(starts, 0, exactStarts, 0, n + 1);
+        System.arraycopy(bounds, 0, exactBounds, 0, 4 * n);
+        System.arraycopy(points, 0, exactPoints, 0, pointCount);
+        System.arraycopy(countries, 0, exactCountries, 0, n);
+        return new CountryLocator(exactPoints, exactStarts, exactCountries, exactBounds);
+    }
+
+    /**
+     * @param lat the latitude
+     * @param lon the longitude
+     * @return the code of the country of the position, 0 if it's not in any of the countries
+     */
+    public short locate(double lat, double lon) {
+        if (!(Math.abs(lat) <= 90 && Math.abs(lon) <= 180)) return 0;
+        int y = (int) Math.round(lat * SCALE), x = (int) Math.round(lon * SCALE);
+        int[] candidates = cells[row(y) * COLUMNS + column(x)];
+        for (int k = 0; k < candidates.length; k++) {
+            int p = candidates[k];
+            if (y < bounds[4 * p] || x < bounds[4 * p + 1] || y > bounds[4 * p + 2] || x > bounds[4 * p + 3]) continue;
+            if (contains(p, y, x)) return countries[p];
+        }
+        return 0;
+    }
+
+    /** @return the number of polygons */
+    public int size() {
+        return countries.length;
+    }
+
+    /** @return the memory used by the polygons and the cells, in bytes */
+    public long getMemoryBytes() {
+        long bytes = 4L * (points.length + starts.length + bounds.length) + 2L * countries.length;
+        for (int[] cell : cells) bytes += 4L * cell.length;
+        return bytes;
+    }
+
+    /**
+     * Even-odd test: the point is inside if a ray from it crosses the border an odd number of times
+     */
+    private boolean contains(int p, int y, int x) {
+        boolean inside = false;
+        int start = starts[p], end = starts[p + 1];
+        for (int i = start, j = end - 2; i < end; j = i, i += 2) {
+            long yi = points[i], xi = points[i + 1], yj = points[j], xj = points[j + 1];
+            if ((yi > y) != (yj > y) && x < (double) (xj - xi) * (y - yi) / (yj - yi) + xi) inside = !inside;
+        }
+        return inside;
+    }
+
+    private double area(int p) {
+        return ((double) bounds[4 * p + 2] - bounds[4 * p]) * ((double) bounds[4 * p + 3] - bounds[4 * p + 1]);
+    }
+
+    private static int row(int lat) {
+        return Math.min(ROWS - 1, (int) ((lat / SCALE + 90) / CELL_DEGREES));
+    }
+
+    private static int column(int lon) {
+        return Math.min(COLUMNS - 1, (int) ((lon / SCALE + 180) / CELL_DEGREES));
+    }
+
+    private static int[] grow(int[] array, int min) {
+        int[] grown = new int[Math.max(min, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
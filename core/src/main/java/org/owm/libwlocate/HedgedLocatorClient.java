@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the requests to the servers of a LocatorPool:
+ * - the request goes to the preferred server, with a timeout adapted to its latency;
+ * - if there is no response within the p95 latency of that server, the same request is sent to the next one
+ *   (hedging) and the first response wins, the other request is aborted;
+ * - if the request fails before that, it is retried at once on the next server;
+ * - servers whose circuit is open are skipped.
+ * The requests run on a shared pool of daemon threads, the calling thread waits for them.
+ * Not thread safe, as LocatorClient.
+ */
+class HedgedLocatorClient implements Locator {
+    private static ExecutorService executor;
+
+    private final LocatorPool pool;
+    private final boolean binary;
+    private final LocatorEndpoint[] endpoints, order;
+    private final Attempt[] attempts;
+    // one client for each endpoint, so that its buffers are reused, and its last attempt
+    private final LocatorClient[] clients;
+    private final Attempt[] lastAttempts;
+
+    /**
+     * @param pool the servers
+     * @param binary true to use the binary format of WlocCodec instead of the text one
+     */
+    HedgedLocatorClient(LocatorPool pool, boolean binary) {
+        this.pool = pool;
+        this.binary = binary;
+        endpoints = pool.getEndpoints();
+        order = new LocatorEndpoint[pool.size()];
+        attempts = new Attempt[pool.size()];
+        clients = new LocatorClient[pool.size()];
+        lastAttempts = new Attempt[pool.size()];
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "wlocate-hedge-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @return true if the server has answered, even without a position
+     */
+    private static boolean answered(int rc) {
+        return rc != ResultCode.CONNECTION_ERROR && rc != ResultCode.IO_ERROR;
+    }
+
+    @Override
+    public int requestPosition(wloc_req request, WlocPosition position) {
+        pool.order(now(), order);
+        CompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(executor());
+        int next = 0, started = 0, running = 0, rc = ResultCode.CONNECTION_ERROR;
+        long deadline = 0, hedgeAt = Long.MAX_VALUE;
+        boolean timedOut = false;
+        try {
+            while (true) {
+                if (running == 0 || now() >= hedgeAt) {
+                    // first request, retry after a failure, or hedge once after the p95 latency of the first server
+                    Attempt attempt = null;
+                    while (attempt == null && next < order.length) attempt = start(order[next++], request, completion);
+                    hedgeAt = Long.MAX_VALUE;
+                    if (attempt == null) {
+                        if (running == 0) return rc; // no other server, or all the circuits are open
+                    } else {
+                        attempts[started++] = attempt;
+                        running++;
+                        long now = now();
+                        deadline = Math.max(deadline, now + attempt.endpoint.getTimeoutMillis());
+                        if (started == 1) hedgeAt = now + attempt.endpoint.getHedgeDelayMillis();
+                    }
+                }
+                long wait = Math.min(deadline, hedgeAt) - now();
+                Future<Attempt> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    if (now() >= deadline) {
+                        timedOut = true;
+                        return ResultCode.IO_ERROR;
+                    }
+                    continue;
+                }
+                running--;
+                Attempt attempt = done.get();
+                rc = attempt.rc;
+                if (answered(rc)) {
+                    if (rc == ResultCode.OK) position.set(attempt.position);
+                    return rc;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResultCode.IO_ERROR;
+        } catch (ExecutionException e) {
+            // not thrown by Attempt.call(), which records any exception as a failure
+            e.getCause().printStackTrace();
+            return ResultCode.IO_ERROR;
+        } finally {
+            // the slower requests are not needed anymore. After the deadline they count as failures, so that a
+            // server that doesn't respond at all is left out as well as one that returns errors
+            for (int i = 0; i < started; i++) {
+                if (!attempts[i].done) attempts[i].abort(timedOut);
+                attempts[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return the running attempt, or null if the circuit of the server is open
+     */
+    private Attempt start(LocatorEndpoint endpoint, wloc_req request, CompletionService<Attempt> completion) {
+        if (!endpoint.tryAcquire(now())) return null;
+        int i = 0;
+        while (endpoints[i] != endpoint) i++;
+        // an aborted attempt of a previous request may still be using the client
+        if (clients[i] == null || (lastAttempts[i] != null && !lastAttempts[i].done))
+            clients[i] = new LocatorClient(endpoint.getURL(), binary);
+        clients[i].setTimeout(endpoint.getTimeoutMillis());
+        Attempt attempt = new Attempt(endpoint, clients[i], request);
+        lastAttempts[i] = attempt;
+        completion.submit(attempt);
+        return attempt;
+    }
+
+    /**
+     * A request to a server
+     */
+    private static class Attempt implements Callable<Attempt> {
+        final LocatorEndpoint endpoint;
+        final wloc_req request;
+        final LocatorClient client;
+        final WlocPosition position = new WlocPosition();
+        volatile boolean aborted, timedOut, done;
+        int rc;
+
+        Attempt(LocatorEndpoint endpoint, LocatorClient client, wloc_req request) {
+            this.endpoint = endpoint;
+            this.client = client;
+            this.request = request;
+        }
+
+        @Override
+        public Attempt call() {
+            long start = System.nanoTime();
+            rc = ResultCode.IO_ERROR;
+            try {
+                rc = client.requestPosition(request, position);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                // always recorded, or the server would stay out after a failed probe.
+                // A request aborted because another server answered first doesn't say anything about the server
+                if (answered(rc)) endpoint.recordSuccess(System.nanoTime() - start);
+                else if (!aborted || timedOut) endpoint.recordFailure(now());
+                else endpoint.releaseProbe();
+                done = true;
+            }
+            return this;
+        }
+
+        /**
+         * @param timedOut true if the server hasn't responded in time, false if the response isn't needed anymore
+         */
+        void abort(boolean timedOut) {
+            this.timedOut = timedOut;
+            aborted = true;
+            client.abort();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the last GPS fix and the last WiFi scan, see SharedLocationState.
+ * Every change creates a new snapshot, so a reader always sees values that belong together, like the
+ * latitude and longitude of the same fix.
+ */
+public final class LocationState {
+    /** No position has been evaluated for the last scan */
+    public static final int METHOD_NONE = 0;
+    /** The last position has been evaluated from the WiFi networks */
+    public static final int METHOD_WLOCATE = 1;
+    /** The last position is a GPS fix */
+    public static final int METHOD_GPS = 2;
+
+    static final LocationState INITIAL = new LocationState(0, 0, -1, -1, -1, 0, false, false, METHOD_NONE, -1, null, null);
+
+    private final double gpsLat, gpsLon;
+    private final float gpsRadius, gpsSpeed, gpsCog;
+    private final long gpsFixMillis;
+    private final boolean gpsAvailable, scanStarted;
+    private final int lastMethod;
+    private final float lastSpeed;
+    private final wloc_req request;
+    private final List<?> scanResults;
+
+    private LocationState(double gpsLat, double gpsLon, float gpsRadius, float gpsSpeed, float gpsCog, long gpsFixMillis,
+                          boolean gpsAvailable, boolean scanStarted, int lastMethod, float lastSpeed,
+                          wloc_req request, List<?> scanResults) {
+        this.gpsLat = gpsLat;
+        this.gpsLon = gpsLon;
+        this.gpsRadius = gpsRadius;
+        this.gpsSpeed = gpsSpeed;
+        this.gpsCog = gpsCog;
+        this.gpsFixMillis = gpsFixMillis;
+        this.gpsAvailable = gpsAvailable;
+        this.scanStarted = scanStarted;
+        this.lastMethod = lastMethod;
+        this.lastSpeed = lastSpeed;
+        this.request = request;
+        this.scanResults = scanResults;
+    }
+
+    LocationState withGpsFix(double lat, double lon, float radius, float speed, float cog, long millis) {
+        return new LocationState(lat, lon, radius, speed, cog, millis, gpsAvailable, scanStarted, lastMethod, lastSpeed,
+                request, scanResults);
+    }
+
+    LocationState withGpsAvailable(boolean available) {
+        if (available == gpsAvailable) return this;
+        return new LocationState(gpsLat, gpsLon, gpsRadius, gpsSpeed, gpsCog, gpsFixMillis, available, scanStarted,
+                lastMethod, lastSpeed, request, scanResults);
+    }
+
+    LocationState withScanStarted(boolean started) {
+        if (started == scanStarted) return this;
+        return new LocationState(gpsLat, gpsLon, gpsRadius, gpsSpeed, gpsCog, gpsFixMillis, gpsAvailable, started,
+                lastMethod, lastSpeed, request, scanResults);
+    }
+
+    LocationState withScan(wloc_req request, List<?> scanResults) {
+        return new LocationState(gpsLat, gpsLon, gpsRadius, gpsSpeed, gpsCog, gpsFixMillis, gpsAvailable, scanStarted,
+                METHOD_NONE, -1, request, scanResults != null ? Collections.unmodifiableList(scanResults) : null);
+    }
+
+    LocationState withMethod(int method, float speed) {
+        return new LocationState(gpsLat, gpsLon, gpsRadius, gpsSpeed, gpsCog, gpsFixMillis, gpsAvailable, scanStarted,
+                method, speed, request, scanResults);
+    }
+
+    public double getGpsLatitude() {
+        return gpsLat;
+    }
+
+    public double getGpsLongitude() {
+        return gpsLon;
+    }
+
+    /** @return the accuracy of the last GPS fix in meters, -1 if unknown */
+    public float getGpsRadius() {
+        return gpsRadius;
+    }
+
+    /** @return the speed of the last GPS fix in m/s, -1 if unknown */
+    public float getGpsSpeed() {
+        return gpsSpeed;
+    }
+
+    /** @return the course over ground of the last GPS fix in degrees, -1 if unknown */
+    public float getGpsCourse() {
+        return gpsCog;
+    }
+
+    /** @return when the last GPS fix has been received, in milliseconds since boot, 0 if there was none */
+    public long getGpsFixMillis() {
+        return gpsFixMillis;
+    }
+
+    public boolean isGpsAvailable() {
+        return gpsAvailable;
+    }
+
+    /** @return true while a scan has been started and its results haven't been received */
+    public boolean isScanStarted() {
+        return scanStarted;
+    }
+
+    /** @return how the last position has been evaluated, one of the METHOD_* values */
+    public int getLastMethod() {
+        return lastMethod;
+    }
+
+    /** @return the speed of the last position in km/h, a negative value if unknown */
+    public float getLastSpeed() {
+        return lastSpeed;
+    }
+
+    /**
+     * @return the request built from the last scan, null before the first scan. It is shared with the
+     * requester and must not be modified, WLocate.last_location_info() gives a copy
+     */
+    wloc_req getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the networks of the last scan in the order returned by the system, unmodifiable, null before the
+     * first scan. WLocate.last_location_info() gives a copy sorted by signal strength
+     */
+    public List<?> getScanResults() {
+        return scanResults;
+    }
+}
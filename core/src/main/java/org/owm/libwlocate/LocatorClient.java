@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends position requests to getpos.php over HTTP and parses the responses.
+ * The connection is not disconnected after a successful exchange and the responses are read to the end,
+ * so that HttpURLConnection can keep the socket alive for the next request.
+ * Not thread safe: the buffers are reused from one request to the next.
+ */
+class LocatorClient implements Locator {
+    /** Initial size of the buffer for the response, it grows if needed */
+    static final int RESPONSE_BUFFER_SIZE = 256;
+    /** Longer responses are rejected, a valid one is a few dozen bytes */
+    static final int MAX_RESPONSE_SIZE = 4096;
+    /** Connect and read timeout used unless setTimeout() is called */
+    static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private final URL serverURL;
+    private final boolean binary;
+    private volatile HttpURLConnection con;
+    private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private ByteBuffer requestBuffer;
+    private byte[] responseBuffer = new byte[RESPONSE_BUFFER_SIZE];
+    private ByteBuffer responseView = ByteBuffer.wrap(responseBuffer);
+
+    /**
+     * @param serverURL URL of getpos.php
+     * @param binary true to use the binary format of WlocCodec instead of the text one
+     */
+    LocatorClient(URL serverURL, boolean binary) {
+        this.serverURL = serverURL;
+        this.binary = binary;
+        if (binary) requestBuffer = ByteBuffer.allocate(WlocCodec.REQUEST_LENGTH);
+    }
+
+    /**
+     * @param timeoutMillis timeout to connect and to wait for the response
+     */
+    void setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Disconnect the request that is running, from another thread. It then fails with ResultCode.IO_ERROR
+     */
+    void abort() {
+        HttpURLConnection c = con;
+        if (c != null) c.disconnect();
+    }
+
+    /**
+     * @param request the request data
+     * @return the body of the text POST request: the BSSIDs, one per line
+     */
+    static String postData(wloc_req request) {
+        StringBuilder sb=new StringBuilder();
+        for (int i=0; i<request.bssids.length; i++)
+            if ((request.bssids[i]!=null) && (request.bssids[i].length()>0)) {
+                sb.append(request.bssids[i]);
+                sb.append("\r\n");
+            }
+        return sb.toString();
+    }
+
+    /**
+     * Send the request to the server and parse the response into position
+     * @param request the request data
+     * @param position filled with the result
+     * @return ResultCode.OK or the error code
+     */
+    @Override
+    public int requestPosition(wloc_req request, WlocPosition position) {
+        int rc;
+        WlocMetrics metrics = WlocMetrics.get();
+        try {
+            byte[] body;
+            if (binary) {
+                requestBuffer.clear();
+                WlocCodec.encodeRequest(request, requestBuffer);
+                body = requestBuffer.array();
+            } else body = postData(request).getBytes("US-ASCII");
+            long start = System.nanoTime();
+            con = (HttpURLConnection) serverURL.openConnection();
+            if (con == null) return ResultCode.CONNECTION_ERROR;
+            con.setConnectTimeout(timeoutMillis);
+            con.setReadTimeout(timeoutMillis);
+            con.setDoOutput(true); // enable POST
+            con.setRequestMethod("POST");
+            con.setFixedLengthStreamingMode(body.length);
+            con.addRequestProperty("Content-Type", binary ? "application/octet-stream" : "application/x-www-form-urlencoded, *.*");
+            BufferedOutputStream outputStream = new BufferedOutputStream(con.getOutputStream());
+            start = metrics.record(WlocMetrics.STAGE_CONNECT, start);
+            outputStream.write(body);
+            outputStream.flush();
+            outputStream.close();
+            start = metrics.record(WlocMetrics.STAGE_WRITE, start);
+            rc = con.getResponseCode();
+            metrics.record(WlocMetrics.STAGE_FIRST_BYTE, start);
+            if (rc != HttpURLConnection.HTTP_OK) {
+                drain(con.getErrorStream());
+                return ResultCode.CONNECTION_ERROR;
+            }
+            // the whole response is read, so that the connection can be reused for the next request
+            InputStream in = con.getInputStream();
+            int length = readResponse(in);
+            if (length < 0) {
+                // not read to the end, the connection can't be reused
+                con.disconnect();
+                return ResultCode.SERVER_ERROR;
+            }
+            in.close();
+            start = System.nanoTime();
+            if (binary) {
+                responseView.limit(length);
+                responseView.position(0);
+                rc = WlocCodec.decodeResponse(responseView, position);
+            } else rc = ResponseParser.parse(responseBuffer, length, position);
+            metrics.record(WlocMetrics.STAGE_PARSE, start);
+            return rc;
+        } catch (IOException excep) {
+            excep.printStackTrace();
+            if (con != null) con.disconnect();
+            return ResultCode.IO_ERROR;
+        }
+    }
+
+    /**
+     * Read the whole response into responseBuffer, growing it if needed up to MAX_RESPONSE_SIZE
+     * @return the length of the response, -1 if it is longer than MAX_RESPONSE_SIZE
+     */
+    private int readResponse(InputStream in) throws IOException {
+        int length = 0;
+        while (true) {
+            if (length == responseBuffer.length) {
+                if (length >= MAX_RESPONSE_SIZE) return in.read() == -1 ? length : -1;
+                byte[] bigger = new byte[Math.min(responseBuffer.length * 2, MAX_RESPONSE_SIZE)];
+                System.arraycopy(responseBuffer, 0, bigger, 0, length);
+                responseBuffer = bigger;
+                responseView = ByteBuffer.wrap(responseBuffer);
+            }
+            int read = in.read(responseBuffer, length, responseBuffer.length - length);
+            if (read == -1) return length;
+            length += read;
+        }
+    }
+
+    /**
+     * Read and close a response body, so that the connection goes back to the keep-alive pool
+     * @param in the stream, can be null
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        byte[] buffer = new byte[512];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.net.URL;
+
+/**
+ * A locator server of a LocatorPool, with the statistics used to choose it: the latency of its responses,
+ * the timeout derived from it and a circuit breaker.
+ * After a few consecutive failures the circuit opens and the server is skipped for a while, then a single
+ * request is let through to probe it: if it succeeds the circuit closes, otherwise it stays open twice as long.
+ * Thread safe, it is shared by all the requests to the server.
+ */
+public class LocatorEndpoint {
+    /** Until there are this many responses, the default timeout and hedge delay are used */
+    static final int MIN_SAMPLES = 8;
+    public static final int DEFAULT_TIMEOUT_MILLIS = LocatorClient.DEFAULT_TIMEOUT_MILLIS;
+    static final int DEFAULT_HEDGE_DELAY_MILLIS = 1500;
+    static final int MIN_TIMEOUT_MILLIS = 1000, MAX_TIMEOUT_MILLIS = 20000;
+    /** The timeout is this multiple of the p99 latency */
+    static final int TIMEOUT_FACTOR = 3;
+    static final int FAILURES_TO_OPEN = 3;
+    static final long MIN_OPEN_MILLIS = 30 * 1000, MAX_OPEN_MILLIS = 10 * 60 * 1000;
+
+    private final URL url;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private int consecutiveFailures;
+    private long openMillis, openUntil;
+    private boolean probing;
+
+    LocatorEndpoint(URL url) {
+        this.url = url;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /** @return the latency of the responses of the server, in nanoseconds */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /** @return the timeout of the requests, 3 times the p99 latency once it is known */
+    public int getTimeoutMillis() {
+        if (latency.getCount() < MIN_SAMPLES) return DEFAULT_TIMEOUT_MILLIS;
+        long p99 = latency.getPercentile(99) / 1000000;
+        return (int) Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, TIMEOUT_FACTOR * p99));
+    }
+
+    /** @return how long to wait for the response before sending the same request to another server: the p95 latency */
+    public long getHedgeDelayMillis() {
+        if (latency.getCount() < MIN_SAMPLES) return DEFAULT_HEDGE_DELAY_MILLIS;
+        return Math.max(1, latency.getPercentile(95) / 1000000);
+    }
+
+    /** @return the p50 latency in milliseconds, 0 when unknown so that untried servers are tried soon */
+    long getMedianMillis() {
+        return latency.getPercentile(50) / 1000000;
+    }
+
+    /**
+     * @param now current time in milliseconds, on a monotonic clock
+     * @return true if the circuit is open and the server must not be used
+     */
+    public synchronized boolean isOpen(long now) {
+        return openUntil != 0 && (now < openUntil || probing);
+    }
+
+    /**
+     * Ask to send a request to the server
+     * @param now current time in milliseconds, on a monotonic clock
+     * @return false if the circuit is open. When it has been open long enough, true for a single probe request
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (openUntil == 0) return true;
+        if (now < openUntil || probing) return false;
+        probing = true;
+        return true;
+    }
+
+    /**
+     * @param nanos time the server took to respond
+     */
+    synchronized void recordSuccess(long nanos) {
+        latency.record(nanos);
+        consecutiveFailures = 0;
+        openMillis = openUntil = 0;
+        probing = false;
+    }
+
+    /**
+     * @param now current time in milliseconds, on a monotonic clock
+     */
+    synchronized void recordFailure(long now) {
+        consecutiveFailures++;
+        if (probing || consecutiveFailures >= FAILURES_TO_OPEN) {
+            openMillis = openMillis == 0 ? MIN_OPEN_MILLIS : Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+            openUntil = now + openMillis;
+        }
+        probing = false;
+    }
+
+    /**
+     * Called when a request ended without telling whether the server works, e.g. it has been aborted
+     */
+    synchronized void releaseProbe() {
+        probing = false;
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.net.URL;
+
+/**
+ * Locator servers that answer the same requests, e.g. the getpos.php of OpenWlanMap and of Openwifi.su.
+ * The requests go to the fastest server whose circuit is closed, and are sent to a second one when the first
+ * doesn't respond within its p95 latency (see HedgedLocatorClient).
+ * Thread safe, the statistics of the servers are shared by all the requests.
+ */
+public class LocatorPool {
+    private final LocatorEndpoint[] endpoints;
+
+    /**
+     * @param getposURLs URLs of getpos.php of the servers, at least one
+     */
+    public LocatorPool(URL... getposURLs) {
+        if (getposURLs.length == 0) throw new IllegalArgumentException("At least one server is needed");
+        endpoints = new LocatorEndpoint[getposURLs.length];
+        for (int i = 0; i < getposURLs.length; i++) endpoints[i] = new LocatorEndpoint(getposURLs[i]);
+    }
+
+    public LocatorEndpoint[] getEndpoints() {
+        return endpoints.clone();
+    }
+
+    public int size() {
+        return endpoints.length;
+    }
+
+    /**
+     * Sort the servers by preference: closed circuits first, then by median latency
+     * @param now current time in milliseconds, on a monotonic clock
+     * @param out filled with all the servers, must have size() elements
+     */
+    void order(long now, LocatorEndpoint[] out) {
+        System.arraycopy(endpoints, 0, out, 0, endpoints.length);
+        // insertion sort, there are only a few servers
+        long[] keys = new long[out.length];
+        for (int i = 0; i < out.length; i++) {
+            LocatorEndpoint endpoint = out[i];
+            long key = (endpoint.isOpen(now) ? Long.MAX_VALUE / 2 : 0) + endpoint.getMedianMillis();
+            int j = i;
+            while (j > 0 && keys[j - 1] > key) {
+                keys[j] = keys[j - 1];
+                out[j] = out[j - 1];
+                j--;
+            }
+            keys[j] = key;
+            out[j] = endpoint;
+        }
+    }
+}
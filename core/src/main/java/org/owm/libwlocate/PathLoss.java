@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Log-distance path loss model, used to estimate how far an access point is from its signal strength.
+ */
+final class PathLoss {
+    /** Received power at one meter from a typical access point, in dBm */
+    static final double RSSI_AT_ONE_METER = -40;
+    /** Path loss exponent, 2 is free space, indoor is usually around 3 */
+    static final double EXPONENT = 3;
+    /** Used when the signal strength of an access point is not known */
+    static final int DEFAULT_RSSI = -80;
+    /** Meters per degree of latitude */
+    static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    private PathLoss() {
+    }
+
+    /**
+     * @param signal the signal strength, as stored in wloc_req.signal
+     * @return the estimated distance from the access point in meters, at least one
+     */
+    static double distance(byte signal) {
+        int rssi = signal == 0 ? DEFAULT_RSSI : -Math.abs(signal);
+        return Math.max(1, Math.pow(10, (RSSI_AT_ONE_METER - rssi) / (10 * EXPONENT)));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the last positions returned by the server, keyed by the set of BSSIDs
+ * that were sent in the request.
+ * Entries are evicted when they are older than the time to live or when the cache is full
+ * (least recently used first). A scan doesn't need to be identical to a cached one: it's enough
+ * that the two BSSID sets are similar (Jaccard index) at least as much as minSimilarity.
+ */
+public class PositionCache {
+    public static final int   DEFAULT_CAPACITY = 64;
+    public static final long  DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    public static final float DEFAULT_MIN_SIMILARITY = 0.75f;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final float minSimilarity;
+    private final LinkedHashMap<Key, Entry> entries;
+    private long hits, misses, evictions;
+
+    public PositionCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS, DEFAULT_MIN_SIMILARITY);
+    }
+
+    /**
+     * @param capacity maximum number of positions kept
+     * @param ttlMillis how long a position stays valid, in milliseconds
+     * @param minSimilarity minimum Jaccard index (0..1] between the scan and a cached one to count as a hit,
+     *                      1 means that only identical BSSID sets are matched
+     */
+    public PositionCache(int capacity, long ttlMillis, float minSimilarity)
+            throws IllegalArgumentException {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        if (minSimilarity <= 0 || minSimilarity > 1) throw new IllegalArgumentException("minSimilarity must be in (0,1]");
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.minSimilarity = minSimilarity;
+        entries = new LinkedHashMap<Key, Entry>(capacity * 4 / 3 + 1, 0.75f, true);
+    }
+
+    /**
+     * Look for a position for the given request
+     * @param request the request data
+     * @param now current time in milliseconds, on the same clock used with put()
+     * @return the cached position, or null if there's no valid entry similar enough
+     */
+    synchronized WlocPosition get(wloc_req request, long now) {
+        Key key = Key.of(request);
+        if (key == null) {
+            misses++;
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.created > ttlMillis) {
+            entries.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null && minSimilarity < 1) {
+            Key bestKey = null;
+            float best = minSimilarity;
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> e = it.next();
+                if (now - e.getValue().created > ttlMillis) {
+                    it.remove();
+                    evictions++;
+                    continue;
+                }
+                float similarity = key.similarity(e.getKey());
+                if (similarity >= best) {
+                    best = similarity;
+                    bestKey = e.getKey();
+                }
+            }
+            // get() again, so that the entry becomes the most recently used
+            if (bestKey != null) entry = entries.get(bestKey);
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.position;
+    }
+
+    /**
+     * Store the position returned for a request
+     * @param request the request that was sent
+     * @param position the position returned by the server, it is copied as the caller may reuse it
+     * @param now current time in milliseconds
+     */
+    synchronized void put(wloc_req request, WlocPosition position, long now) {
+        Key key = Key.of(request);
+        if (key == null || position == null) return;
+        WlocPosition copy = new WlocPosition();
+        copy.set(position);
+        entries.put(key, new Entry(copy, now));
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return number of lookups answered from the cache */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return number of lookups that had to go to the server */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return number of entries removed because they were expired or the cache was full */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static class Entry {
+        final WlocPosition position;
+        final long created;
+
+        Entry(WlocPosition position, long created) {
+            this.position = position;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Sorted set of MACs, so that equal sets have equal keys whatever the order of the scan
+     */
+    private static class Key {
+        final long[] macs;
+        final int hash;
+
+        private Key(long[] macs) {
+            this.macs = macs;
+            hash = Arrays.hashCode(macs);
+        }
+
+        static Key of(wloc_req request) {
+            long[] macs = new long[request.bssids.length];
+            int count = ScanSimilarity.sortedMacs(request, macs);
+            if (count == 0) return null;
+            long[] set = new long[count];
+            System.arraycopy(macs, 0, set, 0, count);
+            return new Key(set);
+        }
+
+        float similarity(Key other) {
+            return ScanSimilarity.jaccard(macs, macs.length, other.macs, other.macs.length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(macs, ((Key) o).macs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Constant-velocity Kalman filter that blends the positions of different sources, e.g. GPS fixes and WiFi
+ * positions, each weighted by its radius of uncertainty.
+ * The state is position and velocity on a plane tangent at the first position, in meters. The two axes
+ * get the same measurement and process noise, so they share the same 2x2 covariance. The state is a few
+ * doubles and updates don't allocate memory.
+ */
+public class PositionFilter {
+    /** Default standard deviation of the acceleration, in m/s^2, fit for a walking or driving user */
+    public static final double DEFAULT_ACCELERATION_NOISE = 2;
+    /** Used for positions without a valid radius, in meters */
+    static final double DEFAULT_RADIUS = 100;
+
+    private final double q;
+    private boolean initialized;
+    private double lat0, lon0, cos0;
+    private long time;
+    // position and velocity along east (x) and north (y)
+    private double x, y, vx, vy;
+    // covariance of position and velocity, the same for both axes
+    private double p00, p01, p11;
+
+    public PositionFilter() {
+        this(DEFAULT_ACCELERATION_NOISE);
+    }
+
+    /**
+     * @param accelerationNoise standard deviation of the acceleration of the user in m/s^2, higher values
+     *                          follow changes of direction faster but smooth less
+     */
+    public PositionFilter(double accelerationNoise) {
+        if (accelerationNoise <= 0) throw new IllegalArgumentException("accelerationNoise must be positive");
+        q = accelerationNoise * accelerationNoise;
+    }
+
+    /**
+     * Add a position
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param radius radius of uncertainty in meters, taken as the standard deviation of the position
+     * @param timeMillis when the position was taken, on a monotonic clock. Older positions than the last one
+     *                   are applied as if they were taken at the same time
+     */
+    public synchronized void update(double lat, double lon, float radius, long timeMillis) {
+        double r = radius > 0 ? radius : DEFAULT_RADIUS;
+        if (!initialized) {
+            lat0 = lat;
+            lon0 = lon;
+            cos0 = Math.cos(Math.toRadians(lat));
+            x = y = vx = vy = 0;
+            p00 = r * r;
+            p01 = 0;
+            // the speed is unknown, up to some tens of m/s
+            p11 = 100;
+            time = timeMillis;
+            initialized = true;
+            return;
+        }
+        predict(timeMillis);
+        double s = p00 + r * r;
+        double k0 = p00 / s, k1 = p01 / s;
+        double ex = (lon - lon0) * PathLoss.METERS_PER_DEGREE * cos0 - x;
+        double ey = (lat - lat0) * PathLoss.METERS_PER_DEGREE - y;
+        x += k0 * ex;
+        y += k0 * ey;
+        vx += k1 * ex;
+        vy += k1 * ey;
+        p11 -= k1 * p01;
+        p00 *= 1 - k0;
+        p01 *= 1 - k0;
+    }
+
+    private void predict(long timeMillis) {
+        if (timeMillis <= time) return;
+        double dt = (timeMillis - time) / 1000.0;
+        x += vx * dt;
+        y += vy * dt;
+        p00 += dt * (2 * p01 + dt * p11) + q * dt * dt * dt / 3;
+        p01 += dt * p11 + q * dt * dt / 2;
+        p11 += q * dt;
+        time = timeMillis;
+    }
+
+    /**
+     * Estimate the position at a time, from the positions added until now. The state isn't changed
+     * @param timeMillis the time, on the same clock used with update()
+     * @param out array of 3 elements, filled with latitude, longitude and radius as in PositionSolver
+     * @return false if no position has been added yet
+     */
+    public synchronized boolean estimate(long timeMillis, double[] out) {
+        if (!initialized) return false;
+        double dt = Math.max(0, timeMillis - time) / 1000.0;
+        double px = x + vx * dt, py = y + vy * dt;
+        double variance = p00 + dt * (2 * p01 + dt * p11) + q * dt * dt * dt / 3;
+        out[PositionSolver.LAT] = lat0 + py / PathLoss.METERS_PER_DEGREE;
+        out[PositionSolver.LON] = lon0 + px / (PathLoss.METERS_PER_DEGREE * cos0);
+        out[PositionSolver.RADIUS] = Math.sqrt(variance);
+        return true;
+    }
+
+    /**
+     * @return the estimated speed in m/s, at the time of the last position
+     */
+    public synchronized double getSpeed() {
+        return Math.sqrt(vx * vx + vy * vy);
+    }
+
+    /**
+     * Forget all the positions, the next one starts the filter again
+     */
+    public synchronized void reset() {
+        initialized = false;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the positions to any number of subscribers, following the Reactive Streams rules (the interfaces
+ * have the same methods as org.reactivestreams and java.util.concurrent.Flow, which Android doesn't have,
+ * so adapting them is trivial).
+ * Each subscriber receives the updates on its own executor, never on the thread that publishes them, and only
+ * as many as it has requested. Positions are a state, not a log: while a subscriber has no demand only the
+ * latest update is kept for it, the older ones are dropped. The signals to a subscriber are serialized, even
+ * with an executor of several threads.
+ */
+public class PositionPublisher {
+    /**
+     * Receives the updates, see org.reactivestreams.Subscriber
+     */
+    public interface Subscriber {
+        /** Called first, nothing is sent until subscription.request() is called */
+        void onSubscribe(Subscription subscription);
+
+        void onNext(PositionUpdate update);
+
+        /** Called when the subscriber has broken the rules, e.g. requested a non-positive number of updates */
+        void onError(Throwable error);
+
+        /** Called when the publisher is closed */
+        void onComplete();
+    }
+
+    /**
+     * Link between the publisher and a subscriber, see org.reactivestreams.Subscription
+     */
+    public interface Subscription {
+        /**
+         * @param n number of updates the subscriber is ready to receive, added to the previous requests.
+         *          Long.MAX_VALUE for all of them
+         */
+        void request(long n);
+
+        /** Stop receiving updates, the ones being delivered may still arrive */
+        void cancel();
+    }
+
+    private static ExecutorService sharedExecutor;
+
+    private final CopyOnWriteArrayList<Delivery> deliveries = new CopyOnWriteArrayList<Delivery>();
+    private final Executor defaultExecutor;
+    private volatile boolean closed;
+
+    /**
+     * Deliver the updates on a shared pool of daemon threads
+     */
+    public PositionPublisher() {
+        this(sharedExecutor());
+    }
+
+    /**
+     * @param defaultExecutor where the updates are delivered to the subscribers that don't have an executor
+     */
+    public PositionPublisher(Executor defaultExecutor) {
+        if (defaultExecutor == null) throw new IllegalArgumentException("defaultExecutor can't be null");
+        this.defaultExecutor = defaultExecutor;
+    }
+
+    private static synchronized ExecutorService sharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "wlocate-publisher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * @param subscriber receives the updates on the default executor
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribe(subscriber, defaultExecutor);
+    }
+
+    /**
+     * @param subscriber receives the updates
+     * @param executor where the updates are delivered to the subscriber
+     */
+    public void subscribe(Subscriber subscriber, Executor executor) {
+        if (subscriber == null || executor == null) throw new NullPointerException();
+        Delivery delivery = new Delivery(subscriber, executor);
+        deliveries.add(delivery);
+        // a subscriber that comes after close() is completed at once
+        if (closed) delivery.completed = true;
+        delivery.schedule();
+    }
+
+    /**
+     * Send an update to all the subscribers, without waiting for them
+     * @param update the update
+     */
+    public void publish(PositionUpdate update) {
+        if (closed) return;
+        for (Delivery delivery : deliveries) {
+            delivery.latest.set(update);
+            delivery.schedule();
+        }
+    }
+
+    /**
+     * @return true if somebody is receiving the updates
+     */
+    public boolean hasSubscribers() {
+        return !deliveries.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return deliveries.size();
+    }
+
+    /**
+     * Complete all the subscriptions, after the pending updates they have requested
+     */
+    public void close() {
+        closed = true;
+        for (Delivery delivery : deliveries) {
+            delivery.completed = true;
+            delivery.schedule();
+        }
+    }
+
+    /**
+     * Sends the updates to a subscriber. The signals are sent by run(), which only one thread at a time
+     * executes: schedule() counts the calls and only the first one submits it to the executor, run() loops
+     * until it has seen all of them.
+     */
+    private class Delivery implements Subscription, Runnable {
+        final Subscriber subscriber;
+        final Executor executor;
+        final AtomicLong demand = new AtomicLong();
+        final AtomicReference<PositionUpdate> latest = new AtomicReference<PositionUpdate>();
+        final AtomicInteger pending = new AtomicInteger();
+        volatile boolean cancelled, completed;
+        volatile Throwable error;
+        private boolean subscribed;
+
+        Delivery(Subscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        void schedule() {
+            if (pending.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) error = new IllegalArgumentException("The number of requested updates must be positive");
+            else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            deliveries.remove(this);
+            latest.set(null);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            try {
+                do {
+                    if (!subscribed) {
+                        subscribed = true;
+                        subscriber.onSubscribe(this);
+                    }
+                    while (!cancelled) {
+                        if (error != null) {
+                            cancel();
+                            subscriber.onError(error);
+                            break;
+                        }
+                        if (demand.get() == 0) break;
+                        PositionUpdate update = latest.getAndSet(null);
+                        if (update == null) break;
+                        if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                        subscriber.onNext(update);
+                    }
+                    // completed without waiting for a demand that may never come
+                    if (completed && !cancelled && (latest.get() == null || demand.get() == 0)) {
+                        cancel();
+                        subscriber.onComplete();
+                    }
+                    missed = pending.addAndGet(-missed);
+                } while (missed != 0);
+            } catch (RuntimeException e) {
+                // the subscriber isn't supposed to throw, it doesn't receive anything else
+                e.printStackTrace();
+                cancel();
+                pending.set(0);
+            }
+        }
+    }
+}
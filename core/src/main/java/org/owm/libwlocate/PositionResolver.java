@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Evaluates the position of scans without any dependency on Android, so that the same pipeline runs
+ * in the library and on the JVM, e.g. in a service that resolves uploaded scans.
+ * A scan is looked up in the PositionCache, then sent to the server. The access points of the scans
+ * resolved by the server are learnt by the ApStore, which is used instead of the server when network
+ * access is disabled or the server can't be reached. With setIncremental(), the scans close to the last
+ * resolved one reuse its position.
+ * Not thread safe because of the buffers of the client: use one resolver for each thread, the cache and
+ * the ApStore can be shared.
+ */
+public class PositionResolver {
+    private final Locator client;
+    private final boolean binary;
+    private PositionCache positionCache;
+    private ApStore apStore;
+    private ApLookup apLookup;
+    private PositionSolver solver = new WeightedCentroidSolver();
+    private boolean networkAccess = true;
+    private int localFirstMinAps;
+    private ScanDiff scanDiff;
+    private CountryLocator countryLocator;
+    private ApSelector apSelector;
+
+    /**
+     * @param getposURL URL of getpos.php, null if the server can't be used: the scans are then resolved
+     *                  locally as when the server is unreachable
+     * @param binary true to use the binary format of WlocCodec instead of the text one
+     */
+    public PositionResolver(URL getposURL, boolean binary) {
+        client = getposURL != null ? new LocatorClient(getposURL, binary) : null;
+        this.binary = binary;
+    }
+
+    /**
+     * @param servers the servers, requests are hedged and retried between them. Null if no server can be used.
+     *                A single server is called directly, on the calling thread
+     * @param binary true to use the binary format of WlocCodec instead of the text one
+     */
+    public PositionResolver(LocatorPool servers, boolean binary) {
+        if (servers == null) client = null;
+        else if (servers.size() == 1) client = new LocatorClient(servers.getEndpoints()[0].getURL(), binary);
+        else client = new HedgedLocatorClient(servers, binary);
+        this.binary = binary;
+    }
+
+    /**
+     * @param cache the cache of the positions, null (the default) to not use it
+     */
+    public void setPositionCache(PositionCache cache) {
+        positionCache = cache;
+    }
+
+    /**
+     * @param store the local access point database, null (the default) to not use it
+     */
+    public void setApStore(ApStore store) {
+        apStore = store;
+    }
+
+    /**
+     * @param lookup the database used to evaluate positions locally instead of the ApStore, e.g. an ApIndex
+     *               for a large database. Null (the default) to use the ApStore
+     */
+    public void setApLookup(ApLookup lookup) {
+        apLookup = lookup;
+    }
+
+    /**
+     * @param solver evaluates the position from the access points of the local database, not null
+     */
+    public void setPositionSolver(PositionSolver solver) {
+        if (solver == null) throw new IllegalArgumentException("solver can't be null");
+        this.solver = solver;
+    }
+
+    /**
+     * @param enabled false to only use the cache and the local database
+     */
+    public void setNetworkAccess(boolean enabled) {
+        networkAccess = enabled;
+    }
+
+    /**
+     * Resolve the scans with the local database without asking the server when enough of their access points
+     * are known, e.g. because the tiles of the area have been prefetched
+     * @param minKnownAps minimum number of known access points, 0 (the default) to always ask the server first
+     */
+    public void setLocalFirst(int minKnownAps) {
+        if (minKnownAps < 0) throw new IllegalArgumentException("minKnownAps can't be negative");
+        localFirstMinAps = minKnownAps;
+    }
+
+    /**
+     * @param locator finds the country of the positions that have no country code, e.g. because they have been
+     *                evaluated locally. Null (the default) to leave it unknown
+     */
+    public void setCountryLocator(CountryLocator locator) {
+        countryLocator = locator;
+    }
+
+    /**
+     * Reuse the position of the last resolved scan for the following ones whose networks, weighted by signal
+     * strength, are similar enough. Only meant for a resolver that receives the consecutive scans of one device
+     * @param minSimilarity minimum weighted Jaccard index in (0,1], 0 (the default) to resolve every scan
+     * @param maxAgeMillis how long the position of a resolved scan can be reused, in milliseconds
+     */
+    public void setIncremental(float minSimilarity, long maxAgeMillis) {
+        scanDiff = minSimilarity > 0 ? new ScanDiff(minSimilarity, maxAgeMillis) : null;
+    }
+
+    /**
+     * @param selector told about the access points of the requests the server has no position for, so that it
+     *                 sends them last in the next requests. Null (the default) if the requests aren't chosen by one
+     */
+    public void setApSelector(ApSelector selector) {
+        apSelector = selector;
+    }
+
+    /**
+     * Evaluate the position of a scan
+     * @param request the scan
+     * @param position filled with the result
+     * @return ResultCode.OK, or the error code of the server when no position could be evaluated,
+     * ResultCode.NO_LOCAL_POSITION when network access is disabled and no access point is known
+     */
+    public int resolve(wloc_req request, WlocPosition position) {
+        return resolve(request, position, networkAccess && client != null);
+    }
+
+    /**
+     * Evaluate the positions of all the scans of a batch. Once the server can't be reached the
+     * remaining scans are resolved locally, instead of waiting for the same failure on each one
+     * @param batch the scans, the results are written in it
+     */
+    void resolve(ScanBatch batch) {
+        boolean useServer = networkAccess && client != null;
+        for (int i = 0; i < batch.size(); i++) {
+            WlocPosition position = new WlocPosition();
+            int rc = resolve(batch.requests[i], position, useServer);
+            useServer &= rc != ResultCode.CONNECTION_ERROR && rc != ResultCode.IO_ERROR;
+            batch.results[i] = rc;
+            batch.positions[i] = rc == ResultCode.OK ? position : null;
+        }
+    }
+
+    private int resolve(wloc_req request, WlocPosition position, boolean useServer) {
+        long now = System.nanoTime() / 1000000;
+        position.clear();
+        ApLookup local = apLookup != null ? apLookup : apStore;
+        if (scanDiff != null) {
+            WlocPosition reused = scanDiff.reuse(request, local, now);
+            if (reused != null) {
+                position.set(reused);
+                return ResultCode.OK;
+            }
+        }
+        if (positionCache != null) {
+            WlocPosition cached = positionCache.get(request, now);
+            WlocMetrics.get().recordCacheLookup(cached != null);
+            if (cached != null) {
+                position.set(cached);
+                if (scanDiff != null) scanDiff.resolved(request, position, now);
+                return ResultCode.OK;
+            }
+        }
+        int rc;
+        WlocPosition known = useServer && localFirstMinAps > 0 && local != null
+                ? ApLocator.locate(local, request, solver, localFirstMinAps) : null;
+        if (known != null) {
+            position.set(known);
+            rc = ResultCode.OK;
+        } else {
+            rc = useServer ? client.requestPosition(request, position)
+                    : networkAccess ? ResultCode.IO_ERROR : ResultCode.NO_LOCAL_POSITION;
+            if (rc == ResultCode.PARSING_RESPONSE_ERROR && apSelector != null)
+                apSelector.missed(request, binary ? wloc_req.WLOC_MAX_NETWORKS : request.bssids.length, now);
+            if (rc == ResultCode.OK) {
+                if (apStore != null) try {
+                    apStore.learn(request, position);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else if (rc != ResultCode.SERVER_ERROR && rc != ResultCode.PARSING_RESPONSE_ERROR && local != null) {
+                // the server is unreachable or disabled, try with the local database
+                known = ApLocator.locate(local, request, solver);
+                if (known != null) {
+                    position.set(known);
+                    rc = ResultCode.OK;
+                }
+            }
+        }
+        if (rc == ResultCode.OK) {
+            if (countryLocator != null && position.countryCode == 0)
+                position.countryCode = countryLocator.locate(position.lat, position.lon);
+            if (positionCache != null) positionCache.put(request, position, now);
+            if (scanDiff != null) scanDiff.resolved(request, position, now);
+        }
+        return rc;
+    }
+}
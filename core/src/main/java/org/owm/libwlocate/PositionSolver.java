@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Evaluates a position from access points with a known position and the signal strength
+ * they were received with. Used to locate the device from the local database, without the server.
+ * Implementations shouldn't allocate memory in solve(), it is called for every scan.
+ */
+public interface PositionSolver {
+    /** index of the latitude in the result array */
+    int LAT = 0;
+    /** index of the longitude in the result array */
+    int LON = 1;
+    /** index of the radius of uncertainty (in meters) in the result array */
+    int RADIUS = 2;
+
+    /**
+     * @param lat latitudes of the access points
+     * @param lon longitudes of the access points
+     * @param signal signal strengths, as stored in wloc_req.signal (absolute value of the RSSI in dBm, 0 if unknown)
+     * @param count number of access points to use from the arrays
+     * @param result array of at least 3 elements, filled with latitude, longitude and radius
+     * @return true if a position could be evaluated, false leaves result untouched
+     */
+    boolean solve(double[] lat, double[] lon, byte[] signal, int count, double[] result);
+}
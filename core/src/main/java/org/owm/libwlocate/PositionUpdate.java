@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * A position or a failed position request, as published by PositionPublisher. Immutable.
+ */
+public final class PositionUpdate {
+    private final int result;
+    private final double lat, lon;
+    private final float radius;
+    private final short countryCode;
+    private final long timeMillis;
+
+    /**
+     * @param result ResultCode.OK, or the error code when there is no position
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param radius the radius of uncertainty in meters
+     * @param countryCode the country code, 0 if unknown
+     * @param timeMillis when the position has been evaluated, in milliseconds since boot
+     */
+    PositionUpdate(int result, double lat, double lon, float radius, short countryCode, long timeMillis) {
+        this.result = result;
+        this.lat = lat;
+        this.lon = lon;
+        this.radius = radius;
+        this.countryCode = countryCode;
+        this.timeMillis = timeMillis;
+    }
+
+    /**
+     * @param result the error code
+     * @param timeMillis when the request failed, in milliseconds since boot
+     * @return an update without position
+     */
+    static PositionUpdate error(int result, long timeMillis) {
+        return new PositionUpdate(result, 0, 0, -1, (short) 0, timeMillis);
+    }
+
+    /** @return true if the update has a position */
+    public boolean isOk() {
+        return result == ResultCode.OK;
+    }
+
+    /** @return WLocate.WLOC_OK, or the error code when there is no position */
+    public int getResult() {
+        return result;
+    }
+
+    public double getLatitude() {
+        return lat;
+    }
+
+    public double getLongitude() {
+        return lon;
+    }
+
+    /** @return the radius of uncertainty in meters */
+    public float getRadius() {
+        return radius;
+    }
+
+    /** @return the country code, 0 if unknown. See WlocCountry */
+    public short getCountryCode() {
+        return countryCode;
+    }
+
+    /** @return when the position has been evaluated, in milliseconds since boot */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? "PositionUpdate(" + lat + ", " + lon + ", " + radius + " m)" : "PositionUpdate(error " + result + ")";
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Quadkeys of the Web Mercator tiles, as used by Bing Maps: the key of a tile at zoom z has z digits,
+ * each one choosing a quarter of the parent tile, so that nearby tiles share a prefix.
+ */
+final class Quadkey {
+    static final int MAX_ZOOM = 23;
+    /** Latitudes beyond this can't be projected */
+    static final double MAX_LATITUDE = 85.05112878;
+
+    private Quadkey() {
+    }
+
+    /**
+     * @return the column of the tile that contains the longitude
+     */
+    static int tileX(double lon, int zoom) {
+        double x = (lon + 180) / 360;
+        return clamp((int) Math.floor(x * (1 << zoom)), zoom);
+    }
+
+    /**
+     * @return the row of the tile that contains the latitude, 0 is the northernmost row
+     */
+    static int tileY(double lat, int zoom) {
+        lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat));
+        double sin = Math.sin(Math.toRadians(lat));
+        double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return clamp((int) Math.floor(y * (1 << zoom)), zoom);
+    }
+
+    private static int clamp(int tile, int zoom) {
+        return Math.max(0, Math.min((1 << zoom) - 1, tile));
+    }
+
+    /**
+     * @param x the column of the tile
+     * @param y the row of the tile
+     * @param zoom the zoom level, from 1 to MAX_ZOOM
+     * @return the quadkey of the tile
+     */
+    static String of(int x, int y, int zoom) {
+        if (zoom < 1 || zoom > MAX_ZOOM) throw new IllegalArgumentException("Invalid zoom " + zoom);
+        char[] key = new char[zoom];
+        for (int i = zoom; i > 0; i--) {
+            int mask = 1 << (i - 1);
+            int digit = 0;
+            if ((x & mask) != 0) digit += 1;
+            if ((y & mask) != 0) digit += 2;
+            key[zoom - i] = (char) ('0' + digit);
+        }
+        return new String(key);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Strict parser of the text response of getpos.php, working directly on the received bytes:
+ * <pre>
+ *   result=1
+ *   quality=77
+ *   lat=45.0612345
+ *   lon=7.6612345
+ *   ccode=1
+ * </pre>
+ * Unknown keys are ignored, lat and lon are mandatory unless the result is 0, the country code is optional.
+ * No String or other object is created while parsing.
+ */
+final class ResponseParser {
+    private static final byte[] RESULT = {'r', 'e', 's', 'u', 'l', 't', '='};
+    private static final byte[] QUALITY = {'q', 'u', 'a', 'l', 'i', 't', 'y', '='};
+    private static final byte[] LAT = {'l', 'a', 't', '='};
+    private static final byte[] LON = {'l', 'o', 'n', '='};
+    private static final byte[] CCODE = {'c', 'c', 'o', 'd', 'e', '='};
+
+    /** parseInt() result for invalid numbers */
+    static final int INVALID_INT = Integer.MIN_VALUE;
+    private static final int MAX_DIGITS = 18;
+    private static final double[] POW10 = new double[MAX_DIGITS + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i <= MAX_DIGITS; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    private ResponseParser() {
+    }
+
+    /**
+     * @param buf the response
+     * @param length number of valid bytes in buf
+     * @param position filled with the result
+     * @return ResultCode.OK, ResultCode.PARSING_RESPONSE_ERROR if the server has no position for the scan or
+     * ResultCode.SERVER_ERROR if the response is not valid
+     */
+    static int parse(byte[] buf, int length, WlocPosition position) {
+        boolean hasLat = false, hasLon = false;
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && buf[lineEnd] != '\n') lineEnd++;
+            int next = lineEnd + 1;
+            // trim
+            while (lineStart < lineEnd && buf[lineStart] <= ' ') lineStart++;
+            while (lineEnd > lineStart && buf[lineEnd - 1] <= ' ') lineEnd--;
+            if (startsWith(buf, lineStart, lineEnd, RESULT)) {
+                int result = parseInt(buf, lineStart + RESULT.length, lineEnd);
+                if (result == INVALID_INT) return ResultCode.SERVER_ERROR;
+                if (result != WlocCodec.RESULT_OK) return ResultCode.PARSING_RESPONSE_ERROR;
+            } else if (startsWith(buf, lineStart, lineEnd, QUALITY)) {
+                int quality = parseInt(buf, lineStart + QUALITY.length, lineEnd);
+                if (quality == INVALID_INT) return ResultCode.SERVER_ERROR;
+                position.setQuality((short) quality);
+            } else if (startsWith(buf, lineStart, lineEnd, LAT)) {
+                position.lat = parseDecimal(buf, lineStart + LAT.length, lineEnd);
+                if (Double.isNaN(position.lat) || Math.abs(position.lat) > 90) return ResultCode.SERVER_ERROR;
+                hasLat = true;
+            } else if (startsWith(buf, lineStart, lineEnd, LON)) {
+                position.lon = parseDecimal(buf, lineStart + LON.length, lineEnd);
+                if (Double.isNaN(position.lon) || Math.abs(position.lon) > 180) return ResultCode.SERVER_ERROR;
+                hasLon = true;
+            } else if (startsWith(buf, lineStart, lineEnd, CCODE)) {
+                int ccode = parseInt(buf, lineStart + CCODE.length, lineEnd);
+                if (ccode < 0 || ccode > Short.MAX_VALUE) return ResultCode.SERVER_ERROR;
+                position.setCountryCode((short) ccode);
+            }
+            lineStart = next;
+        }
+        return hasLat && hasLon ? ResultCode.OK : ResultCode.SERVER_ERROR;
+    }
+
+    static boolean startsWith(byte[] buf, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (buf[from + i] != prefix[i]) return false;
+        return true;
+    }
+
+    /**
+     * @return the integer in buf[from, to), or INVALID_INT if it's not a valid integer
+     */
+    static int parseInt(byte[] buf, int from, int to) {
+        boolean negative = from < to && buf[from] == '-';
+        if (negative) from++;
+        if (from == to || to - from > 9) return INVALID_INT;
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) return INVALID_INT;
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a decimal number without exponent, like "-12.3456789"
+     * @return the number in buf[from, to), or NaN if it's not a valid number
+     */
+    static double parseDecimal(byte[] buf, int from, int to) {
+        boolean negative = from < to && buf[from] == '-';
+        if (negative || (from < to && buf[from] == '+')) from++;
+        long mantissa = 0;
+        int digits = 0, decimals = -1;
+        for (int i = from; i < to; i++) {
+            byte c = buf[i];
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            int d = c - '0';
+            if (d < 0 || d > 9) return Double.NaN;
+            if (digits == MAX_DIGITS) {
+                // further decimals don't matter for a coordinate, integer digits would
+                if (decimals < 0) return Double.NaN;
+                continue;
+            }
+            mantissa = mantissa * 10 + d;
+            digits++;
+            if (decimals >= 0) decimals++;
+        }
+        if (digits == 0) return Double.NaN;
+        double value = decimals > 0 ? mantissa / POW10[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Result codes of a position request, published through the WLOC_* and *_ERROR constants of WLocate.
+ * They are kept here so that the classes that don't depend on Android can use them.
+ */
+final class ResultCode {
+    static final int OK = 0;
+    static final int CONNECTION_ERROR = 1;
+    static final int SERVER_ERROR = 2;
+    static final int PARSING_RESPONSE_ERROR = 3;
+    static final int IO_ERROR = 4;
+    static final int NO_LOCAL_POSITION = 5;
+
+    private ResultCode() {
+    }
+}
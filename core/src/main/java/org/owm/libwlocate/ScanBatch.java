@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Scans sent to the server in a single run of a DatabaseRequester, with their results.
+ * The results are filled by the requester and read by WLocate only after the batch has been handed back.
+ */
+class ScanBatch {
+    final wloc_req[] requests;
+    /** result code for each scan, ResultCode.OK or an error code */
+    final int[] results;
+    /** position for each scan, only valid when the result is WLOC_OK */
+    final WlocPosition[] positions;
+    /** System.nanoTime() when the batch was sent back to WLocate, for WlocMetrics */
+    long sentNanos;
+
+    ScanBatch(wloc_req... requests) {
+        this.requests = requests;
+        results = new int[requests.length];
+        positions = new WlocPosition[requests.length];
+    }
+
+    int size() {
+        return requests.length;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Reusable buffer for the access points of a WiFi scan, stored as MACs and RSSIs in primitive arrays.
+ * Filling it and selecting the strongest access points doesn't allocate memory, except for growing the
+ * arrays the first time a scan with more access points than ever is seen.
+ * Not thread safe, it is meant to be used by the scan receiver only.
+ */
+final class ScanBuffer {
+    static final int INITIAL_CAPACITY = 64;
+
+    private long[] macs = new long[INITIAL_CAPACITY];
+    private int[] levels = new int[INITIAL_CAPACITY];
+    // set by setRank(), access points with a higher rank are selected first whatever their level
+    private int[] ranks = new int[INITIAL_CAPACITY];
+    private int count;
+    // indices of the selected access points, strongest first
+    private int[] selected = new int[wloc_req.WLOC_MAX_NETWORKS];
+    private int selectedCount;
+
+    void clear() {
+        count = 0;
+        selectedCount = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Add an access point of the scan
+     * @param bssid the BSSID as given by the system, in any of the formats accepted by Bssid.parse()
+     * @param level the RSSI in dBm
+     * @return false if the BSSID is not valid and the access point has been skipped
+     */
+    boolean add(CharSequence bssid, int level) {
+        return add(Bssid.parse(bssid), level);
+    }
+
+    /**
+     * Add an access point of the scan
+     * @param mac the MAC, as returned by Bssid.parse()
+     * @param level the RSSI in dBm
+     * @return false if the MAC is not valid and the access point has been skipped
+     */
+    boolean add(long mac, int level) {
+        if (mac <= 0) return false; // invalid or 00:00:00:00:00:00
+        if (count == macs.length) {
+            long[] newMacs = new long[count * 2];
+            int[] newLevels = new int[count * 2];
+            int[] newRanks = new int[count * 2];
+            System.arraycopy(macs, 0, newMacs, 0, count);
+            System.arraycopy(levels, 0, newLevels, 0, count);
+            System.arraycopy(ranks, 0, newRanks, 0, count);
+            macs = newMacs;
+            levels = newLevels;
+            ranks = newRanks;
+        }
+        macs[count] = mac;
+        levels[count] = level;
+        ranks[count] = 0;
+        count++;
+        return true;
+    }
+
+    long mac(int i) {
+        return macs[i];
+    }
+
+    int level(int i) {
+        return levels[i];
+    }
+
+    /**
+     * @param i index of an access point, in the order they have been added
+     * @param rank the access points with a higher rank are selected before the ones with a lower rank,
+     *             the strongest first among the ones with the same rank. 0 after add()
+     */
+    void setRank(int i, int rank) {
+        ranks[i] = rank;
+    }
+
+    /**
+     * Select the strongest access points with a partial insertion sort, which is linear in the number
+     * of access points for the small n used in the requests. Access points with the same RSSI keep the
+     * order of the scan. The ranks given by setRank() come before the RSSI.
+     * @param n the maximum number of access points to select
+     * @return the number of selected access points
+     */
+    int selectStrongest(int n) {
+        return select(n, false);
+    }
+
+    /**
+     * Select the strongest access points like selectStrongest(), but only one BSSID for each physical access
+     * point (see Bssid.sameDevice()), the strongest one. Modern access points advertise a BSSID for each
+     * radio and SSID, which would otherwise fill the request with the same position several times.
+     * @param n the maximum number of access points to select
+     * @return the number of selected access points
+     */
+    int selectStrongestDevices(int n) {
+        return select(n, true);
+    }
+
+    private int select(int n, boolean perDevice) {
+        if (selected.length < n) selected = new int[n];
+        int k = 0;
+        for (int i = 0; i < count; i++) {
+            long key = key(i);
+            if (k == n && key <= key(selected[n - 1])) continue;
+            int j = perDevice ? selectedDevice(macs[i], k) : -1;
+            if (j >= 0) {
+                // replaces the weaker BSSID of the same access point, moving up from its place
+                if (key <= key(selected[j])) continue;
+            } else j = k < n ? k++ : n - 1;
+            while (j > 0 && key(selected[j - 1]) < key) {
+                selected[j] = selected[j - 1];
+                j--;
+            }
+            selected[j] = i;
+        }
+        selectedCount = k;
+        return k;
+    }
+
+    private long key(int i) {
+        return ((long) ranks[i] << 32) + levels[i];
+    }
+
+    /**
+     * @return the index in selected of a BSSID of the same access point as mac, -1 if there is none
+     */
+    private int selectedDevice(long mac, int k) {
+        for (int j = 0; j < k; j++) {
+            if (Bssid.sameDevice(macs[selected[j]], mac)) return j;
+        }
+        return -1;
+    }
+
+    int selectedCount() {
+        return selectedCount;
+    }
+
+    /**
+     * @return the index of the i-th selected access point, in the order they have been added
+     */
+    int selectedIndex(int i) {
+        return selected[i];
+    }
+
+    long selectedMac(int i) {
+        return macs[selected[i]];
+    }
+
+    int selectedLevel(int i) {
+        return levels[selected[i]];
+    }
+
+    /**
+     * Copy the selected access points into a request, strongest first
+     * @param request the request to fill, only the access points its arrays can hold are copied
+     */
+    void fill(wloc_req request) {
+        for (int i = 0; i < selectedCount && i < request.bssids.length; i++) {
+            request.macs[i] = selectedMac(i);
+            request.bssids[i] = Bssid.format(selectedMac(i));
+            request.signal[i] = (byte) Math.abs(selectedLevel(i));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Compares each scan with the last one that was resolved, so that the scans of a device that doesn't move
+ * reuse that position instead of being resolved again.
+ * Two scans are close when the weighted Jaccard index of their networks, weighted by signal strength,
+ * is at least the minimum similarity: networks that appear or disappear at the edge of the range don't
+ * matter much, a change of the strongest ones does. The position of a close scan is the previous one,
+ * moved towards the networks that have appeared if the local database knows them.
+ * Not thread safe.
+ */
+final class ScanDiff {
+    private final float minSimilarity;
+    private final long maxAgeMillis;
+    private long[] lastMacs = new long[wloc_req.WLOC_MAX_NETWORKS], scanMacs = new long[wloc_req.WLOC_MAX_NETWORKS];
+    private double[] lastWeights = new double[wloc_req.WLOC_MAX_NETWORKS],
+            scanWeights = new double[wloc_req.WLOC_MAX_NETWORKS];
+    private final double[] ap = new double[3];
+    private int lastCount = -1;
+    private WlocPosition lastPosition;
+    private long lastTime;
+    private long reused;
+
+    /**
+     * @param minSimilarity minimum weighted Jaccard index (0..1] between a scan and the last resolved one
+     *                      to reuse its position
+     * @param maxAgeMillis how long the position of a resolved scan can be reused, in milliseconds
+     */
+    ScanDiff(float minSimilarity, long maxAgeMillis) {
+        if (minSimilarity <= 0 || minSimilarity > 1) throw new IllegalArgumentException("minSimilarity must be in (0,1]");
+        this.minSimilarity = minSimilarity;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Look whether a scan is close to the last resolved one
+     * @param request the new scan
+     * @param local the local database used to adjust the position, null to reuse it as it is
+     * @param now current time in milliseconds, on the same clock used with resolved()
+     * @return the position of the scan, or null if it has to be resolved
+     */
+    WlocPosition reuse(wloc_req request, ApLookup local, long now) {
+        if (lastCount < 0 || now - lastTime > maxAgeMillis) return null;
+        if (scanMacs.length < request.bssids.length) {
+            scanMacs = new long[request.bssids.length];
+            scanWeights = new double[request.bssids.length];
+        }
+        int count = ScanSimilarity.sortedScan(request, scanMacs, scanWeights);
+        if (count == 0 || ScanSimilarity.weightedJaccard(lastMacs, lastWeights, lastCount,
+                scanMacs, scanWeights, count) < minSimilarity) return null;
+        // the common networks vouch for the previous position, the new ones known locally pull it towards them
+        double sumLat = 0, sumLon = 0, sumWeights = 0, common = 0;
+        int i = 0;
+        for (int j = 0; j < count; j++) {
+            while (i < lastCount && lastMacs[i] < scanMacs[j]) i++;
+            if (i < lastCount && lastMacs[i] == scanMacs[j]) common += scanWeights[j];
+            else if (local != null && local.lookup(scanMacs[j], ap)) {
+                sumLat += ap[0] * scanWeights[j];
+                sumLon += ap[1] * scanWeights[j];
+                sumWeights += scanWeights[j];
+            }
+        }
+        WlocPosition position = new WlocPosition();
+        position.set(lastPosition);
+        if (sumWeights > 0) {
+            position.lat = (lastPosition.lat * common + sumLat) / (common + sumWeights);
+            position.lon = (lastPosition.lon * common + sumLon) / (common + sumWeights);
+        }
+        reused++;
+        return position;
+    }
+
+    /**
+     * Remember a scan and the position it has been resolved to
+     * @param request the scan
+     * @param position its position
+     * @param now current time in milliseconds
+     */
+    void resolved(wloc_req request, WlocPosition position, long now) {
+        if (lastMacs.length < request.bssids.length) {
+            lastMacs = new long[request.bssids.length];
+            lastWeights = new double[request.bssids.length];
+        }
+        lastCount = ScanSimilarity.sortedScan(request, lastMacs, lastWeights);
+        lastPosition = new WlocPosition();
+        lastPosition.set(position);
+        lastTime = now;
+    }
+
+    /**
+     * Forget the last resolved scan, the next one is resolved whatever it is
+     */
+    void reset() {
+        lastCount = -1;
+        lastPosition = null;
+    }
+
+    /** @return number of scans that reused the position of the previous one */
+    long getReused() {
+        return reused;
+    }
+}
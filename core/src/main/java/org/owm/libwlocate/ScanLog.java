@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Reads and writes the newline-delimited JSON records of the scan logs resolved by BulkResolver.
+ * A scan is one line like:
+ * <pre>{"id":"scan-1","networks":[{"bssid":"00:11:22:33:44:55","level":-61},{"bssid":"...","level":-80}]}</pre>
+ * The id can be any JSON value and is copied as it is to the result. A recorded trace can also have the time of
+ * each scan in milliseconds, like "time":1500, other keys are ignored. The strongest networks are selected as
+ * for the scans of the device, one for each physical access point.
+ * A result is one line like:
+ * <pre>{"id":"scan-1","result":0,"lat":45.06,"lon":7.66,"radius":40.0,"country":"IT"}</pre>
+ * with the position only when the result is ResultCode.OK, and the country only when it is known.
+ * Not thread safe, the buffers are reused from one record to the next.
+ */
+final class ScanLog {
+    private static final MalformedRecord MALFORMED = new MalformedRecord();
+    /** Maximum nesting of the values that are skipped, a deeper record is malformed */
+    static final int MAX_DEPTH = 32;
+
+    private final ScanBuffer scanBuffer = new ScanBuffer();
+    private String line;
+    private int pos;
+    private int idStart, idEnd;
+    private long time;
+
+    /**
+     * Parse a scan
+     * @param line the record
+     * @param request filled with the networks of the scan, must be a new one
+     * @return false if the line is not a valid record
+     */
+    boolean parse(String line, wloc_req request) {
+        this.line = line;
+        pos = 0;
+        idStart = idEnd = -1;
+        time = -1;
+        scanBuffer.clear();
+        try {
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    skipWhitespace();
+                    int keyStart = pos + 1;
+                    skipString();
+                    int keyEnd = pos - 1;
+                    expect(':');
+                    if (isKey(keyStart, keyEnd, "networks")) readNetworks();
+                    else if (isKey(keyStart, keyEnd, "id")) {
+                        skipWhitespace();
+                        idStart = pos;
+                        skipValue(1);
+                        idEnd = pos;
+                    } else if (isKey(keyStart, keyEnd, "time") && startsNumber()) time = readTime();
+                    else skipValue(1);
+                } while (consume(','));
+                expect('}');
+            }
+            skipWhitespace();
+            if (pos != line.length()) return false;
+        } catch (MalformedRecord e) {
+            return false;
+        }
+        scanBuffer.selectStrongestDevices(wloc_req.WLOC_MAX_NETWORKS);
+        scanBuffer.fill(request);
+        return true;
+    }
+
+    /**
+     * @return the time of the last parsed scan in milliseconds, -1 if the record has none
+     */
+    long getTime() {
+        return time;
+    }
+
+    /**
+     * Append the result of the last parsed scan
+     * @param out where the line is appended, with the line separator
+     * @param result ResultCode.OK or the error code
+     * @param position the position, only used when the result is ResultCode.OK
+     */
+    void appendResult(StringBuilder out, int result, WlocPosition position) {
+        out.append("{\"id\":");
+        if (idStart >= 0) out.append(line, idStart, idEnd);
+        else out.append("null");
+        out.append(",\"result\":").append(result);
+        if (result == ResultCode.OK) {
+            out.append(",\"lat\":").append(position.getLatitude())
+                    .append(",\"lon\":").append(position.getLongitude())
+                    .append(",\"radius\":").append(position.getRadius());
+            String country = WlocCountry.fromCode(position.getCountryCode());
+            if (country.length() > 0) out.append(",\"country\":\"").append(country).append('"');
+        }
+        out.append("}\n");
+    }
+
+    /**
+     * Append the result for a line that couldn't be parsed
+     * @param out where the line is appended, with the line separator
+     * @param lineNumber number of the line in the log, starting from 1
+     */
+    static void appendMalformed(StringBuilder out, long lineNumber) {
+        out.append("{\"line\":").append(lineNumber).append(",\"error\":\"malformed record\"}\n");
+    }
+
+    private void readNetworks() {
+        expect('[');
+        if (consume(']')) return;
+        do {
+            long mac = Bssid.INVALID;
+            int level = Integer.MIN_VALUE;
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    skipWhitespace();
+                    int keyStart = pos + 1;
+                    skipString();
+                    int keyEnd = pos - 1;
+                    expect(':');
+                    skipWhitespace();
+                    if (isKey(keyStart, keyEnd, "bssid")) {
+                        int start = pos + 1;
+                        skipString();
+                        mac = Bssid.parse(line, start, pos - 1);
+                    } else if (isKey(keyStart, keyEnd, "level")) level = readInt();
+                    else skipValue(3); // in the object of a network, in the array
+                } while (consume(','));
+                expect('}');
+            }
+            if (level != Integer.MIN_VALUE) scanBuffer.add(mac, level);
+        } while (consume(','));
+        expect(']');
+    }
+
+    private boolean isKey(int start, int end, String key) {
+        return end - start == key.length() && line.regionMatches(start, key, 0, key.length());
+    }
+
+    private void skipWhitespace() {
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return;
+            pos++;
+        }
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (pos < line.length() && line.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) throw MALFORMED;
+    }
+
+    /** Skip a string, pos must be on the opening quote or on whitespace before it */
+    private void skipString() {
+        expect('"');
+        while (pos < line.length()) {
+            char c = line.charAt(pos++);
+            if (c == '"') return;
+            if (c == '\\') pos++;
+        }
+        throw MALFORMED;
+    }
+
+    private int readInt() {
+        boolean negative = consume('-');
+        int start = pos, value = 0;
+        while (pos < line.length() && line.charAt(pos) >= '0' && line.charAt(pos) <= '9' && pos - start < 9)
+            value = value * 10 + line.charAt(pos++) - '0';
+        if (pos == start) throw MALFORMED;
+        // decimals are truncated, RSSIs are integer dBm anyway
+        if (consume('.')) skipNumberTail();
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return true if the next value is a number that isn't negative
+     */
+    private boolean startsNumber() {
+        skipWhitespace();
+        return pos < line.length() && line.charAt(pos) >= '0' && line.charAt(pos) <= '9';
+    }
+
+    private long readTime() {
+        int start = pos;
+        long value = 0;
+        while (pos < line.length() && line.charAt(pos) >= '0' && line.charAt(pos) <= '9' && pos - start < 18)
+            value = value * 10 + line.charAt(pos++) - '0';
+        if (pos == start) throw MALFORMED;
+        if (consume('.')) skipNumberTail();
+        return value;
+    }
+
+    private void skipNumberTail() {
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if ((c < '0' || c > '9') && c != '.' && c != 'e' && c != 'E' && c != '+' && c != '-') return;
+            pos++;
+        }
+    }
+
+    /**
+     * @param depth number of objects and arrays the value is in, past MAX_DEPTH the record is malformed
+     */
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) throw MALFORMED;
+        skipWhitespace();
+        if (pos >= line.length()) throw MALFORMED;
+        char c = line.charAt(pos);
+        if (c == '"') skipString();
+        else if (c == '{') {
+            pos++;
+            if (consume('}')) return;
+            do {
+                skipString();
+                expect(':');
+                skipValue(depth + 1);
+            } while (consume(','));
+            expect('}');
+        } else if (c == '[') {
+            pos++;
+            if (consume(']')) return;
+            do {
+                skipValue(depth + 1);
+            } while (consume(','));
+            expect(']');
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            pos++;
+            skipNumberTail();
+        } else if (line.startsWith("true", pos)) pos += 4;
+        else if (line.startsWith("false", pos)) pos += 5;
+        else if (line.startsWith("null", pos)) pos += 4;
+        else throw MALFORMED;
+    }
+
+    /** Thrown by the parsing methods, without a stack trace as it's used as a return value */
+    private static class MalformedRecord extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans waiting to be sent to the server together in a ScanBatch: they are sent when there are batchSize
+ * of them, or when the first one has waited for the linger time. While a batch is running the scans keep
+ * being queued, up to MAX_PENDING_BATCHES batches, then the oldest ones are dropped. A batch has at most
+ * batchSize scans, the others wait for the next one, and the linger time starts again for them.
+ * Not thread safe, WLocate uses it on the main thread.
+ */
+final class ScanQueue {
+    /** Maximum number of scans kept waiting, as a multiple of the batch size */
+    static final int MAX_PENDING_BATCHES = 4;
+
+    private final ArrayList<wloc_req> scans = new ArrayList<wloc_req>();
+    private int batchSize = 1;
+    private long lingerMillis;
+    private long since;
+
+    /**
+     * @param batchSize number of scans sent together, 1 disables batching
+     * @param lingerMillis maximum time a scan waits for the batch to be full
+     */
+    void setBatching(int batchSize, long lingerMillis) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+        if (lingerMillis < 0) throw new IllegalArgumentException("lingerMillis can't be negative");
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * @param request the scan
+     * @param now current time in milliseconds
+     * @return the oldest scan, dropped to make room, or null
+     */
+    wloc_req add(wloc_req request, long now) {
+        wloc_req dropped = null;
+        if (scans.size() >= batchSize * MAX_PENDING_BATCHES) {
+            // the linger time doesn't count from a scan that isn't queued anymore
+            dropped = scans.remove(0);
+            since = now;
+        }
+        if (scans.isEmpty()) since = now;
+        scans.add(request);
+        return dropped;
+    }
+
+    boolean isEmpty() {
+        return scans.isEmpty();
+    }
+
+    int size() {
+        return scans.size();
+    }
+
+    /**
+     * @return true if there are enough scans for a batch
+     */
+    boolean isFull() {
+        return scans.size() >= batchSize;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return true if the scans have to be sent: the batch is full or the first scan has waited long enough
+     */
+    boolean isDue(long now) {
+        return !scans.isEmpty() && (isFull() || now - since >= lingerMillis);
+    }
+
+    /**
+     * @param now current time in milliseconds, when the scans left in the queue start waiting again
+     * @return the oldest batchSize scans at most, in the order they have been added, or null if there are none
+     */
+    ScanBatch take(long now) {
+        if (scans.isEmpty()) return null;
+        List<wloc_req> first = scans.subList(0, Math.min(batchSize, scans.size()));
+        ScanBatch batch = new ScanBatch(first.toArray(new wloc_req[first.size()]));
+        first.clear();
+        since = now;
+        return batch;
+    }
+}
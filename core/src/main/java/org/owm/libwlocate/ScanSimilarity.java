@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Set similarity between scans, on the sorted sets of MACs of their networks.
+ * The weighted variants also take the signal strength into account, so that the strongest networks count the most.
+ */
+final class ScanSimilarity {
+    private ScanSimilarity() {
+    }
+
+    /**
+     * Write the MACs of the request into out as a sorted set, invalid and duplicate ones are skipped
+     * @param request the request data
+     * @param out array of at least request.bssids.length elements
+     * @return the number of MACs written
+     */
+    static int sortedMacs(wloc_req request, long[] out) {
+        int count = 0;
+        for (int i = 0; i < request.bssids.length; i++) {
+            long mac = request.macAt(i);
+            if (mac > 0) out[count++] = mac;
+        }
+        // insertion sort, there are only a few networks
+        for (int i = 1; i < count; i++) {
+            long mac = out[i];
+            int j = i;
+            while (j > 0 && out[j - 1] > mac) {
+                out[j] = out[j - 1];
+                j--;
+            }
+            out[j] = mac;
+        }
+        int unique = count > 0 ? 1 : 0;
+        for (int i = 1; i < count; i++)
+            if (out[i] != out[unique - 1]) out[unique++] = out[i];
+        return unique;
+    }
+
+    /**
+     * @param a first sorted set
+     * @param na number of elements of a
+     * @param b second sorted set
+     * @param nb number of elements of b
+     * @return the Jaccard index of the two sets, size of the intersection over size of the union,
+     * 1 if both are empty
+     */
+    static float jaccard(long[] a, int na, long[] b, int nb) {
+        if (na == 0 && nb == 0) return 1;
+        int i = 0, j = 0, common = 0;
+        while (i < na && j < nb) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) i++;
+            else j++;
+        }
+        return (float) common / (na + nb - common);
+    }
+
+    /**
+     * Write the MACs of the request into macs as a sorted set, with the weight of each network in weights:
+     * the inverse of its estimated distance. Invalid MACs are skipped, duplicates keep the highest weight
+     * @param request the request data
+     * @param macs array of at least request.bssids.length elements
+     * @param weights array of at least request.bssids.length elements
+     * @return the number of MACs written
+     */
+    static int sortedScan(wloc_req request, long[] macs, double[] weights) {
+        int count = 0;
+        for (int i = 0; i < request.bssids.length; i++) {
+            long mac = request.macAt(i);
+            if (mac <= 0) continue;
+            double weight = 1 / PathLoss.distance(request.signal[i]);
+            int j = count++;
+            while (j > 0 && macs[j - 1] > mac) {
+                macs[j] = macs[j - 1];
+                weights[j] = weights[j - 1];
+                j--;
+            }
+            macs[j] = mac;
+            weights[j] = weight;
+        }
+        int unique = count > 0 ? 1 : 0;
+        for (int i = 1; i < count; i++) {
+            if (macs[i] != macs[unique - 1]) {
+                macs[unique] = macs[i];
+                weights[unique++] = weights[i];
+            } else weights[unique - 1] = Math.max(weights[unique - 1], weights[i]);
+        }
+        return unique;
+    }
+
+    /**
+     * @param a first sorted set
+     * @param wa weights of the elements of a
+     * @param na number of elements of a
+     * @param b second sorted set
+     * @param wb weights of the elements of b
+     * @param nb number of elements of b
+     * @return the weighted Jaccard index of the two sets, the sum of the smallest weight of each element over
+     * the sum of the largest one (a missing element weighs 0), 1 if both are empty
+     */
+    static float weightedJaccard(long[] a, double[] wa, int na, long[] b, double[] wb, int nb) {
+        if (na == 0 && nb == 0) return 1;
+        double min = 0, max = 0;
+        int i = 0, j = 0;
+        while (i < na || j < nb) {
+            if (i < na && j < nb && a[i] == b[j]) {
+                min += Math.min(wa[i], wb[j]);
+                max += Math.max(wa[i], wb[j]);
+                i++;
+                j++;
+            } else if (j == nb || (i < na && a[i] < b[j])) max += wa[i++];
+            else max += wb[j++];
+        }
+        return (float) (min / max);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State written by the GPS listener, the scan receiver and the requesters, and read from any thread.
+ * It is published as an immutable LocationState through a single atomic reference: readers get a consistent
+ * snapshot without locks, writers replace the whole snapshot with compare-and-set and retry when another
+ * thread has changed it in the meantime.
+ */
+final class SharedLocationState {
+    private final AtomicReference<LocationState> state = new AtomicReference<LocationState>(LocationState.INITIAL);
+
+    /** @return the current snapshot */
+    LocationState get() {
+        return state.get();
+    }
+
+    /**
+     * Publish a GPS fix
+     * @param millis when it has been received, in milliseconds since boot
+     */
+    void gpsFix(double lat, double lon, float radius, float speed, float cog, long millis) {
+        LocationState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withGpsFix(lat, lon, radius, speed, cog, millis)));
+    }
+
+    void gpsAvailable(boolean available) {
+        LocationState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withGpsAvailable(available)));
+    }
+
+    /**
+     * The GPS is only available if its last fix is recent enough
+     * @param now current time in milliseconds since boot
+     * @param maxAgeMillis maximum age of the last fix
+     * @return the new snapshot
+     */
+    LocationState expireGps(long now, long maxAgeMillis) {
+        LocationState current, next;
+        do {
+            current = state.get();
+            next = current.withGpsAvailable(current.isGpsAvailable() && now - current.getGpsFixMillis() < maxAgeMillis);
+        } while (!state.compareAndSet(current, next));
+        return next;
+    }
+
+    void scanStarted() {
+        LocationState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withScanStarted(true)));
+    }
+
+    /**
+     * Take the results of the scan that has been started, only once
+     * @return true if a scan had been started and nobody else has taken it
+     */
+    boolean takeScan() {
+        LocationState current;
+        do {
+            current = state.get();
+            if (!current.isScanStarted()) return false;
+        } while (!state.compareAndSet(current, current.withScanStarted(false)));
+        return true;
+    }
+
+    /**
+     * Publish the networks of a scan, the position of the previous one is forgotten
+     * @param request the request built from the scan
+     * @param scanResults the networks as returned by the system
+     */
+    void scanReceived(wloc_req request, List<?> scanResults) {
+        LocationState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withScan(request, scanResults)));
+    }
+
+    /**
+     * Publish how the position of the last scan has been evaluated
+     * @param method one of the LocationState.METHOD_* values
+     * @param speed the speed in km/h, a negative value if unknown
+     */
+    void located(int method, float speed) {
+        LocationState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withMethod(method, speed)));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of downloaded tiles, one file each. When the total size is over the limit, the least recently
+ * used tiles are deleted: reading a tile or its time counts as a use. The files are written to a temporary file
+ * and renamed, so a tile is never half written.
+ * The limit only bounds the files of the directory. TilePrefetcher uses the cache to know when the tiles have
+ * been fetched, the access points imported from them into the ApStore stay there after the tile is evicted.
+ */
+public class TileCache {
+    static final String SUFFIX = ".tile";
+
+    private final File dir;
+    private final long maxBytes;
+    // tile key to file size, least recently used first
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Open a cache, the tiles already in the directory are kept
+     * @param dir the directory, created if needed
+     * @param maxBytes maximum total size of the tile files
+     * @throws IOException if the directory can't be created
+     */
+    public TileCache(File dir, long maxBytes) throws IOException {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) throw new IOException("Can't list " + dir);
+        // without access times, the oldest downloads are evicted first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l > r ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            sizes.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    /**
+     * @param key the tile key, the tile becomes the most recently used one
+     * @return when the tile was stored, in milliseconds since the epoch, or -1 if it isn't in the cache
+     */
+    public synchronized long getTime(String key) {
+        if (sizes.get(key) == null) return -1;
+        return file(key).lastModified();
+    }
+
+    /**
+     * @param key the tile key
+     * @return the content of the tile, or null if it isn't in the cache
+     * @throws IOException if the file can't be read
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        Long size = sizes.get(key);
+        if (size == null) return null;
+        byte[] data = new byte[(int) (long) size];
+        DataInputStream in = new DataInputStream(new FileInputStream(file(key)));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Store a tile, replacing the previous content
+     * @param key the tile key
+     * @param data the content of the tile
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void put(String key, byte[] data) throws IOException {
+        File tmp = new File(dir, key + SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        File file = file(key);
+        if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+            throw new IOException("Can't replace " + file);
+        Long old = sizes.put(key, (long) data.length);
+        totalBytes += data.length - (old != null ? old : 0);
+        evict();
+    }
+
+    /** @return the number of tiles */
+    public synchronized int size() {
+        return sizes.size();
+    }
+
+    /** @return the total size of the tiles */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private File file(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        // the last tile is kept even if it's too big alone
+        while (totalBytes > maxBytes && sizes.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (!file(entry.getKey()).delete()) continue;
+            totalBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+}
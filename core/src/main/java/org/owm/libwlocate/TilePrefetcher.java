@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads in background the access points of the tiles around a position and imports them into the
+ * ApStore, so that the next scans in the same area can be resolved locally.
+ * The tiles are Web Mercator tiles identified by their quadkey, at the URL tileURL + quadkey. A tile has
+ * the records of ApStore after a 16 byte header:
+ * <pre>int magic "WLAT", short version, short record size, int count, int reserved</pre>
+ * with at most MAX_TILE_RECORDS records, longer downloads are dropped.
+ * A tile that doesn't exist on the server (404) is cached as an empty one. The tiles are kept in a
+ * TileCache and downloaded again only when they are older than the maximum age.
+ * The store is flushed once, when all the queued tiles have been imported, as each flush rewrites it.
+ */
+public class TilePrefetcher {
+    static final int MAGIC = 0x574C4154; // "WLAT"
+    static final short VERSION = 1;
+    public static final int DEFAULT_ZOOM = 14;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    /** Maximum number of tiles waiting to be downloaded, others are skipped until the next position */
+    static final int MAX_PENDING = 32;
+    static final int TIMEOUT_MILLIS = 15000;
+    /** Maximum number of access points of a tile, larger tiles are not valid */
+    static final int MAX_TILE_RECORDS = 64 * 1024;
+    static final int MAX_TILE_SIZE = 16 + MAX_TILE_RECORDS * ApStore.RECORD_SIZE;
+
+    private final String tileURL;
+    private final TileCache cache;
+    private final ApStore store;
+    private final ThreadPoolExecutor executor;
+    private final HashSet<String> pending = new HashSet<String>();
+    private final AtomicLong fetched = new AtomicLong(), failures = new AtomicLong();
+    private int zoom = DEFAULT_ZOOM;
+    private int radius = 1;
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    /**
+     * @param tileURL prefix of the URLs of the tiles, the quadkey is appended to it
+     * @param cache where the downloaded tiles are kept
+     * @param store the local database the access points are imported into
+     */
+    public TilePrefetcher(String tileURL, TileCache cache, ApStore store) {
+        this.tileURL = tileURL;
+        this.cache = cache;
+        this.store = store;
+        executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "wlocate-tiles");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param zoom zoom level of the tiles, from 1 to 23. At 14 (the default) a tile is about 2.4 km wide
+     *             at the equator
+     * @param radius number of tiles around the one of the position that are fetched too, 1 (the default)
+     *               for a 3x3 square
+     */
+    public synchronized void setArea(int zoom, int radius) {
+        if (zoom < 1 || zoom > Quadkey.MAX_ZOOM) throw new IllegalArgumentException("Invalid zoom " + zoom);
+        if (radius < 0) throw new IllegalArgumentException("radius can't be negative");
+        this.zoom = zoom;
+        this.radius = radius;
+    }
+
+    /**
+     * @param maxAgeMillis cached tiles older than this are downloaded again
+     */
+    public synchronized void setMaxAge(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Queue the download of the tiles around a position that are not in the cache or are too old.
+     * Returns immediately
+     * @param lat the latitude
+     * @param lon the longitude
+     */
+    public synchronized void prefetch(double lat, double lon) {
+        int cx = Quadkey.tileX(lon, zoom), cy = Quadkey.tileY(lat, zoom), last = (1 << zoom) - 1;
+        long now = System.currentTimeMillis();
+        for (int y = Math.max(0, cy - radius); y <= Math.min(last, cy + radius); y++) {
+            for (int x = cx - radius; x <= cx + radius; x++) {
+                // the columns wrap around the antimeridian
+                final String key = Quadkey.of((x + last + 1) & last, y, zoom);
+                long time = cache.getTime(key);
+                if ((time >= 0 && now - time < maxAgeMillis) || pending.contains(key)) continue;
+                if (pending.size() >= MAX_PENDING) return;
+                pending.add(key);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean last;
+                        try {
+                            fetch(key);
+                        } finally {
+                            synchronized (TilePrefetcher.this) {
+                                pending.remove(key);
+                                last = pending.isEmpty();
+                            }
+                        }
+                        if (last) {
+                            try {
+                                store.flush();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Download a tile, store it in the cache and import it. The store is not flushed
+     * @param key the quadkey of the tile
+     * @return the number of imported access points, -1 if the tile couldn't be downloaded or is not valid
+     */
+    int fetch(String key) {
+        HttpURLConnection con = null;
+        try {
+            con = (HttpURLConnection) new URL(tileURL + key).openConnection();
+            con.setConnectTimeout(TIMEOUT_MILLIS);
+            con.setReadTimeout(TIMEOUT_MILLIS);
+            byte[] data;
+            int rc = con.getResponseCode();
+            if (rc == HttpURLConnection.HTTP_NOT_FOUND) data = emptyTile();
+            else if (rc == HttpURLConnection.HTTP_OK) data = readAll(con.getInputStream(), MAX_TILE_SIZE);
+            else data = null;
+            if (data == null) {
+                failures.incrementAndGet();
+                return -1;
+            }
+            int count = importTile(data, store);
+            if (count < 0) {
+                failures.incrementAndGet();
+                return -1;
+            }
+            cache.put(key, data);
+            fetched.incrementAndGet();
+            return count;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            return -1;
+        } finally {
+            if (con != null) con.disconnect();
+        }
+    }
+
+    /**
+     * Import the access points of a tile. The ones whose position has been learnt from GPS fixes (see ApLearner)
+     * are kept as they are
+     * @param data the tile
+     * @param store the destination, the records are written on its next flush()
+     * @return the number of access points, -1 if the tile is not valid
+     */
+    static int importTile(byte[] data, ApStore store) {
+        ByteBuffer tile = ByteBuffer.wrap(data);
+        int count;
+        try {
+            if (tile.getInt() != MAGIC || tile.getShort() != VERSION || tile.getShort() != ApStore.RECORD_SIZE)
+                return -1;
+            count = tile.getInt();
+            tile.getInt();
+            if (count < 0 || count > MAX_TILE_RECORDS || tile.remaining() < (long) count * ApStore.RECORD_SIZE)
+                return -1;
+        } catch (BufferUnderflowException e) {
+            return -1;
+        }
+        for (int i = 0; i < count; i++) {
+            long mac = tile.getLong();
+            double lat = tile.getInt() / 1e7, lon = tile.getInt() / 1e7;
+            short quality = tile.getShort();
+            tile.getShort();
+            if (mac > 0 && Math.abs(lat) <= 90 && Math.abs(lon) <= 180 && store.weight(mac) <= 0)
+                store.put(mac, lat, lon, quality);
+        }
+        return count;
+    }
+
+    static byte[] emptyTile() {
+        ByteBuffer tile = ByteBuffer.allocate(16);
+        tile.putInt(MAGIC).putShort(VERSION).putShort((short) ApStore.RECORD_SIZE).putInt(0).putInt(0);
+        return tile.array();
+    }
+
+    /**
+     * @param max maximum number of bytes
+     * @return the content of the stream, or null if it's longer than max
+     */
+    private static byte[] readAll(InputStream in, int max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try {
+            while ((read = in.read(buffer)) != -1) {
+                if (out.size() + read > max) return null;
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /** @return number of tiles downloaded and imported */
+    public long getFetched() {
+        return fetched.get();
+    }
+
+    /** @return number of tiles that couldn't be downloaded or were not valid */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Stop the background thread, queued downloads are dropped
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
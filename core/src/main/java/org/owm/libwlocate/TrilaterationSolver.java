@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Least squares trilateration: looks for the point whose distances from the access points best match
+ * the ones estimated from the signal strengths, with a few Gauss-Newton iterations starting from the
+ * weighted centroid. With less than 3 access points the weighted centroid is returned.
+ */
+public class TrilaterationSolver implements PositionSolver {
+    static final int ITERATIONS = 10;
+    /** Iterations stop when the step is shorter than this, in meters */
+    static final double CONVERGENCE = 0.1;
+
+    private final WeightedCentroidSolver centroid = new WeightedCentroidSolver();
+
+    @Override
+    public boolean solve(double[] lat, double[] lon, byte[] signal, int count, double[] result) {
+        if (!centroid.solve(lat, lon, signal, count, result)) return false;
+        if (count < 3) return true;
+        // work in meters on a plane tangent at the centroid
+        double lat0 = result[LAT], lon0 = result[LON];
+        double cos = Math.cos(Math.toRadians(lat0));
+        double x = 0, y = 0;
+        for (int it = 0; it < ITERATIONS; it++) {
+            // normal equations of the linearized problem: (J'WJ) step = -J'W r
+            double a11 = 0, a12 = 0, a22 = 0, b1 = 0, b2 = 0;
+            for (int i = 0; i < count; i++) {
+                double d = PathLoss.distance(signal[i]);
+                double dx = x - (lon[i] - lon0) * PathLoss.METERS_PER_DEGREE * cos;
+                double dy = y - (lat[i] - lat0) * PathLoss.METERS_PER_DEGREE;
+                double range = Math.max(Math.sqrt(dx * dx + dy * dy), 1e-3);
+                double jx = dx / range, jy = dy / range, r = range - d, w = 1 / d;
+                a11 += w * jx * jx;
+                a12 += w * jx * jy;
+                a22 += w * jy * jy;
+                b1 -= w * jx * r;
+                b2 -= w * jy * r;
+            }
+            double det = a11 * a22 - a12 * a12;
+            if (Math.abs(det) < 1e-12) break; // access points on a line, keep what we have
+            double sx = (a22 * b1 - a12 * b2) / det, sy = (a11 * b2 - a12 * b1) / det;
+            x += sx;
+            y += sy;
+            if (sx * sx + sy * sy < CONVERGENCE * CONVERGENCE) break;
+        }
+        // radius from the weighted residuals
+        double sumWeights = 0, sumResiduals = 0;
+        for (int i = 0; i < count; i++) {
+            double d = PathLoss.distance(signal[i]);
+            double dx = x - (lon[i] - lon0) * PathLoss.METERS_PER_DEGREE * cos;
+            double dy = y - (lat[i] - lat0) * PathLoss.METERS_PER_DEGREE;
+            double r = Math.sqrt(dx * dx + dy * dy) - d;
+            sumResiduals += r * r / d;
+            sumWeights += 1 / d;
+        }
+        result[LAT] = lat0 + y / PathLoss.METERS_PER_DEGREE;
+        result[LON] = lon0 + x / (PathLoss.METERS_PER_DEGREE * cos);
+        result[RADIUS] = Math.max(WeightedCentroidSolver.MIN_RADIUS, Math.sqrt(sumResiduals / sumWeights));
+        return true;
+    }
+}
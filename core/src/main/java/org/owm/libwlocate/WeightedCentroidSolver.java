@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * The position is the average of the positions of the access points, weighted by the inverse
+ * of their estimated distance. It works with any number of access points.
+ */
+public class WeightedCentroidSolver implements PositionSolver {
+    /** The radius is never smaller than this, in meters */
+    static final double MIN_RADIUS = 10;
+
+    @Override
+    public boolean solve(double[] lat, double[] lon, byte[] signal, int count, double[] result) {
+        if (count <= 0) return false;
+        double sumLat = 0, sumLon = 0, sumWeights = 0, sumDistances = 0;
+        for (int i = 0; i < count; i++) {
+            double d = PathLoss.distance(signal[i]);
+            double w = 1 / d;
+            sumLat += lat[i] * w;
+            sumLon += lon[i] * w;
+            sumDistances += d * w;
+            sumWeights += w;
+        }
+        double cLat = sumLat / sumWeights, cLon = sumLon / sumWeights;
+        // the weighted mean distance from the access points, plus their spread around the centroid
+        double cos = Math.cos(Math.toRadians(cLat)), spread = 0;
+        for (int i = 0; i < count; i++) {
+            double dy = (lat[i] - cLat) * PathLoss.METERS_PER_DEGREE;
+            double dx = (lon[i] - cLon) * PathLoss.METERS_PER_DEGREE * cos;
+            spread += (dx * dx + dy * dy) / PathLoss.distance(signal[i]);
+        }
+        result[LAT] = cLat;
+        result[LON] = cLon;
+        result[RADIUS] = Math.max(MIN_RADIUS, sumDistances / sumWeights + Math.sqrt(spread / sumWeights));
+        return true;
+    }
+}
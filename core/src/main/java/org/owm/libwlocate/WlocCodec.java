@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary request/response format of the original libwlocate protocol, in network byte order:
+ * <pre>
+ *   request  (118 bytes): byte version, byte length, 16 x 6 bytes BSSID, 16 bytes signal, int cgiIP
+ *   response  (24 bytes): byte version, byte length, byte result, byte iresult, byte quality, 3 reserved bytes,
+ *                         int lat * 1e7, int lon * 1e7, short country code, 3 reserved shorts
+ * </pre>
+ * Used instead of the text request when the server (or a local stand-in) supports it.
+ */
+final class WlocCodec {
+    static final int REQUEST_LENGTH = 118;
+    static final int RESPONSE_LENGTH = 24;
+    /** value of the result field when the position is valid */
+    static final int RESULT_OK = 1;
+
+    private static final int MAC_BYTES = 6;
+    private static final double SCALE = 1e7;
+
+    private WlocCodec() {
+    }
+
+    /**
+     * Write a request at the position of the buffer, empty slots are filled with zeroes. The format has room for
+     * WLOC_MAX_NETWORKS networks, the following ones of a larger request are left out
+     * @param request the request data
+     * @param out the buffer, with at least REQUEST_LENGTH bytes remaining
+     */
+    static void encodeRequest(wloc_req request, ByteBuffer out) {
+        out.put((byte) 1).put((byte) REQUEST_LENGTH);
+        int n = Math.min(request.bssids.length, wloc_req.WLOC_MAX_NETWORKS);
+        for (int i = 0; i < wloc_req.WLOC_MAX_NETWORKS; i++) {
+            long mac = i < n ? request.macAt(i) : 0;
+            if (mac <= 0) mac = 0;
+            for (int shift = 40; shift >= 0; shift -= 8) out.put((byte) (mac >>> shift));
+        }
+        for (int i = 0; i < wloc_req.WLOC_MAX_NETWORKS; i++) out.put(i < n ? request.signal[i] : 0);
+        out.putInt(request.cgiIP);
+    }
+
+    /**
+     * Parse a response from the position of the buffer, without copying it
+     * @param in the buffer with the response
+     * @param position filled with the result
+     * @return ResultCode.OK, ResultCode.PARSING_RESPONSE_ERROR if the server has no position for the scan or
+     * ResultCode.SERVER_ERROR if the response is not valid
+     */
+    static int decodeResponse(ByteBuffer in, WlocPosition position) {
+        int start = in.position();
+        if (in.remaining() < RESPONSE_LENGTH) return ResultCode.SERVER_ERROR;
+        // the declared length can be longer than ours, for newer versions, but not than the data
+        int length = in.get(start + 1) & 0xFF;
+        if (length < RESPONSE_LENGTH || length > in.remaining()) return ResultCode.SERVER_ERROR;
+        if (in.get(start + 2) != RESULT_OK) return ResultCode.PARSING_RESPONSE_ERROR;
+        int lat = in.getInt(start + 8), lon = in.getInt(start + 12);
+        if (Math.abs(lat) > 90 * SCALE || Math.abs(lon) > 180 * SCALE) return ResultCode.SERVER_ERROR;
+        position.setQuality((short) (in.get(start + 4) & 0xFF));
+        position.lat = lat / SCALE;
+        position.lon = lon / SCALE;
+        position.setCountryCode(in.getShort(start + 16));
+        in.position(start + length);
+        return ResultCode.OK;
+    }
+}
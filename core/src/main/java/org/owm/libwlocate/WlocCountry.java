@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Locale;
+
+/**
+ * Country codes used by the libwlocate protocol, and their two letter names.
+ * The table is read from the countries.txt resource the first time it is needed, one country per line as
+ * "code name". Names are looked up by code in an array indexed by code, and codes by name in an array
+ * indexed by the two letters, so neither lookup allocates nor searches.
+ */
+public final class WlocCountry {
+    static final String RESOURCE = "countries.txt";
+    private static final int LETTERS = 26;
+
+    private static volatile WlocCountry table;
+
+    private final String[] names;
+    private final short[] codes = new short[LETTERS * LETTERS];
+
+    private WlocCountry(String[] names) {
+        this.names = names;
+        for (int code = 0; code < names.length; code++) {
+            int index = index(names[code]);
+            if (index >= 0 && codes[index] == 0) codes[index] = (short) code;
+        }
+    }
+
+    /**
+     * Convert a country code to a more easy to read short text that specifies a country.
+     * @param ccode the country code to be converted
+     * @return the short text that names the country or an empty string an unknown country
+     *         specifier was given or the country code was 0
+     */
+    public static String fromCode(short ccode) {
+        String[] names = table().names;
+        return ccode > 0 && ccode < names.length ? names[ccode] : "";
+    }
+
+    /**
+     * Convert a two letter country name, like the ones returned by fromCode(), to its country code
+     * @param country the name, in upper or lower case
+     * @return the country code, 0 if the country is not known
+     */
+    public static short toCode(CharSequence country) {
+        int index = index(country);
+        return index >= 0 ? table().codes[index] : 0;
+    }
+
+    /**
+     * Replace the table of the countries, e.g. with a newer one
+     * @param in the table in the format of the resource, it is not closed
+     * @throws IOException if the table can't be read or a line is not valid
+     */
+    public static void load(InputStream in) throws IOException {
+        table = read(in);
+    }
+
+    private static WlocCountry table() {
+        WlocCountry t = table;
+        if (t == null) {
+            synchronized (WlocCountry.class) {
+                t = table;
+                if (t == null) {
+                    InputStream in = WlocCountry.class.getResourceAsStream(RESOURCE);
+                    try {
+                        if (in == null) throw new IOException("Missing resource " + RESOURCE);
+                        t = read(in);
+                        in.close();
+                    } catch (IOException e) {
+                        // the names are not available, the codes still go through
+                        e.printStackTrace();
+                        t = new WlocCountry(new String[]{""});
+                    }
+                    table = t;
+                }
+            }
+        }
+        return t;
+    }
+
+    static WlocCountry read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        String[] names = new String[256];
+        int max = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') continue;
+            String[] fields = line.split("[ \t]+");
+            int code;
+            try {
+                code = Integer.parseInt(fields[0]);
+            } catch (NumberFormatException e) {
+                code = -1;
+            }
+            if (fields.length != 2 || code <= 0 || code > Short.MAX_VALUE || index(fields[1]) < 0)
+                throw new IOException("Invalid country: " + line);
+            if (code >= names.length) {
+                String[] grown = new String[Math.max(code + 1, names.length * 2)];
+                System.arraycopy(names, 0, grown, 0, names.length);
+                names = grown;
+            }
+            names[code] = fields[1].toUpperCase(Locale.US);
+            max = Math.max(max, code);
+        }
+        String[] dense = new String[max + 1];
+        for (int i = 0; i <= max; i++) dense[i] = names[i] != null ? names[i] : "";
+        return new WlocCountry(dense);
+    }
+
+    /**
+     * @return the index of a two letter name in the codes array, -1 if it's not two letters
+     */
+    private static int index(CharSequence country) {
+        if (country == null || country.length() != 2) return -1;
+        int first = letter(country.charAt(0)), second = letter(country.charAt(1));
+        return first >= 0 && second >= 0 ? first * LETTERS + second : -1;
+    }
+
+    private static int letter(char c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        return -1;
+    }
+}
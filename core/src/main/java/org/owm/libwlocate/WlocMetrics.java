@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timers and counters of the positioning hot path, shared by all the WLocate instances of the process.
+ * Each stage has a LatencyHistogram, the results delivered to the listeners are counted by result code.
+ * Recording doesn't allocate, a Listener can be set to forward the values to another metrics system.
+ */
+public final class WlocMetrics {
+    /** From the start of the WiFi scan to the broadcast of its results */
+    public static final int STAGE_SCAN = 0;
+    /** Processing of the scan results in the broadcast receiver */
+    public static final int STAGE_RECEIVE = 1;
+    /** Opening of the connection to the server */
+    public static final int STAGE_CONNECT = 2;
+    /** Sending of the request body */
+    public static final int STAGE_WRITE = 3;
+    /** From the end of the request to the first byte of the response */
+    public static final int STAGE_FIRST_BYTE = 4;
+    /** Parsing of the response */
+    public static final int STAGE_PARSE = 5;
+    /** From the end of a batch on the worker thread to its handling on the main thread */
+    public static final int STAGE_DELIVERY = 6;
+    public static final int STAGES = 7;
+
+    /** Results with a code from this value up are counted together */
+    public static final int OTHER_RESULT = 16;
+
+    /**
+     * Receives every value as it is recorded, on the thread that records it. Must be quick and must not
+     * throw
+     */
+    public interface Listener {
+        /**
+         * @param stage one of the STAGE_ constants
+         * @param nanos the duration of the stage
+         */
+        void onTiming(int stage, long nanos);
+
+        /**
+         * @param hit true if the position was found in the PositionCache
+         */
+        void onCacheLookup(boolean hit);
+
+        /**
+         * @param code WLOC_OK or the error code sent to the listener of WLocate
+         */
+        void onResult(int code);
+    }
+
+    private static final WlocMetrics instance = new WlocMetrics();
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGES];
+    private final AtomicLong cacheHits = new AtomicLong(), cacheMisses = new AtomicLong();
+    private final AtomicLongArray results = new AtomicLongArray(OTHER_RESULT + 1);
+    private volatile Listener listener;
+
+    WlocMetrics() {
+        for (int i = 0; i < STAGES; i++) stages[i] = new LatencyHistogram();
+    }
+
+    public static WlocMetrics get() {
+        return instance;
+    }
+
+    /**
+     * @param listener receives the values as they are recorded, null to remove it
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @return the histogram of the durations of the stage
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return stages[stage];
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @param code WLOC_OK or an error code
+     * @return how many times the code has been delivered, codes from OTHER_RESULT up share the same counter
+     */
+    public long getResultCount(int code) {
+        return results.get(resultSlot(code));
+    }
+
+    /**
+     * Clear all the histograms and counters
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : stages) histogram.reset();
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        for (int i = 0; i <= OTHER_RESULT; i++) results.set(i, 0);
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @param startNanos the start of the stage, from System.nanoTime()
+     * @return the end of the stage, so that the next one can start from it
+     */
+    long record(int stage, long startNanos) {
+        long now = System.nanoTime();
+        long nanos = now - startNanos;
+        stages[stage].record(nanos);
+        Listener l = listener;
+        if (l != null) l.onTiming(stage, nanos);
+        return now;
+    }
+
+    void recordCacheLookup(boolean hit) {
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+        Listener l = listener;
+        if (l != null) l.onCacheLookup(hit);
+    }
+
+    void recordResult(int code) {
+        results.incrementAndGet(resultSlot(code));
+        Listener l = listener;
+        if (l != null) l.onResult(code);
+    }
+
+    private static int resultSlot(int code) {
+        return code < 0 || code > OTHER_RESULT ? OTHER_RESULT : code;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+
+/**
+ * Position evaluated for a scan, by the server or from the local database
+ */
+public class WlocPosition
+{
+
+   double lat,lon;
+   short  quality;
+   short countryCode;
+   /** radius of uncertainty in meters when evaluated locally, negative when it has to be derived from quality */
+   float  radius=-1;
+   public WlocPosition (){
+
+   }
+   WlocPosition(double latitude, double longitude)
+   {
+      this.lat = latitude;
+      this.lon = longitude;
+   }
+
+   /**
+    * Copy all the values of another position
+    * @param other the position to copy
+    */
+   void set(WlocPosition other)
+   {
+      lat=other.lat;
+      lon=other.lon;
+      quality=other.quality;
+      countryCode=other.countryCode;
+      radius=other.radius;
+   }
+
+   /**
+    * Reset all the values, as for a new position
+    */
+   void clear()
+   {
+      lat=lon=0;
+      quality=countryCode=0;
+      radius=-1;
+   }
+
+   public double getLatitude() {
+      return lat;
+   }
+
+   public double getLongitude() {
+      return lon;
+   }
+
+   /**
+    * @return radius of uncertainty in meters, derived from the quality when the server didn't give it
+    */
+   public float getRadius() {
+      return radius>=0 ? radius : 120-quality;
+   }
+
+   public short getCountryCode() {
+      return countryCode;
+   }
+
+   public void setCountryCode(short countryCode) {
+      this.countryCode = countryCode;
+   }
+
+   public short getQuality() {
+      return quality;
+   }
+
+   public void setQuality(short quality) {
+      this.quality = quality;
+   }
+
+}
@@ -0,0 +1,60 @@
+package org.owm.libwlocate;
+
+/**
+ * Internal class, used for storing request data
+ */
+public class wloc_req
+{
+   public static final int WLOC_MAX_NETWORKS=16;
+   
+   public byte     version,length;
+   public String[] bssids;
+   public byte[]   signal;
+   /** the same networks of bssids as 48 bit MACs, 0 where the MAC has not been parsed yet */
+   public long[]   macs;
+   public int      cgiIP;
+   
+   public wloc_req()
+   {
+      this(WLOC_MAX_NETWORKS);
+   }
+
+   /**
+    * @param capacity maximum number of networks of the request. The binary protocol only sends the first
+    *                 WLOC_MAX_NETWORKS of them
+    */
+   public wloc_req(int capacity)
+   {
+      bssids=new String[capacity];
+      signal=new byte[capacity];
+      macs=new long[capacity];
+      version=1;
+      length=118;
+      cgiIP=0;
+   }
+
+   /**
+    * @param i index of the network
+    * @return the MAC of the network, parsed from bssids if it's not in macs, or Bssid.INVALID
+    */
+   long macAt(int i)
+   {
+      if (macs[i]!=0) return macs[i];
+      return Bssid.parse(bssids[i]);
+   }
+
+   /**
+    * @return a copy of the request, with its own arrays
+    */
+   wloc_req copy()
+   {
+      wloc_req copy=new wloc_req();
+      copy.version=version;
+      copy.length=length;
+      copy.bssids=bssids.clone();
+      copy.signal=signal.clone();
+      copy.macs=macs.clone();
+      copy.cgiIP=cgiIP;
+      return copy;
+   }
+}
@@ -0,0 +1,59 @@
+package org.owm.libwlocate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ApIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putAndLookup() {
+        ApIndex index = new ApIndex(1000);
+        // MACs of the same vendor, only the lower bits differ
+        for (long i = 1; i <= 1000; i++) index.put(0x001122000000L + i, 45 + i * 1e-4, 7 - i * 1e-4, (short) (i % 100));
+        index.put(0x001122000001L, 46.0, 8.0, (short) 10);
+        assertEquals(1000, index.size());
+        double[] out = new double[3];
+        assertTrue(index.lookup(0x001122000001L, out));
+        assertEquals(46.0, out[0], 1e-7);
+        assertEquals(8.0, out[1], 1e-7);
+        assertEquals(10, out[2], 0);
+        assertTrue(index.lookup(0x0011220003E8L, out));
+        assertEquals(45.1, out[0], 1e-7);
+        assertFalse(index.lookup(0x0011220003E9L, out));
+        assertFalse(index.lookup(0, out));
+        try {
+            for (long i = 1001; i < 2000; i++) index.put(0x001122000000L + i, 0, 0, (short) 0);
+            fail("The index should be full");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void builtFromStoreWrittenAndMapped() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        store.put(0x001122334455L, 45.0, 7.0, (short) 50);
+        store.put(0x001122334466L, 46.0, 8.0, (short) 30);
+        store.flush();
+        File file = new File(folder.getRoot(), "aps.idx");
+        ApIndex.build(store).write(file);
+
+        ApIndex mapped = ApIndex.open(file);
+        assertEquals(2, mapped.size());
+        assertTrue(mapped.contains(0x001122334466L));
+        wloc_req req = new wloc_req();
+        req.bssids[0] = "001122334455";
+        req.bssids[1] = "001122334466";
+        WlocPosition position = ApLocator.locate(mapped, req, new WeightedCentroidSolver());
+        assertNotNull(position);
+        assertEquals(45.5, position.getLatitude(), 1e-7);
+        assertEquals(7.5, position.getLongitude(), 1e-7);
+    }
+}
@@ -0,0 +1,95 @@
+package org.owm.libwlocate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ApLearnerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static wloc_req request(long... macs) {
+        wloc_req req = new wloc_req();
+        for (int i = 0; i < macs.length; i++) {
+            req.macs[i] = macs[i];
+            req.signal[i] = 40; // one meter away
+        }
+        return req;
+    }
+
+    @Test
+    public void positionsAreWeightedMeansOfTheFixes() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        store.put(3, 45.1, 7.1, (short) 50);
+        store.flush();
+        ApLearner learner = new ApLearner(store, 2, 60000);
+        assertTrue(learner.learn(request(1, 2), 45.0, 7.0, 9));
+        assertFalse(learner.learn(request(1), 46.0, 8.0, 500)); // not accurate enough
+        // the second scan of the batch, it is aggregated without waiting but there are too few access points
+        // to rewrite the store
+        assertTrue(learner.learn(request(1), 45.001, 7.0, 3));
+        Thread.sleep(200);
+        assertEquals(0, learner.getLearnt());
+        assertFalse(store.contains(1));
+        learner.flush().get(5, TimeUnit.SECONDS);
+        assertEquals(2, learner.getLearnt());
+
+        double[] ap = new double[3];
+        assertTrue(store.lookup(1, ap));
+        // weights 1000 / (9^2 + 1) and 1000 / (3^2 + 1)
+        double w1 = 1000.0 / 82, w2 = 100;
+        assertEquals((45.0 * w1 + 45.001 * w2) / (w1 + w2), ap[0], 1e-7);
+        assertEquals(Math.round(w1 + w2), store.weight(1));
+        assertEquals(100, (long) ap[2]);
+        assertEquals(12, store.weight(2));
+
+        // the position from the server counts as a few observations
+        learner.learn(request(3), 45.0, 7.1, 9);
+        // a weak access point, about 21.5 m away, seen with an inaccurate fix
+        wloc_req weak = request(4);
+        weak.signal[0] = 80;
+        learner.learn(weak, 45.0, 7.1, 50);
+        learner.flush().get(5, TimeUnit.SECONDS);
+        assertTrue(store.lookup(3, ap));
+        assertEquals((45.1 * 10 + 45.0 * w1) / (10 + w1), ap[0], 1e-7);
+        assertTrue(store.lookup(4, ap));
+        assertEquals(1, store.weight(4));
+        assertEquals(Math.round(120 - Math.sqrt(1000)), (long) ap[2]);
+        learner.shutdown();
+    }
+
+    @Test
+    public void manyAccessPointsAreWrittenWithoutFlush() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        ApLearner learner = new ApLearner(store, 1, 60000);
+        for (int i = 0; i < ApLearner.MIN_WRITE; i += 8)
+            learner.learn(request(i + 1, i + 2, i + 3, i + 4, i + 5, i + 6, i + 7, i + 8), 45.0, 7.0, 5);
+        long end = System.currentTimeMillis() + 5000;
+        while (learner.getLearnt() == 0 && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertEquals(ApLearner.MIN_WRITE / 8, learner.getLearnt());
+        assertEquals(ApLearner.MIN_WRITE, store.size());
+        learner.shutdown();
+    }
+
+    @Test
+    public void theWeightIsBounded() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        ApLearner learner = new ApLearner(store, 1000, 60000);
+        for (int i = 0; i < 300; i++) learner.learn(request(1), 45.0, 7.0, 0);
+        learner.flush().get(5, TimeUnit.SECONDS);
+        assertEquals(ApLearner.MAX_WEIGHT, store.weight(1));
+        // the access point has moved, the new observations still count
+        for (int i = 0; i < 300; i++) learner.learn(request(1), 45.01, 7.0, 0);
+        learner.flush().get(5, TimeUnit.SECONDS);
+        double[] ap = new double[3];
+        assertTrue(store.lookup(1, ap));
+        assertTrue(ap[0] > 45.009);
+        assertEquals(100, (long) ap[2]);
+        learner.shutdown();
+    }
+}
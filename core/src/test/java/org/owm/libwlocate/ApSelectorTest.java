@@ -0,0 +1,107 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ApSelectorTest {
+    static class Lookup implements ApLookup {
+        final Map<Long, double[]> aps = new HashMap<Long, double[]>();
+
+        void put(long mac, double lat, double lon) {
+            aps.put(mac, new double[]{lat, lon, 50});
+        }
+
+        @Override
+        public boolean lookup(long mac, double[] out) {
+            double[] ap = aps.get(mac);
+            if (ap == null) return false;
+            System.arraycopy(ap, 0, out, 0, 3);
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return aps.size();
+        }
+    }
+
+    private static ScanBuffer scan(int n) {
+        ScanBuffer scan = new ScanBuffer();
+        // 16 MACs apart, so that they are different devices
+        for (int i = 1; i <= n; i++) scan.add((long) i << 4, -40 - i);
+        return scan;
+    }
+
+    @Test
+    public void knownAccessPointsComeFirstAndMissesLast() {
+        Lookup local = new Lookup();
+        local.put(30L << 4, 45, 7);
+        local.put(25L << 4, 45.01, 7);
+        ApSelector strongest = new ApSelector(ApSelector.STRONGEST, 24);
+        wloc_req request = strongest.select(scan(30), true, local, 0);
+        assertEquals(24, request.bssids.length);
+        assertEquals(1L << 4, request.macs[0]);
+        assertEquals(24L << 4, request.macs[23]);
+
+        ApSelector selector = new ApSelector(ApSelector.KNOWN_FIRST, 4, 1000);
+        request = selector.select(scan(30), true, local, 0);
+        assertEquals(25L << 4, request.macs[0]);
+        assertEquals(30L << 4, request.macs[1]);
+        assertEquals(1L << 4, request.macs[2]);
+        assertEquals(2L << 4, request.macs[3]);
+
+        // the server didn't know the first two it was sent
+        selector.missed(request, 2, 0);
+        request = new wloc_req();
+        request.macs[0] = 1L << 4;
+        request.macs[1] = 3L << 4;
+        selector.missed(request, 2, 100);
+        assertEquals(4, selector.getMissCount());
+        request = selector.select(scan(30), true, local, 500);
+        assertEquals(2L << 4, request.macs[2]);
+        assertEquals(4L << 4, request.macs[3]);
+        request = selector.select(scan(4), true, local, 500);
+        assertEquals(4L << 4, request.macs[1]);
+        assertEquals(1L << 4, request.macs[2]);
+        assertEquals(3L << 4, request.macs[3]);
+        // the older misses expire first
+        selector.select(scan(4), true, local, 1050);
+        assertEquals(2, selector.getMissCount());
+    }
+
+    @Test
+    public void diverseSpreadsTheKnownAccessPoints() {
+        Lookup local = new Lookup();
+        for (int i = 1; i <= 6; i++) local.put((long) i << 4, 45 + (i <= 4 ? 0 : i * 0.001), 7);
+        ApSelector selector = new ApSelector(ApSelector.DIVERSE, 4);
+        wloc_req request = selector.select(scan(10), true, local, 0);
+        // 2, 3 and 4 are at the same place as 1
+        assertEquals(1L << 4, request.macs[0]);
+        assertEquals(5L << 4, request.macs[1]);
+        assertEquals(6L << 4, request.macs[2]);
+        assertEquals(7L << 4, request.macs[3]);
+
+        request = selector.select(scan(5), true, local, 0);
+        assertEquals(5L << 4, request.macs[1]);
+        assertEquals(2L << 4, request.macs[2]);
+        assertEquals(3L << 4, request.macs[3]);
+    }
+
+    @Test
+    public void binaryRequestsHoldTheFirstNetworks() {
+        wloc_req request = new ApSelector(ApSelector.STRONGEST, 20).select(scan(20), false, null, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(WlocCodec.REQUEST_LENGTH);
+        WlocCodec.encodeRequest(request, buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(16L << 4, buffer.getLong(2 + 6 * 15 - 2) & 0xFFFFFFFFFFFFL);
+        assertTrue(LocatorClient.postData(request).endsWith(Bssid.format(20L << 4) + "\r\n"));
+
+        WlocCodec.encodeRequest(new wloc_req(2), (ByteBuffer) buffer.clear());
+        assertFalse(buffer.hasRemaining());
+    }
+}
@@ -0,0 +1,99 @@
+package org.owm.libwlocate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ApStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsSurviveFlushAndReopen() throws Exception {
+        File file = new File(folder.getRoot(), "aps.db");
+        ApStore store = ApStore.open(file);
+        assertEquals(0, store.size());
+        store.put(0x0000000000A2L, 45.1, 7.6, (short) 50);
+        store.put(0x0000000000A1L, 45.0, 7.5, (short) 60);
+        assertFalse(store.contains(0xA1L));
+        store.flush();
+        store.put(0x0000000000A0L, 44.9, 7.4, (short) 70);
+        store.put(0x0000000000A2L, 46.0, 8.0, (short) 40);
+        store.close();
+
+        ApStore reopened = ApStore.open(file);
+        assertNotSame(store, reopened);
+        assertEquals(3, reopened.size());
+        double[] out = new double[3];
+        assertTrue(reopened.lookup(0xA2L, out));
+        assertEquals(46.0, out[0], 1e-7);
+        assertEquals(8.0, out[1], 1e-7);
+        assertEquals(40, out[2], 0);
+        assertTrue(reopened.lookup(0xA0L, out));
+        assertEquals(44.9, out[0], 1e-7);
+        assertFalse(reopened.lookup(0xA3L, out));
+    }
+
+    @Test
+    public void sameFileSharesTheStore() throws Exception {
+        File file = new File(folder.getRoot(), "aps.db");
+        ApStore store = ApStore.open(file);
+        assertSame(store, ApStore.open(new File(folder.getRoot(), "./aps.db")));
+        assertNotSame(store, ApStore.open(new File(folder.getRoot(), "other.db")));
+        store.put(0xA1L, 45.0, 7.5, (short) 60);
+        ApStore.open(file).flush();
+        assertTrue(store.contains(0xA1L));
+    }
+
+    @Test
+    public void learntRecordsAreWrittenInProportionToTheFile() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        StringBuilder dump = new StringBuilder();
+        for (int i = 1; i <= ApStore.FLUSH_THRESHOLD * ApStore.FLUSH_RATIO * 2; i++)
+            dump.append(Bssid.format(i)).append(" 45.0 7.0\n");
+        store.importDump(new ByteArrayInputStream(dump.toString().getBytes("US-ASCII")), (short) 30);
+        int size = store.size();
+        WlocPosition position = new WlocPosition();
+        position.lat = 46.0;
+        position.lon = 8.0;
+        long mac = 0x10000;
+        // not written after FLUSH_THRESHOLD records, the file is large
+        for (int i = 0; i < size / ApStore.FLUSH_RATIO / 4 - 1; i++)
+            store.learn(request(mac++, mac++, mac++, mac++), position);
+        assertEquals(size, store.size());
+        store.learn(request(mac++, mac++, mac++, mac++), position);
+        assertEquals(size + size / ApStore.FLUSH_RATIO, store.size());
+    }
+
+    private static wloc_req request(long... macs) {
+        wloc_req req = new wloc_req();
+        for (int i = 0; i < macs.length; i++) req.macs[i] = macs[i];
+        return req;
+    }
+
+    @Test
+    public void importAndLocate() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        String dump = "bssid\tlat\tlon\n"
+                + "00:11:22:33:44:55\t45.0\t7.0\n"
+                + "001122334466 46.0 8.0 30\n"
+                + "garbage\n";
+        assertEquals(2, store.importDump(new ByteArrayInputStream(dump.getBytes("US-ASCII")), (short) 30));
+        wloc_req req = new wloc_req();
+        req.bssids[0] = "001122334455";
+        req.bssids[1] = "001122334466";
+        req.bssids[2] = "0011223344FF";
+        WlocPosition position = store.locate(req, new WeightedCentroidSolver());
+        assertNotNull(position);
+        assertEquals(45.5, position.lat, 1e-7);
+        assertEquals(7.5, position.lon, 1e-7);
+
+        req.bssids[0] = req.bssids[1] = null;
+        assertNull(store.locate(req, new WeightedCentroidSolver()));
+    }
+}
@@ -0,0 +1,161 @@
+package org.owm.libwlocate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkResolverTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void scanRecordIsParsed() {
+        ScanLog log = new ScanLog();
+        wloc_req req = new wloc_req();
+        assertTrue(log.parse(" {\"time\":[1,{\"a\":null}], \"networks\" : [{\"bssid\":\"00:11:22:33:44:55\",\"level\":-80},"
+                + "{\"level\":-40.5,\"ssid\":\"x\\\"y\",\"bssid\":\"00:11:22:33:44:66\"},{\"bssid\":\"bad\",\"level\":-10}],"
+                + "\"id\":{\"device\":7}}", req));
+        assertEquals(0x001122334466L, req.macs[0]);
+        assertEquals(40, req.signal[0]);
+        assertEquals(0x001122334455L, req.macs[1]);
+        assertNull(req.bssids[2]);
+        StringBuilder out = new StringBuilder();
+        log.appendResult(out, ResultCode.IO_ERROR, null);
+        assertEquals("{\"id\":{\"device\":7},\"result\":4}\n", out.toString());
+        // not the time of a trace
+        assertEquals(-1, log.getTime());
+        assertTrue(log.parse("{\"id\":2,\"time\": 1500,\"networks\":[]}", new wloc_req()));
+        assertEquals(1500, log.getTime());
+
+        assertFalse(log.parse("{\"networks\":[{\"bssid\":\"001122334455\",\"level\":-80]}", new wloc_req()));
+        assertFalse(log.parse("{\"id\":1} x", new wloc_req()));
+    }
+
+    @Test
+    public void deeplyNestedRecordIsMalformed() {
+        ScanLog log = new ScanLog();
+        StringBuilder nested = new StringBuilder("{\"x\":");
+        for (int i = 0; i < 100000; i++) nested.append('[');
+        assertFalse(log.parse(nested.toString(), new wloc_req()));
+        // a few levels are fine
+        assertTrue(log.parse("{\"x\":[[{\"y\":[1]}]],\"networks\":[{\"bssid\":\"001122334455\",\"level\":-80,"
+                + "\"z\":{\"a\":[]}}]}", new wloc_req()));
+    }
+
+    @Test
+    public void resultsKeepTheOrderOfTheLog() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        store.put(0x000000000001L, 45.0, 7.0, (short) 50);
+        store.flush();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            if (i == 50) log.append("not json\n\n");
+            log.append("{\"id\":").append(i).append(",\"networks\":[{\"bssid\":\"00000000000")
+                    .append(i % 2 == 0 ? 1 : 2).append("\",\"level\":-70}]}\n");
+        }
+        BulkResolver resolver = new BulkResolver(null, false);
+        resolver.setApStore(store);
+        resolver.setThreads(3);
+        resolver.setChunkSize(7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BulkResolver.Stats stats = resolver.resolve(new ByteArrayInputStream(log.toString().getBytes("UTF-8")), out);
+        assertEquals(100, stats.getScans());
+        assertEquals(50, stats.getResolved());
+        assertEquals(1, stats.getMalformed());
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(101, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":0,\"result\":0,\"lat\":45.0,\"lon\":7.0"));
+        assertEquals("{\"id\":1,\"result\":" + ResultCode.NO_LOCAL_POSITION + "}", lines[1]);
+        assertEquals("{\"line\":51,\"error\":\"malformed record\"}", lines[50]);
+        assertTrue(lines[100].startsWith("{\"id\":99,"));
+    }
+
+    @Test
+    public void cachedPositionsAreNotOverwrittenByTheNextScans() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        store.put(0x000000000001L, 45.0, 7.0, (short) 50);
+        store.put(0x000000000002L, 46.0, 8.0, (short) 50);
+        store.flush();
+        BulkResolver resolver = new BulkResolver(null, false);
+        resolver.setApStore(store);
+        PositionCache cache = new PositionCache();
+        resolver.setPositionCache(cache);
+        resolver.setThreads(1);
+        String log = "{\"id\":0,\"networks\":[{\"bssid\":\"000000000001\",\"level\":-70}]}\n"
+                + "{\"id\":1,\"networks\":[{\"bssid\":\"000000000002\",\"level\":-70}]}\n"
+                + "{\"id\":2,\"networks\":[{\"bssid\":\"000000000001\",\"level\":-70}]}\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resolver.resolve(new ByteArrayInputStream(log.getBytes("UTF-8")), out);
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(1, cache.getHits());
+        assertTrue(lines[1].startsWith("{\"id\":1,\"result\":0,\"lat\":46.0,\"lon\":8.0"));
+        assertTrue(lines[2].startsWith("{\"id\":2,\"result\":0,\"lat\":45.0,\"lon\":7.0"));
+    }
+
+    @Test
+    public void learntAccessPointsAreWrittenAtTheEnd() throws Exception {
+        final ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        final List<Integer> sizes = new ArrayList<Integer>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read(new byte[256]) != -1) {
+                    // not looked at
+                }
+                synchronized (sizes) {
+                    sizes.add(store.size());
+                }
+                byte[] body = "result=1\r\nquality=80\r\nlat=45.0\r\nlon=7.0\r\n".getBytes("US-ASCII");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            StringBuilder log = new StringBuilder();
+            // a different device for each network, see Bssid.sameDevice()
+            int mac = 1;
+            for (int i = 0; i < 10; i++) {
+                log.append("{\"id\":").append(i).append(",\"networks\":[");
+                for (int j = 0; j < wloc_req.WLOC_MAX_NETWORKS; j++) {
+                    log.append(j > 0 ? "," : "").append("{\"bssid\":\"").append(Bssid.format((long) mac++ << 4))
+                            .append("\",\"level\":-70}");
+                }
+                log.append("]}\n");
+            }
+            BulkResolver resolver = new BulkResolver(
+                    new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php"), false);
+            resolver.setApStore(store);
+            resolver.setThreads(2);
+            resolver.resolve(new ByteArrayInputStream(log.toString().getBytes("UTF-8")), new ByteArrayOutputStream());
+            // more than FLUSH_THRESHOLD access points, but the store is not rewritten during the run
+            assertEquals(10, sizes.size());
+            for (int size : sizes) assertEquals(0, size);
+            assertEquals(10 * wloc_req.WLOC_MAX_NETWORKS, store.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+public class CountryLocatorTest {
+    private static CountryLocator read(String borders) throws Exception {
+        return CountryLocator.read(new ByteArrayInputStream(borders.getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void countryTable() {
+        assertEquals("DE", WlocCountry.fromCode((short) 1));
+        assertEquals("ZW", WlocCountry.fromCode((short) 196));
+        assertEquals("", WlocCountry.fromCode((short) 0));
+        assertEquals("", WlocCountry.fromCode((short) 11));
+        assertEquals("", WlocCountry.fromCode((short) -1));
+        assertEquals("", WlocCountry.fromCode(Short.MAX_VALUE));
+        for (short code = 1; code < 200; code++) {
+            String name = WlocCountry.fromCode(code);
+            if (name.length() > 0) assertEquals(code, WlocCountry.toCode(name));
+        }
+        assertEquals(93, WlocCountry.toCode("it"));
+        assertEquals(0, WlocCountry.toCode("XX"));
+        assertEquals(0, WlocCountry.toCode("ITA"));
+        assertEquals(0, WlocCountry.toCode(null));
+    }
+
+    @Test
+    public void findsTheCountryOfAPosition() throws Exception {
+        CountryLocator locator = read("# a rough Italy, with San Marino in it\n"
+                + "IT 36 6 47 6 47 19 36 19\n"
+                + "SM 43.89 12.40 43.99 12.40 43.99 12.52 43.89 12.52\n"
+                + "\n"
+                + "XX 1 1 2 2 3 1\n"
+                + "FR 45 5\n"
+                + "FR 42 -5 51 -5 51 6 42 6\n"
+                + "LU 49.45 5.73 49.55 6.38 50.18 6.13 49.85 5.75\n");
+        assertEquals(4, locator.size());
+        assertEquals(93, locator.locate(45.07, 7.69));
+        assertEquals(155, locator.locate(43.94, 12.45));
+        assertEquals(69, locator.locate(48.85, 2.35));
+        assertEquals(6, locator.locate(49.8, 6.1));
+        // in the bounding box of Luxembourg, but not in the polygon
+        assertEquals(69, locator.locate(50.1, 5.8));
+        assertEquals(0, locator.locate(0, 0));
+        assertEquals(0, locator.locate(Double.NaN, 0));
+        assertEquals(0, locator.locate(90, 180));
+    }
+}
@@ -0,0 +1,187 @@
+package org.owm.libwlocate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HedgedLocatorClientTest {
+    private final ArrayList<HttpServer> servers = new ArrayList<HttpServer>();
+
+    /**
+     * Stand-in for getpos.php that answers after a delay
+     */
+    private URL startServer(final long delayMillis, final int status, final double lat, final AtomicInteger hits)
+            throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                InputStream in = exchange.getRequestBody();
+                while (in.read(new byte[256]) != -1) {
+                    // not looked at
+                }
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                byte[] body = ("result=1\r\nquality=80\r\nlat=" + lat + "\r\nlon=7.0\r\n").getBytes("US-ASCII");
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        servers.add(server);
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php");
+    }
+
+    @After
+    public void stopServers() {
+        for (HttpServer server : servers) server.stop(0);
+    }
+
+    private static wloc_req request() {
+        wloc_req req = new wloc_req();
+        req.bssids[0] = "001122334455";
+        return req;
+    }
+
+    private static void warmUp(LocatorEndpoint endpoint, long millis) {
+        for (int i = 0; i < LocatorEndpoint.MIN_SAMPLES; i++) endpoint.recordSuccess(millis * 1000000);
+    }
+
+    @Test
+    public void slowServerIsHedged() throws Exception {
+        AtomicInteger slowHits = new AtomicInteger(), fastHits = new AtomicInteger();
+        LocatorPool pool = new LocatorPool(startServer(3000, 200, 45.0, slowHits), startServer(0, 200, 46.0, fastHits));
+        // the slow server is usually the fastest one
+        warmUp(pool.getEndpoints()[0], 20);
+        warmUp(pool.getEndpoints()[1], 50);
+        HedgedLocatorClient client = new HedgedLocatorClient(pool, false);
+        WlocPosition position = new WlocPosition();
+        long start = System.nanoTime();
+        assertEquals(ResultCode.OK, client.requestPosition(request(), position));
+        assertTrue(System.nanoTime() - start < 1500 * 1000000L);
+        assertEquals(46.0, position.getLatitude(), 1e-7);
+        assertEquals(1, slowHits.get());
+        assertEquals(1, fastHits.get());
+        // the aborted request doesn't count as a failure
+        assertFalse(pool.getEndpoints()[0].isOpen(System.nanoTime() / 1000000));
+    }
+
+    @Test
+    public void failingServerIsRetriedThenSkipped() throws Exception {
+        AtomicInteger badHits = new AtomicInteger(), goodHits = new AtomicInteger();
+        LocatorPool pool = new LocatorPool(startServer(0, 500, 45.0, badHits), startServer(0, 200, 46.0, goodHits));
+        // long enough not to hedge before the error
+        warmUp(pool.getEndpoints()[0], 200);
+        warmUp(pool.getEndpoints()[1], 500);
+        HedgedLocatorClient client = new HedgedLocatorClient(pool, false);
+        for (int i = 0; i < LocatorEndpoint.FAILURES_TO_OPEN + 2; i++) {
+            WlocPosition position = new WlocPosition();
+            assertEquals(ResultCode.OK, client.requestPosition(request(), position));
+            assertEquals(46.0, position.getLatitude(), 1e-7);
+        }
+        assertEquals(LocatorEndpoint.FAILURES_TO_OPEN, badHits.get());
+        assertTrue(pool.getEndpoints()[0].isOpen(System.nanoTime() / 1000000));
+    }
+
+    @Test
+    public void timeoutAdaptsToTheLatency() throws Exception {
+        LocatorPool pool = new LocatorPool(startServer(3000, 200, 45.0, new AtomicInteger()));
+        LocatorEndpoint endpoint = pool.getEndpoints()[0];
+        assertEquals(LocatorEndpoint.DEFAULT_TIMEOUT_MILLIS, endpoint.getTimeoutMillis());
+        warmUp(endpoint, 100);
+        assertEquals(LocatorEndpoint.MIN_TIMEOUT_MILLIS, endpoint.getTimeoutMillis());
+        warmUp(endpoint, 1000);
+        assertEquals(LocatorEndpoint.TIMEOUT_FACTOR * 1000, endpoint.getTimeoutMillis(), 400);
+        endpoint.getLatency().reset();
+        warmUp(endpoint, 100);
+        HedgedLocatorClient client = new HedgedLocatorClient(pool, false);
+        long start = System.nanoTime();
+        assertEquals(ResultCode.IO_ERROR, client.requestPosition(request(), new WlocPosition()));
+        assertTrue(System.nanoTime() - start < 2000 * 1000000L);
+    }
+
+    @Test
+    public void exceptionCountsAsFailure() throws Exception {
+        AtomicInteger hits = new AtomicInteger();
+        LocatorPool pool = new LocatorPool(startServer(0, 200, 45.0, hits));
+        HedgedLocatorClient client = new HedgedLocatorClient(pool, false);
+        // the request can't be encoded
+        wloc_req broken = request();
+        broken.bssids = null;
+        for (int i = 0; i < LocatorEndpoint.FAILURES_TO_OPEN; i++)
+            assertEquals(ResultCode.IO_ERROR, client.requestPosition(broken, new WlocPosition()));
+        assertTrue(pool.getEndpoints()[0].isOpen(System.nanoTime() / 1000000));
+        assertEquals(0, hits.get());
+    }
+
+    @Test
+    public void responseLongerThanTheLimitIsRejected() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read(new byte[256]) != -1) {
+                    // not looked at
+                }
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write("result=1\r\nquality=80\r\nlat=45.0\r\nlon=7.0\r\n".getBytes("US-ASCII"));
+                    // endless padding
+                    for (int i = 0; i < 1024; i++) out.write(new byte[1024]);
+                    out.close();
+                } catch (IOException e) {
+                    // the client has given up
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        servers.add(server);
+        LocatorClient client = new LocatorClient(
+                new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php"), false);
+        assertEquals(ResultCode.SERVER_ERROR, client.requestPosition(request(), new WlocPosition()));
+    }
+
+    @Test
+    public void serverThatNeverRespondsIsSkipped() throws Exception {
+        AtomicInteger hits = new AtomicInteger();
+        LocatorPool pool = new LocatorPool(startServer(60000, 200, 45.0, hits));
+        LocatorEndpoint endpoint = pool.getEndpoints()[0];
+        // a timeout of MIN_TIMEOUT_MILLIS
+        warmUp(endpoint, 100);
+        HedgedLocatorClient client = new HedgedLocatorClient(pool, false);
+        for (int i = 0; i < LocatorEndpoint.FAILURES_TO_OPEN; i++)
+            assertEquals(ResultCode.IO_ERROR, client.requestPosition(request(), new WlocPosition()));
+        // the failure is recorded by the aborted request, on its own thread
+        long end = System.currentTimeMillis() + 2000;
+        while (!endpoint.isOpen(System.nanoTime() / 1000000) && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertTrue(endpoint.isOpen(System.nanoTime() / 1000000));
+        long start = System.nanoTime();
+        assertEquals(ResultCode.CONNECTION_ERROR, client.requestPosition(request(), new WlocPosition()));
+        assertTrue(System.nanoTime() - start < 100 * 1000000L);
+        assertEquals(LocatorEndpoint.FAILURES_TO_OPEN, hits.get());
+    }
+}
@@ -0,0 +1,67 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PositionCacheTest {
+
+    private static wloc_req request(String... bssids) {
+        wloc_req req = new wloc_req();
+        System.arraycopy(bssids, 0, req.bssids, 0, bssids.length);
+        return req;
+    }
+
+    private static WlocPosition position(double lat, double lon) {
+        WlocPosition pos = new WlocPosition(lat, lon);
+        pos.setQuality((short) 80);
+        return pos;
+    }
+
+    @Test
+    public void sameNetworksInAnyOrderHit() {
+        PositionCache cache = new PositionCache(4, 1000, 1f);
+        WlocPosition pos = position(45.0, 7.6);
+        cache.put(request("001122334455", "AABBCCDDEEFF"), pos, 0);
+        WlocPosition cached = cache.get(request("AA:BB:CC:DD:EE:FF", "00:11:22:33:44:55"), 10);
+        assertNotSame(pos, cached);
+        assertEquals(45.0, cached.getLatitude(), 0);
+        assertEquals(7.6, cached.getLongitude(), 0);
+        assertNull(cache.get(request("001122334455"), 10));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void similarScanHits() {
+        PositionCache cache = new PositionCache(4, 1000, 0.6f);
+        WlocPosition pos = position(45.0, 7.6);
+        cache.put(request("000000000001", "000000000002", "000000000003", "000000000004"), pos, 0);
+        // 3 common networks out of 5
+        assertEquals(45.0, cache.get(request("000000000001", "000000000002", "000000000003", "000000000005"), 10)
+                .getLatitude(), 0);
+        // 2 common networks out of 6
+        assertNull(cache.get(request("000000000001", "000000000002", "000000000005", "000000000006"), 10));
+    }
+
+    @Test
+    public void expiredEntriesAreEvicted() {
+        PositionCache cache = new PositionCache(4, 1000, 1f);
+        cache.put(request("001122334455"), position(45.0, 7.6), 0);
+        assertNull(cache.get(request("001122334455"), 1001));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        PositionCache cache = new PositionCache(2, 1000, 1f);
+        cache.put(request("000000000001"), position(1, 1), 0);
+        cache.put(request("000000000002"), position(2, 2), 0);
+        assertNotNull(cache.get(request("000000000001"), 1));
+        cache.put(request("000000000003"), position(3, 3), 2);
+        assertNull(cache.get(request("000000000002"), 3));
+        assertNotNull(cache.get(request("000000000001"), 3));
+        assertEquals(1, cache.getEvictions());
+    }
+}
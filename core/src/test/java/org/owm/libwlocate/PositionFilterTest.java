@@ -0,0 +1,48 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PositionFilterTest {
+    private static final double M = PathLoss.METERS_PER_DEGREE;
+
+    @Test
+    public void stationaryNoiseIsSmoothed() {
+        PositionFilter filter = new PositionFilter(0.1);
+        double[] out = new double[3];
+        assertFalse(filter.estimate(0, out));
+        Random random = new Random(1);
+        for (int t = 0; t < 60; t++)
+            filter.update(45 + random.nextGaussian() * 20 / M, 7, 20, t * 1000);
+        assertTrue(filter.estimate(60000, out));
+        assertEquals(45, out[PositionSolver.LAT], 8 / M);
+        assertTrue(out[PositionSolver.RADIUS] < 20);
+    }
+
+    @Test
+    public void constantVelocityIsTracked() {
+        PositionFilter filter = new PositionFilter();
+        double[] out = new double[3];
+        // 10 m/s to the north
+        for (int t = 0; t <= 30; t++) filter.update(45 + 10 * t / M, 7, 5, t * 1000);
+        assertEquals(10, filter.getSpeed(), 0.5);
+        filter.estimate(32000, out);
+        assertEquals(45 + 320 / M, out[PositionSolver.LAT], 3 / M);
+        assertEquals(7, out[PositionSolver.LON], 1e-6);
+    }
+
+    @Test
+    public void precisePositionsWeighMore() {
+        PositionFilter filter = new PositionFilter();
+        double[] out = new double[3];
+        filter.update(45, 7, 5, 0);         // GPS fix
+        filter.update(45 + 100 / M, 7, 100, 0); // WiFi position 100 m away
+        filter.estimate(0, out);
+        double moved = (out[PositionSolver.LAT] - 45) * M;
+        assertTrue(moved > 0 && moved < 1);
+        assertTrue(out[PositionSolver.RADIUS] < 5);
+    }
+}
@@ -0,0 +1,127 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PositionPublisherTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    static class Recorder implements PositionPublisher.Subscriber {
+        final List<PositionUpdate> updates = new ArrayList<PositionUpdate>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        PositionPublisher.Subscription subscription;
+        Throwable error;
+        volatile Thread thread;
+
+        @Override
+        public void onSubscribe(PositionPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(PositionUpdate update) {
+            thread = Thread.currentThread();
+            updates.add(update);
+            notifyAll();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (updates.size() < count && System.currentTimeMillis() < end) wait(100);
+            assertEquals(count, updates.size());
+        }
+    }
+
+    private static PositionUpdate update(double lat) {
+        return new PositionUpdate(ResultCode.OK, lat, 7, 50, (short) 0, 0);
+    }
+
+    @Test
+    public void onlyTheLatestUpdateWaitsForDemand() {
+        PositionPublisher publisher = new PositionPublisher(DIRECT);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        publisher.publish(update(1));
+        assertTrue(recorder.updates.isEmpty());
+
+        recorder.subscription.request(1);
+        assertEquals(1, recorder.updates.get(0).getLatitude(), 0);
+        publisher.publish(update(2));
+        publisher.publish(update(3));
+        publisher.publish(PositionUpdate.error(ResultCode.SERVER_ERROR, 0));
+        assertEquals(1, recorder.updates.size());
+
+        recorder.subscription.request(5);
+        assertEquals(2, recorder.updates.size());
+        assertFalse(recorder.updates.get(1).isOk());
+        assertEquals(ResultCode.SERVER_ERROR, recorder.updates.get(1).getResult());
+        publisher.publish(update(4));
+        assertEquals(3, recorder.updates.size());
+
+        recorder.subscription.cancel();
+        publisher.publish(update(5));
+        assertEquals(3, recorder.updates.size());
+        assertFalse(publisher.hasSubscribers());
+
+        Recorder invalid = new Recorder();
+        publisher.subscribe(invalid);
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void subscribersReceiveTheUpdatesOnTheirExecutors() throws Exception {
+        PositionPublisher publisher = new PositionPublisher();
+        ExecutorService own = Executors.newSingleThreadExecutor();
+        Recorder first = new Recorder(), second = new Recorder();
+        publisher.subscribe(first);
+        publisher.subscribe(second, own);
+        // onSubscribe runs on the executors too
+        long end = System.currentTimeMillis() + 5000;
+        while ((first.subscription == null || second.subscription == null) && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        first.subscription.request(Long.MAX_VALUE);
+        second.subscription.request(Long.MAX_VALUE);
+
+        for (int i = 0; i < 100; i++) {
+            publisher.publish(update(i));
+            first.await(i + 1);
+            second.await(i + 1);
+        }
+        assertEquals(99, second.updates.get(99).getLatitude(), 0);
+        assertNotSame(Thread.currentThread(), first.thread);
+        assertTrue(first.thread.getName().startsWith("wlocate-publisher-"));
+        assertNotSame(first.thread, second.thread);
+
+        publisher.close();
+        assertTrue(first.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(second.completed.await(5, TimeUnit.SECONDS));
+        assertFalse(publisher.hasSubscribers());
+        own.shutdown();
+    }
+}
@@ -0,0 +1,129 @@
+package org.owm.libwlocate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class PositionResolverTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static wloc_req request(String... bssids) {
+        wloc_req req = new wloc_req();
+        for (int i = 0; i < bssids.length; i++) {
+            req.bssids[i] = bssids[i];
+            req.signal[i] = (byte) -60;
+        }
+        return req;
+    }
+
+    private static HttpServer startServer(final String response) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read(new byte[256]) != -1) {
+                    // not looked at
+                }
+                byte[] body = response.getBytes("US-ASCII");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @Test
+    public void learntAccessPointsAreUsedWhenTheServerIsDown() throws Exception {
+        HttpServer server = startServer("result=1\r\nquality=80\r\nlat=45.5\r\nlon=7.5\r\n");
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php");
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        PositionResolver resolver = new PositionResolver(url, false);
+        resolver.setApStore(store);
+        WlocPosition position = new WlocPosition();
+        assertEquals(ResultCode.OK, resolver.resolve(request("001122334455", "001122334466"), position));
+        assertEquals(45.5, position.getLatitude(), 1e-7);
+        assertEquals(40, position.getRadius(), 0);
+        store.flush();
+        server.stop(0);
+
+        ScanBatch batch = new ScanBatch(request("001122334455"), request("0011223344FF"));
+        resolver.resolve(batch);
+        assertEquals(ResultCode.OK, batch.results[0]);
+        assertEquals(7.5, batch.positions[0].getLongitude(), 1e-7);
+        assertEquals(ResultCode.IO_ERROR, batch.results[1]);
+        assertNull(batch.positions[1]);
+    }
+
+    @Test
+    public void cacheAndLocalDatabaseWithoutNetwork() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        store.put(0x001122334455L, 45.0, 7.0, (short) 50);
+        store.flush();
+        PositionCache cache = new PositionCache();
+        PositionResolver resolver = new PositionResolver(new URL("http://127.0.0.1:1/getpos.php"), false);
+        resolver.setNetworkAccess(false);
+        resolver.setApStore(store);
+        resolver.setPositionCache(cache);
+        WlocPosition position = new WlocPosition();
+        assertEquals(ResultCode.NO_LOCAL_POSITION, resolver.resolve(request("0011223344FF"), position));
+        assertEquals(ResultCode.OK, resolver.resolve(request("001122334455"), position));
+        assertEquals(45.0, position.getLatitude(), 1e-7);
+        assertEquals(1, cache.size());
+        assertEquals(ResultCode.OK, resolver.resolve(request("001122334455"), new WlocPosition()));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void similarScansReuseThePreviousPosition() throws Exception {
+        HttpServer server = startServer("result=1\r\nquality=80\r\nlat=45.5\r\nlon=7.5\r\n");
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php");
+            PositionResolver resolver = new PositionResolver(url, false);
+            resolver.setIncremental(0.8f, 60000);
+            WlocPosition position = new WlocPosition();
+            assertEquals(ResultCode.OK, resolver.resolve(request("001122334455", "001122334466"), position));
+            server.stop(0);
+            // the server is gone, only a close scan can be resolved
+            assertEquals(ResultCode.OK, resolver.resolve(request("001122334466", "001122334455"), position));
+            assertEquals(45.5, position.getLatitude(), 1e-7);
+            assertEquals(ResultCode.IO_ERROR, resolver.resolve(request("0011223344FF"), position));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void accessPointsUnknownToTheServerAreMisses() throws Exception {
+        HttpServer server = startServer("result=0\r\n");
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getpos.php");
+            PositionResolver resolver = new PositionResolver(url, false);
+            ApSelector selector = new ApSelector(ApSelector.KNOWN_FIRST, 20);
+            resolver.setApSelector(selector);
+            wloc_req request = new wloc_req(20);
+            for (int i = 0; i < 20; i++) request.bssids[i] = Bssid.format(0x001122334400L + 16 * i);
+            assertEquals(ResultCode.PARSING_RESPONSE_ERROR, resolver.resolve(request, new WlocPosition()));
+            assertEquals(20, selector.getMissCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
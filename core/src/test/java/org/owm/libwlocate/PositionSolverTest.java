@@ -0,0 +1,81 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PositionSolverTest {
+    // four access points on a square of about 110 m
+    private static final double[] LAT = {45.0, 45.0, 45.001, 45.001};
+    private static final double[] LON = {7.0, 7.0014, 7.0, 7.0014};
+
+    @Test
+    public void centroidOfEqualSignalsIsTheCenter() {
+        double[] result = new double[3];
+        byte[] signal = {60, 60, 60, 60};
+        assertTrue(new WeightedCentroidSolver().solve(LAT, LON, signal, 4, result));
+        assertEquals(45.0005, result[PositionSolver.LAT], 1e-9);
+        assertEquals(7.0007, result[PositionSolver.LON], 1e-9);
+        assertTrue(result[PositionSolver.RADIUS] > 0);
+    }
+
+    @Test
+    public void strongerSignalPullsThePosition() {
+        double[] result = new double[3];
+        byte[] signal = {40, 80, 80, 80};
+        assertTrue(new WeightedCentroidSolver().solve(LAT, LON, signal, 4, result));
+        assertTrue(result[PositionSolver.LAT] < 45.0005);
+        assertTrue(result[PositionSolver.LON] < 7.0007);
+    }
+
+    @Test
+    public void trilaterationFindsTheMatchingPoint() {
+        // signals giving the same distance from all the corners: the answer is the center
+        byte[] signal = {75, 75, 75, 75};
+        double[] result = new double[3];
+        assertTrue(new TrilaterationSolver().solve(LAT, LON, signal, 4, result));
+        assertEquals(45.0005, result[PositionSolver.LAT], 1e-5);
+        assertEquals(7.0007, result[PositionSolver.LON], 1e-5);
+    }
+
+    @Test
+    public void trilaterationIsCloserThanTheCentroid() {
+        // five access points, three of them on the east side, and the device near the south-west corner
+        double[] east = {0, 120, 0, 120, 120}, north = {0, 0, 100, 100, 50};
+        double trueEast = 25, trueNorth = 30;
+        double[] lat = new double[5], lon = new double[5];
+        byte[] signal = new byte[5];
+        double metersPerLon = PathLoss.METERS_PER_DEGREE * Math.cos(Math.toRadians(45));
+        for (int i = 0; i < 5; i++) {
+            lat[i] = 45 + north[i] / PathLoss.METERS_PER_DEGREE;
+            lon[i] = 7 + east[i] / metersPerLon;
+            double d = Math.hypot(east[i] - trueEast, north[i] - trueNorth);
+            // the signal of the path loss model at that distance, rounded to dBm as the scans are
+            signal[i] = (byte) Math.round(-PathLoss.RSSI_AT_ONE_METER + 10 * PathLoss.EXPONENT * Math.log10(d));
+        }
+        double[] result = new double[3];
+        assertTrue(new TrilaterationSolver().solve(lat, lon, signal, 5, result));
+        double trilateration = error(result, trueEast, trueNorth, metersPerLon);
+        assertTrue(new WeightedCentroidSolver().solve(lat, lon, signal, 5, result));
+        double centroid = error(result, trueEast, trueNorth, metersPerLon);
+        assertTrue(trilateration < 10);
+        assertTrue(trilateration < centroid / 2);
+    }
+
+    /**
+     * @return the distance in meters between the result and the true position
+     */
+    private static double error(double[] result, double trueEast, double trueNorth, double metersPerLon) {
+        double east = (result[PositionSolver.LON] - 7) * metersPerLon;
+        double north = (result[PositionSolver.LAT] - 45) * PathLoss.METERS_PER_DEGREE;
+        return Math.hypot(east - trueEast, north - trueNorth);
+    }
+
+    @Test
+    public void nothingToSolve() {
+        double[] result = new double[3];
+        assertFalse(new TrilaterationSolver().solve(LAT, LON, new byte[4], 0, result));
+        assertTrue(new TrilaterationSolver().solve(LAT, LON, new byte[4], 1, result));
+        assertEquals(45.0, result[PositionSolver.LAT], 0);
+    }
+}
@@ -0,0 +1,79 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanBufferTest {
+
+    @Test
+    public void parsesAndFormatsBssids() {
+        assertEquals(0x001122AABBCCL, Bssid.parse("00:11:22:aa:bb:cc"));
+        assertEquals(0x001122AABBCCL, Bssid.parse("00.11.22.AA.BB.CC"));
+        assertEquals(0x001122AABBCCL, Bssid.parse("001122AABBCC"));
+        assertEquals(Bssid.INVALID, Bssid.parse("00:11:22:aa:bb"));
+        assertEquals(Bssid.INVALID, Bssid.parse("00:11:22:aa:bb:cc:dd"));
+        assertEquals(Bssid.INVALID, Bssid.parse("00:11:22:aa:bb:zz"));
+        assertEquals("001122AABBCC", Bssid.format(0x001122AABBCCL));
+    }
+
+    @Test
+    public void selectsTheStrongestInOrder() {
+        ScanBuffer buffer = new ScanBuffer();
+        buffer.add("00:00:00:00:00:01", -80);
+        buffer.add("00:00:00:00:00:00", -10); // invalid, skipped
+        buffer.add("00:00:00:00:00:02", -50);
+        buffer.add("00:00:00:00:00:03", -90);
+        buffer.add("00:00:00:00:00:04", -50);
+        buffer.add("00:00:00:00:00:05", -60);
+        assertEquals(5, buffer.size());
+        assertEquals(3, buffer.selectStrongest(3));
+        assertEquals(2, buffer.selectedMac(0));
+        assertEquals(4, buffer.selectedMac(1)); // same level, scan order
+        assertEquals(5, buffer.selectedMac(2));
+
+        wloc_req req = new wloc_req();
+        buffer.fill(req);
+        assertEquals("000000000002", req.bssids[0]);
+        assertEquals(50, req.signal[0]);
+        assertEquals(5, req.macs[2]);
+        assertNull(req.bssids[3]);
+    }
+
+    @Test
+    public void growsForDenseScans() {
+        ScanBuffer buffer = new ScanBuffer();
+        for (int i = 1; i <= 500; i++) buffer.add(Bssid.format(i), -100 + i % 70);
+        assertEquals(500, buffer.size());
+        assertEquals(wloc_req.WLOC_MAX_NETWORKS, buffer.selectStrongest(wloc_req.WLOC_MAX_NETWORKS));
+        // 7 networks for each level from -31 dBm down
+        assertEquals(-31, buffer.selectedLevel(6));
+        assertEquals(-32, buffer.selectedLevel(7));
+        assertEquals(-32, buffer.selectedLevel(13));
+        assertEquals(-33, buffer.selectedLevel(14));
+    }
+
+    @Test
+    public void keepsOneBssidForEachAccessPoint() {
+        assertTrue(Bssid.sameDevice(0x001122AABBC0L, 0x001122AABBCFL));
+        assertTrue(Bssid.sameDevice(0x001122AABBC0L, 0x061122AABBC1L)); // locally administered
+        assertFalse(Bssid.sameDevice(0x001122AABBC0L, 0x041122AABBC0L));
+        assertFalse(Bssid.sameDevice(0x001122AABBC0L, 0x001122AABBD0L));
+
+        ScanBuffer buffer = new ScanBuffer();
+        buffer.add("00:11:22:aa:bb:c0", -60);
+        buffer.add("00:11:22:aa:bb:d0", -75);
+        buffer.add("00:11:22:aa:bb:c1", -50); // 5 GHz radio of the first one, stronger
+        buffer.add("02:11:22:aa:bb:c2", -55); // guest SSID of the first one
+        buffer.add("00:11:22:aa:bb:e0", -70);
+        buffer.add("00:11:22:aa:bb:d4", -80);
+        assertEquals(3, buffer.selectStrongestDevices(3));
+        assertEquals(0x001122AABBC1L, buffer.selectedMac(0));
+        assertEquals(0x001122AABBE0L, buffer.selectedMac(1));
+        assertEquals(0x001122AABBD0L, buffer.selectedMac(2));
+        assertEquals(2, buffer.selectStrongestDevices(2));
+        assertEquals(0x001122AABBE0L, buffer.selectedMac(1));
+        assertEquals(3, buffer.selectStrongest(3));
+        assertEquals(0x021122AABBC2L, buffer.selectedMac(1));
+    }
+}
@@ -0,0 +1,65 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanDiffTest {
+    private static wloc_req request(long[] macs, int[] levels) {
+        wloc_req req = new wloc_req();
+        for (int i = 0; i < macs.length; i++) {
+            req.macs[i] = macs[i];
+            req.bssids[i] = Bssid.format(macs[i]);
+            req.signal[i] = (byte) Math.abs(levels[i]);
+        }
+        return req;
+    }
+
+    @Test
+    public void weakNetworksMatterLessThanStrongOnes() {
+        long[] a = new long[4], b = new long[4];
+        double[] wa = new double[4], wb = new double[4];
+        int na = ScanSimilarity.sortedScan(request(new long[]{1, 2, 3}, new int[]{-50, -60, -90}), a, wa);
+        int nb = ScanSimilarity.sortedScan(request(new long[]{1, 2, 4}, new int[]{-50, -60, -90}), b, wb);
+        assertEquals(3, na);
+        // half of the networks are different, but only weak ones
+        assertEquals(0.5f, ScanSimilarity.jaccard(a, na, b, nb), 1e-6);
+        assertTrue(ScanSimilarity.weightedJaccard(a, wa, na, b, wb, nb) > 0.9f);
+        nb = ScanSimilarity.sortedScan(request(new long[]{5, 2, 3}, new int[]{-50, -60, -90}), b, wb);
+        assertTrue(ScanSimilarity.weightedJaccard(a, wa, na, b, wb, nb) < 0.5f);
+        assertEquals(1f, ScanSimilarity.weightedJaccard(a, wa, na, a, wa, na), 1e-6);
+    }
+
+    @Test
+    public void closeScansReuseThePosition() {
+        ScanDiff diff = new ScanDiff(0.8f, 60000);
+        wloc_req first = request(new long[]{1, 2, 3}, new int[]{-50, -60, -90});
+        assertNull(diff.reuse(first, null, 0));
+        WlocPosition position = new WlocPosition(45.0, 7.0);
+        position.setQuality((short) 80);
+        diff.resolved(first, position, 0);
+
+        WlocPosition reused = diff.reuse(request(new long[]{2, 1, 4}, new int[]{-61, -52, -88}), null, 1000);
+        assertNotNull(reused);
+        assertEquals(45.0, reused.getLatitude(), 0);
+        assertEquals(80, reused.getQuality());
+        assertNull(diff.reuse(request(new long[]{5, 6, 3}, new int[]{-50, -60, -90}), null, 1000));
+        // too old
+        assertNull(diff.reuse(first, null, 61000));
+        assertEquals(1, diff.getReused());
+        diff.reset();
+        assertNull(diff.reuse(first, null, 1000));
+    }
+
+    @Test
+    public void newKnownNetworksMoveThePosition() throws Exception {
+        ApIndex index = new ApIndex(16);
+        index.put(4, 45.001, 7.0, (short) 50);
+        ScanDiff diff = new ScanDiff(0.8f, 60000);
+        diff.resolved(request(new long[]{1, 2, 3}, new int[]{-50, -60, -90}), new WlocPosition(45.0, 7.0), 0);
+        WlocPosition reused = diff.reuse(request(new long[]{1, 2, 3, 4}, new int[]{-50, -60, -90, -85}), index, 0);
+        assertTrue(reused.getLatitude() > 45.0);
+        assertTrue(reused.getLatitude() < 45.0005);
+        assertEquals(7.0, reused.getLongitude(), 1e-9);
+    }
+}
@@ -0,0 +1,81 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanQueueTest {
+    @Test
+    public void scansAreSentWhenTheBatchIsFull() {
+        ScanQueue queue = new ScanQueue();
+        queue.setBatching(3, 1000);
+        wloc_req a = new wloc_req(), b = new wloc_req(), c = new wloc_req();
+        assertNull(queue.take(0));
+        assertNull(queue.add(a, 0));
+        assertNull(queue.add(b, 10));
+        assertFalse(queue.isFull());
+        assertFalse(queue.isDue(500));
+        assertNull(queue.add(c, 20));
+        assertTrue(queue.isFull());
+        assertTrue(queue.isDue(30));
+        ScanBatch batch = queue.take(30);
+        assertArrayEquals(new wloc_req[]{a, b, c}, batch.requests);
+        assertEquals(3, batch.results.length);
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isDue(5000));
+    }
+
+    @Test
+    public void firstScanWaitsForTheLingerTime() {
+        ScanQueue queue = new ScanQueue();
+        queue.setBatching(4, 1000);
+        queue.add(new wloc_req(), 100);
+        queue.add(new wloc_req(), 900);
+        assertFalse(queue.isDue(1099));
+        // measured from the first scan, not the last one
+        assertTrue(queue.isDue(1100));
+        assertEquals(2, queue.take(1100).size());
+        // the next scan starts a new wait
+        queue.add(new wloc_req(), 2000);
+        assertFalse(queue.isDue(2999));
+        assertTrue(queue.isDue(3000));
+    }
+
+    @Test
+    public void oldestScansAreDroppedWhenTooManyAreWaiting() {
+        ScanQueue queue = new ScanQueue();
+        queue.setBatching(2, 1000);
+        wloc_req[] scans = new wloc_req[2 * ScanQueue.MAX_PENDING_BATCHES + 2];
+        for (int i = 0; i < scans.length; i++) scans[i] = new wloc_req();
+        for (int i = 0; i < 2 * ScanQueue.MAX_PENDING_BATCHES; i++) assertNull(queue.add(scans[i], i));
+        assertSame(scans[0], queue.add(scans[scans.length - 2], 100));
+        assertSame(scans[1], queue.add(scans[scans.length - 1], 100));
+        // a batch at a time, the others stay queued
+        for (int i = 0; i < ScanQueue.MAX_PENDING_BATCHES; i++) {
+            ScanBatch batch = queue.take(200);
+            assertEquals(2, batch.size());
+            assertSame(scans[2 + 2 * i], batch.requests[0]);
+            assertSame(scans[3 + 2 * i], batch.requests[1]);
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void lingerTimeRestartsForTheScansLeftInTheQueue() {
+        ScanQueue queue = new ScanQueue();
+        queue.setBatching(2, 1000);
+        queue.add(new wloc_req(), 1600);
+        queue.add(new wloc_req(), 1700);
+        queue.add(new wloc_req(), 1800);
+        assertEquals(2, queue.take(2000).size());
+        // the scan left waits from the take, not from when it was added
+        assertEquals(1, queue.size());
+        assertFalse(queue.isDue(2999));
+        assertTrue(queue.isDue(3000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchSizeMustBePositive() {
+        new ScanQueue().setBatching(0, 1000);
+    }
+}
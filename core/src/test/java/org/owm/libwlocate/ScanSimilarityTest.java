@@ -0,0 +1,37 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanSimilarityTest {
+    @Test
+    public void macsAreSortedWithoutInvalidAndDuplicateOnes() {
+        wloc_req req = new wloc_req();
+        req.bssids[0] = "00000000000C";
+        req.bssids[1] = "garbage";
+        req.bssids[2] = "00:00:00:00:00:0A";
+        req.macs[3] = 0x0B;
+        req.bssids[4] = "00000000000a";
+        req.bssids[5] = "00000000000C";
+        long[] out = new long[req.bssids.length];
+        assertEquals(3, ScanSimilarity.sortedMacs(req, out));
+        assertEquals(0x0A, out[0]);
+        assertEquals(0x0B, out[1]);
+        assertEquals(0x0C, out[2]);
+        assertEquals(0, ScanSimilarity.sortedMacs(new wloc_req(), out));
+    }
+
+    @Test
+    public void jaccardIndex() {
+        long[] a = {1, 2, 3, 4}, b = {2, 4, 6}, none = {};
+        // 2 common networks out of 5
+        assertEquals(0.4f, ScanSimilarity.jaccard(a, 4, b, 3), 1e-6);
+        assertEquals(0.4f, ScanSimilarity.jaccard(b, 3, a, 4), 1e-6);
+        assertEquals(1f, ScanSimilarity.jaccard(a, 4, a, 4), 1e-6);
+        // only the first elements count
+        assertEquals(1f, ScanSimilarity.jaccard(a, 2, new long[]{1, 2, 9}, 2), 1e-6);
+        assertEquals(0f, ScanSimilarity.jaccard(a, 4, none, 0), 1e-6);
+        assertEquals(1f, ScanSimilarity.jaccard(none, 0, none, 0), 1e-6);
+    }
+}
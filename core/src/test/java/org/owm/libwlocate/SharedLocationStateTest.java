@@ -0,0 +1,146 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SharedLocationStateTest {
+    private static final int THREADS = 4;
+    private static final int FIXES = 200000;
+
+    @Test
+    public void readersNeverSeeTornFixes() throws Exception {
+        final SharedLocationState state = new SharedLocationState();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong torn = new AtomicLong(), reads = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(2 * THREADS);
+        List<Future<?>> writers = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int writer = t;
+            writers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 1; i <= FIXES; i++) {
+                        // all the values of a fix are derived from its latitude
+                        double lat = writer * 10 + i * 1e-5;
+                        state.gpsFix(lat, -2 * lat, (float) i, writer, -writer, i);
+                        if (i % 64 == 0) state.gpsAvailable(i % 128 == 0);
+                    }
+                    return null;
+                }
+            }));
+        }
+        List<Future<?>> readers = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            readers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    while (writing.get()) {
+                        LocationState s = state.get();
+                        if (s.getGpsFixMillis() == 0) continue;
+                        double lat = s.getGpsLatitude();
+                        int writer = (int) s.getGpsSpeed();
+                        if (s.getGpsLongitude() != -2 * lat || s.getGpsCourse() != -writer
+                                || Math.abs(lat - writer * 10 - s.getGpsRadius() * 1e-5) > 1e-6
+                                || s.getGpsRadius() != s.getGpsFixMillis()) torn.incrementAndGet();
+                        reads.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> writer : writers) writer.get();
+        writing.set(false);
+        for (Future<?> reader : readers) reader.get();
+        executor.shutdown();
+        assertTrue(reads.get() > 0);
+        assertEquals(0, torn.get());
+        assertEquals(FIXES, state.get().getGpsFixMillis());
+    }
+
+    @Test
+    public void updatesOfDifferentFieldsAreNotLost() throws Exception {
+        final SharedLocationState state = new SharedLocationState();
+        final CountDownLatch start = new CountDownLatch(1);
+        final wloc_req request = new wloc_req();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (int i = 1; i <= FIXES; i++) state.gpsFix(45, 7, 10, 1, 0, i);
+                return null;
+            }
+        });
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (int i = 1; i <= FIXES; i++) state.gpsAvailable(i % 2 == 0);
+                return null;
+            }
+        });
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (int i = 1; i <= FIXES; i++) {
+                    state.scanReceived(request, Collections.emptyList());
+                    state.located(LocationState.METHOD_WLOCATE, i);
+                }
+                return null;
+            }
+        });
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) results.add(executor.submit(task));
+        start.countDown();
+        for (Future<Void> result : results) result.get();
+        executor.shutdown();
+        LocationState s = state.get();
+        assertEquals(FIXES, s.getGpsFixMillis());
+        assertTrue(s.isGpsAvailable());
+        assertSame(request, s.getRequest());
+        assertEquals(LocationState.METHOD_WLOCATE, s.getLastMethod());
+        assertEquals(FIXES, s.getLastSpeed(), 0);
+    }
+
+    @Test
+    public void aScanIsTakenOnlyOnce() throws Exception {
+        final SharedLocationState state = new SharedLocationState();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Callable<Boolean>> takers = new ArrayList<Callable<Boolean>>();
+        for (int t = 0; t < THREADS; t++) {
+            takers.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return state.takeScan();
+                }
+            });
+        }
+        for (int round = 0; round < 2000; round++) {
+            state.scanStarted();
+            int taken = 0;
+            for (Future<Boolean> result : executor.invokeAll(takers))
+                if (result.get()) taken++;
+            assertEquals(1, taken);
+            assertFalse(state.get().isScanStarted());
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,206 @@
+package org.owm.libwlocate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TilePrefetcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void quadkeys() {
+        // example of the Bing Maps tile system documentation
+        assertEquals("213", Quadkey.of(3, 5, 3));
+        assertEquals(0, Quadkey.tileX(-180, 10));
+        assertEquals(1023, Quadkey.tileX(179.9999, 10));
+        assertEquals(0, Quadkey.tileY(89, 10));
+        assertEquals(512, Quadkey.tileY(0, 10));
+        int x = Quadkey.tileX(7.66, 14), y = Quadkey.tileY(45.06, 14);
+        assertTrue(Quadkey.of(x, y, 14).startsWith(Quadkey.of(x >> 4, y >> 4, 10)));
+    }
+
+    @Test
+    public void leastRecentlyUsedTilesAreEvicted() throws Exception {
+        File dir = new File(folder.getRoot(), "tiles");
+        TileCache cache = new TileCache(dir, 250);
+        cache.put("0", new byte[100]);
+        cache.put("1", new byte[100]);
+        assertNotNull(cache.get("0"));
+        cache.put("2", new byte[100]);
+        assertEquals(2, cache.size());
+        assertEquals(-1, cache.getTime("1"));
+        assertEquals(100, cache.get("0").length);
+
+        TileCache reopened = new TileCache(dir, 250);
+        assertEquals(200, reopened.getTotalBytes());
+        assertTrue(reopened.getTime("2") > 0);
+    }
+
+    @Test
+    public void checkingTheTimeKeepsTheTile() throws Exception {
+        TileCache cache = new TileCache(new File(folder.getRoot(), "tiles"), 250);
+        cache.put("0", new byte[100]);
+        cache.put("1", new byte[100]);
+        // as the prefetcher does for the tiles around the position
+        assertTrue(cache.getTime("0") > 0);
+        cache.put("2", new byte[100]);
+        assertTrue(cache.getTime("0") > 0);
+        assertEquals(-1, cache.getTime("1"));
+    }
+
+    @Test
+    public void tilesAreImportedAndResolvedLocally() throws Exception {
+        final byte[] tile = tile(0x001122334455L, 45.0, 7.0, 0x001122334466L, 45.001, 7.001);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/tiles/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean found = exchange.getRequestURI().getPath().endsWith("/1");
+                exchange.sendResponseHeaders(found ? 200 : 404, found ? tile.length : -1);
+                OutputStream out = exchange.getResponseBody();
+                if (found) out.write(tile);
+                out.close();
+            }
+        });
+        final int[] requests = new int[1];
+        server.createContext("/getpos.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests[0]++;
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+            TileCache cache = new TileCache(new File(folder.getRoot(), "tiles"), 1 << 20);
+            TilePrefetcher prefetcher = new TilePrefetcher(base + "/tiles/", cache, store);
+            assertEquals(2, prefetcher.fetch("1"));
+            assertEquals(0, prefetcher.fetch("2"));
+            assertEquals(2, cache.size());
+            // written once the queued tiles have been imported
+            assertFalse(store.contains(0x001122334466L));
+            store.flush();
+            assertTrue(store.contains(0x001122334466L));
+
+            PositionResolver resolver = new PositionResolver(new URL(base + "/getpos.php"), false);
+            resolver.setApStore(store);
+            resolver.setLocalFirst(2);
+            wloc_req req = new wloc_req();
+            req.bssids[0] = "001122334455";
+            req.bssids[1] = "001122334466";
+            WlocPosition position = new WlocPosition();
+            assertEquals(ResultCode.OK, resolver.resolve(req, position));
+            assertEquals(45.0005, position.getLatitude(), 1e-3);
+            assertEquals(0, requests[0]);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void learntPositionsAreNotReplacedByTheTiles() throws Exception {
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        store.put(0x001122334455L, 45.01, 7.01, (short) 90, (short) 500);
+        store.put(0x001122334466L, 45.02, 7.02, (short) 40);
+        store.flush();
+        assertEquals(2, TilePrefetcher.importTile(tile(0x001122334455L, 45.0, 7.0, 0x001122334466L, 45.001, 7.001),
+                store));
+        store.flush();
+        double[] ap = new double[3];
+        assertTrue(store.lookup(0x001122334455L, ap));
+        assertEquals(45.01, ap[0], 1e-7);
+        assertEquals(500, store.weight(0x001122334455L));
+        // the positions from the server are refreshed
+        assertTrue(store.lookup(0x001122334466L, ap));
+        assertEquals(45.001, ap[0], 1e-7);
+    }
+
+    @Test
+    public void oversizedTileIsRejected() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/tiles/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(TilePrefetcher.emptyTile());
+                    out.write(new byte[TilePrefetcher.MAX_TILE_SIZE]);
+                    out.close();
+                } catch (IOException e) {
+                    // the client has given up
+                }
+            }
+        });
+        server.start();
+        try {
+            TileCache cache = new TileCache(new File(folder.getRoot(), "tiles"), 1 << 20);
+            TilePrefetcher prefetcher = new TilePrefetcher("http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/tiles/", cache, ApStore.open(new File(folder.getRoot(), "aps.db")));
+            assertEquals(-1, prefetcher.fetch("1"));
+            assertEquals(1, prefetcher.getFailures());
+            assertEquals(0, cache.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void storeIsFlushedAfterTheQueuedTiles() throws Exception {
+        final byte[] tile = tile(0x001122334455L, 45.0, 7.0);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/tiles/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, tile.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(tile);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+            TileCache cache = new TileCache(new File(folder.getRoot(), "tiles"), 1 << 20);
+            TilePrefetcher prefetcher = new TilePrefetcher("http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/tiles/", cache, store);
+            prefetcher.prefetch(45.0, 7.0);
+            long end = System.currentTimeMillis() + 5000;
+            while (!store.contains(0x001122334455L) && System.currentTimeMillis() < end) Thread.sleep(10);
+            assertTrue(store.contains(0x001122334455L));
+            assertEquals(9, prefetcher.getFetched());
+            prefetcher.shutdown();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static byte[] tile(Object... records) {
+        ByteBuffer tile = ByteBuffer.wrap(TilePrefetcher.emptyTile().clone());
+        ByteBuffer out = ByteBuffer.allocate(16 + records.length / 3 * ApStore.RECORD_SIZE);
+        out.put(tile);
+        out.putInt(8, records.length / 3);
+        for (int i = 0; i < records.length; i += 3) {
+            out.putLong((Long) records[i]).putInt((int) Math.round((Double) records[i + 1] * 1e7))
+                    .putInt((int) Math.round((Double) records[i + 2] * 1e7)).putShort((short) 60).putShort((short) 0);
+        }
+        return out.array();
+    }
+}
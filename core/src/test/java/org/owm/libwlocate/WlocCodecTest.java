@@ -0,0 +1,85 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WlocCodecTest {
+
+    private static int parse(String response, WlocPosition position) throws Exception {
+        byte[] bytes = response.getBytes("US-ASCII");
+        return ResponseParser.parse(bytes, bytes.length, position);
+    }
+
+    @Test
+    public void parsesTextResponse() throws Exception {
+        WlocPosition position = new WlocPosition();
+        assertEquals(ResultCode.OK, parse("result=1\r\nquality=77\r\nlat=45.0612345\r\nlon=-7.6612345\r\n", position));
+        assertEquals(77, position.getQuality());
+        assertEquals(45.0612345, position.lat, 0);
+        assertEquals(-7.6612345, position.lon, 0);
+        assertEquals(0, position.getCountryCode());
+        assertEquals(ResultCode.OK, parse("result=1\nquality=77\nlat=45.06\nlon=7.66\nccode=93\n", position));
+        assertEquals(93, position.getCountryCode());
+    }
+
+    @Test
+    public void rejectsBadTextResponses() throws Exception {
+        assertEquals(ResultCode.PARSING_RESPONSE_ERROR, parse("result=0\n", new WlocPosition()));
+        assertEquals(ResultCode.SERVER_ERROR, parse("result=1\nlat=45.0\n", new WlocPosition()));
+        assertEquals(ResultCode.SERVER_ERROR, parse("lat=45.0x\nlon=7\n", new WlocPosition()));
+        assertEquals(ResultCode.SERVER_ERROR, parse("lat=95\nlon=7\n", new WlocPosition()));
+        assertEquals(ResultCode.SERVER_ERROR, parse("<html>error</html>", new WlocPosition()));
+    }
+
+    @Test
+    public void encodesRequest() {
+        wloc_req req = new wloc_req();
+        req.bssids[0] = "00:11:22:AA:BB:CC";
+        req.signal[0] = 61;
+        req.macs[1] = 0xFFEEDDCCBBAAL;
+        ByteBuffer out = ByteBuffer.allocate(WlocCodec.REQUEST_LENGTH);
+        WlocCodec.encodeRequest(req, out);
+        assertFalse(out.hasRemaining());
+        assertEquals(1, out.get(0));
+        assertEquals(118, out.get(1));
+        assertEquals(0x00, out.get(2));
+        assertEquals((byte) 0xCC, out.get(7));
+        assertEquals((byte) 0xFF, out.get(8));
+        assertEquals(0, out.get(14)); // third slot is empty
+        assertEquals(61, out.get(2 + 16 * 6));
+    }
+
+    @Test
+    public void decodesResponse() {
+        ByteBuffer in = ByteBuffer.allocate(WlocCodec.RESPONSE_LENGTH);
+        in.put((byte) 1).put((byte) 24).put((byte) 1).put((byte) 0).put((byte) 90).put(new byte[3])
+                .putInt(450612345).putInt(-76612345).putShort((short) 93).put(new byte[6]);
+        in.flip();
+        WlocPosition position = new WlocPosition();
+        assertEquals(ResultCode.OK, WlocCodec.decodeResponse(in, position));
+        assertEquals(45.0612345, position.lat, 1e-9);
+        assertEquals(-7.6612345, position.lon, 1e-9);
+        assertEquals(90, position.getQuality());
+        assertEquals(93, position.getCountryCode());
+        assertFalse(in.hasRemaining());
+
+        in.put(2, (byte) 0);
+        in.position(0);
+        assertEquals(ResultCode.PARSING_RESPONSE_ERROR, WlocCodec.decodeResponse(in, new WlocPosition()));
+        in.limit(10);
+        assertEquals(ResultCode.SERVER_ERROR, WlocCodec.decodeResponse(in, new WlocPosition()));
+
+        // a declared length longer than the response, or above 127 and negative as a byte
+        in.limit(WlocCodec.RESPONSE_LENGTH);
+        in.put(2, (byte) WlocCodec.RESULT_OK);
+        for (int length : new int[]{100, 200, 23}) {
+            in.put(1, (byte) length);
+            in.position(0);
+            assertEquals(ResultCode.SERVER_ERROR, WlocCodec.decodeResponse(in, new WlocPosition()));
+            assertEquals(0, in.position());
+        }
+    }
+}
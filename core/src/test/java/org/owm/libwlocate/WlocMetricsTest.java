@@ -0,0 +1,71 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WlocMetricsTest {
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) histogram.record(i * 1000);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean());
+        assertEquals(1000000, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void bucketsCoverAllValues() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value);
+            if (bucket > 0) assertTrue(LatencyHistogram.upperBound(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void resultsAreCountedByCode() {
+        WlocMetrics metrics = new WlocMetrics();
+        final int[] listened = new int[1];
+        metrics.setListener(new WlocMetrics.Listener() {
+            @Override
+            public void onTiming(int stage, long nanos) {
+            }
+
+            @Override
+            public void onCacheLookup(boolean hit) {
+            }
+
+            @Override
+            public void onResult(int code) {
+                listened[0]++;
+            }
+        });
+        metrics.recordResult(ResultCode.OK);
+        metrics.recordResult(ResultCode.OK);
+        metrics.recordResult(ResultCode.IO_ERROR);
+        metrics.recordResult(100); // WLocate.WLOC_ERROR
+        metrics.recordCacheLookup(true);
+        assertEquals(2, metrics.getResultCount(ResultCode.OK));
+        assertEquals(1, metrics.getResultCount(ResultCode.IO_ERROR));
+        assertEquals(1, metrics.getResultCount(WlocMetrics.OTHER_RESULT));
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(0, metrics.getCacheMisses());
+        assertEquals(4, listened[0]);
+        metrics.record(WlocMetrics.STAGE_PARSE, System.nanoTime());
+        assertEquals(1, metrics.getHistogram(WlocMetrics.STAGE_PARSE).getCount());
+        metrics.reset();
+        assertEquals(0, metrics.getResultCount(ResultCode.OK));
+        assertEquals(0, metrics.getHistogram(WlocMetrics.STAGE_PARSE).getCount());
+    }
+}
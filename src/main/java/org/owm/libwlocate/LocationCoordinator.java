@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Process-wide coordinator shared by all the WLocate instances, so that several components asking for
+ * the position at the same time don't each start their own scan and their own request to the server.
+ * <ul>
+ *     <li>a scan is not started again while another one is running: the scan results broadcast reaches
+ *     every registered receiver anyway</li>
+ *     <li>a lookup whose networks are similar enough to one already in flight joins it, and gets its
+ *     result when that completes instead of sending its own request</li>
+ * </ul>
+ * A lookup that expires, or that is given up, hands back its waiters so that they can be told about it.
+ * @param <W> the waiting instances, WLocate in the library
+ */
+final class LocationCoordinator<W> {
+    /** A scan started less than this time ago is considered still running */
+    static final long SCAN_COALESCE_MILLIS = 5000;
+    /** Lookups in flight for longer than this are forgotten, e.g. when they were cancelled */
+    static final long LOOKUP_TIMEOUT_MILLIS = 30000;
+    /** Minimum Jaccard index between the networks of two lookups to share the result */
+    static final float MIN_SIMILARITY = 0.8f;
+
+    private static final LocationCoordinator<WLocate> INSTANCE = new LocationCoordinator<WLocate>();
+
+    private long scanStartedAt = -1;
+    private final ArrayList<Lookup<W>> lookups = new ArrayList<Lookup<W>>();
+    private long[] macs = new long[wloc_req.WLOC_MAX_NETWORKS];
+
+    static LocationCoordinator<WLocate> get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return true if the caller has to start a scan, false if one is already running
+     */
+    synchronized boolean requestScan(long now) {
+        if (scanStartedAt >= 0 && now - scanStartedAt < SCAN_COALESCE_MILLIS) return false;
+        scanStartedAt = now;
+        return true;
+    }
+
+    /**
+     * Called when scan results are broadcast, the next request needs a new scan
+     */
+    synchronized void scanResultsAvailable() {
+        scanStartedAt = -1;
+    }
+
+    /**
+     * Join a lookup in flight with similar networks, if any
+     * @param request the request data
+     * @param waiter the instance waiting for the result, it gets it from the caller of complete(), or an error
+     *               from the caller of expire()
+     * @param now current time in milliseconds
+     * @return true if the request joined a lookup, false if it has to be sent
+     */
+    synchronized boolean join(wloc_req request, W waiter, long now) {
+        if (macs.length < request.bssids.length) macs = new long[request.bssids.length];
+        int count = ScanSimilarity.sortedMacs(request, macs);
+        if (count == 0) return false;
+        for (Lookup<W> lookup : lookups) {
+            // left to expire()
+            if (now - lookup.started > LOOKUP_TIMEOUT_MILLIS) continue;
+            if (ScanSimilarity.jaccard(lookup.macs, lookup.count, macs, count) >= MIN_SIMILARITY) {
+                lookup.waiters.add(new WeakReference<W>(waiter));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Register a lookup that is going to be sent, so that similar ones can join it
+     * @param request the request data, the same instance has to be given to complete()
+     * @param now current time in milliseconds
+     */
+    synchronized void begin(wloc_req request, long now) {
+        lookups.add(new Lookup<W>(request, now));
+    }
+
+    /**
+     * @param request the lookup that has been resolved, or given up: then the waiters have to get an error
+     * @return the instances that joined the lookup and are waiting for its result, possibly empty
+     */
+    synchronized List<W> complete(wloc_req request) {
+        ArrayList<W> waiting = new ArrayList<W>();
+        Iterator<Lookup<W>> it = lookups.iterator();
+        while (it.hasNext()) {
+            Lookup<W> lookup = it.next();
+            if (lookup.request != request) continue;
+            it.remove();
+            lookup.addWaiters(waiting);
+            break;
+        }
+        return waiting;
+    }
+
+    /**
+     * Forget the lookups in flight for longer than LOOKUP_TIMEOUT_MILLIS
+     * @param now current time in milliseconds
+     * @return the instances that joined them, they have to get an error. Possibly empty
+     */
+    synchronized List<W> expire(long now) {
+        ArrayList<W> waiting = new ArrayList<W>();
+        Iterator<Lookup<W>> it = lookups.iterator();
+        while (it.hasNext()) {
+            Lookup<W> lookup = it.next();
+            if (now - lookup.started <= LOOKUP_TIMEOUT_MILLIS) continue;
+            it.remove();
+            lookup.addWaiters(waiting);
+        }
+        return waiting;
+    }
+
+    private static class Lookup<W> {
+        final wloc_req request;
+        final long[] macs;
+        final int count;
+        final long started;
+        final ArrayList<WeakReference<W>> waiters = new ArrayList<WeakReference<W>>(2);
+
+        Lookup(wloc_req request, long started) {
+            this.request = request;
+            this.started = started;
+            macs = new long[request.bssids.length];
+            count = ScanSimilarity.sortedMacs(request, macs);
+        }
+
+        void addWaiters(List<W> out) {
+            for (WeakReference<W> ref : waiters) {
+                W waiter = ref.get();
+                if (waiter != null) out.add(waiter);
+            }
+        }
+    }
+}
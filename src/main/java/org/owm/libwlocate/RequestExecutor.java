@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016  Fabio Mazza
+ * This file is part of libwlocate-gradle
+ *
+ * libwlocate-gradle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.owm.libwlocate;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool shared by all the WLocate instances of the process to run the requests to the server,
+ * so that no thread is created for each scan.
+ * The pool has a few threads and a bounded queue: when the queue is full the oldest waiting request is
+ * cancelled to make room, as its scan is the most out of date one. It may belong to another WLocate, so
+ * a Droppable request is told about it, to give its scans back with an error.
+ */
+final class RequestExecutor {
+    /**
+     * A request that has to know when it is dropped from the queue
+     */
+    interface Droppable extends Runnable {
+        /** Called instead of run() when the request has been dropped to make room for a newer one */
+        void dropped();
+    }
+
+    static final int THREADS = 2;
+    static final int QUEUE_SIZE = 8;
+    /** Idle threads are stopped after this time, in seconds */
+    static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor executor;
+
+    private RequestExecutor() {
+    }
+
+    /**
+     * Queue a request
+     * @param request the request, if it is Droppable it is told when it's dropped
+     * @return the future of the request, cancelling it doesn't call dropped()
+     */
+    static Future<?> submit(Runnable request) {
+        Queued queued = new Queued(request);
+        get().execute(queued);
+        return queued;
+    }
+
+    static synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "wlocate-net-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                    if (e.isShutdown()) return;
+                    Runnable oldest = e.getQueue().poll();
+                    if (oldest instanceof Queued) ((Queued) oldest).drop();
+                    else if (oldest instanceof Future) ((Future<?>) oldest).cancel(false);
+                    e.execute(r);
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static class Queued extends FutureTask<Void> {
+        private final Runnable request;
+
+        Queued(Runnable request) {
+            super(request, null);
+            this.request = request;
+        }
+
+        void drop() {
+            if (cancel(false) && request instanceof Droppable) ((Droppable) request).dropped();
+        }
+    }
+}
@@ -22,6 +22,10 @@ import java.io.*;
 import java.lang.ref.WeakReference;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import android.content.*;
 import android.net.wifi.*;
@@ -31,140 +35,94 @@ import android.os.Handler;
 import android.util.Log;
 
 
-/**
- * Internal class, used for storing the position information
- */
-class WlocPosition
-{
-
-   double lat,lon;
-   short  quality;
-   short countryCode;
-   WlocPosition (){
-
-   }
-   WlocPosition(double latitude, double longitude)
-   {
-      this.lat = latitude;
-      this.lon = longitude;
-   }
-
-   public short getCountryCode() {
-      return countryCode;
-   }
-
-   public void setCountryCode(short countryCode) {
-      this.countryCode = countryCode;
-   }
-
-   public short getQuality() {
-      return quality;
-   }
-
-   public void setQuality(short quality) {
-      this.quality = quality;
-   }
-
-}
-
 /**
  * This class should handle the website request instead of the WLocate.
  * We need a Messenger and an Handler to communicate between the two
  *
  * @author fabmazz
  */
-class DatabaseRequester implements Runnable {
+class DatabaseRequester implements RequestExecutor.Droppable {
     private Messenger messenger;
-    private String postData;
-    private  String websiteURL;
-    private HttpURLConnection con;
-    private BufferedOutputStream outputStream;
-    private WlocPosition position;
+    private LocatorPool servers;
+    private volatile boolean started;
+    private ScanBatch batch;
+    private ApStore apStore;
+    private PositionSolver solver;
+    private boolean binary;
+    private int localFirstMinAps;
+    private ApSelector apSelector;
 
     /**
      *
-     * @param url this is the URL to make the connection to, already prepared
-     * @param postData The data to send in the POST request, already compressed in one string
-     * @param incomingMsg the messenger needed for IPC
+     * @param servers the servers to send the requests to, null if none can be used
+     * @param batch the scans to send, one request each, the results are written in it
+     * @param incomingMsg the messenger needed for IPC, the batch is sent back with it when all the scans are done
+     * @param apStore the local database, it learns the access points of the requests and is used
+     *                when the server can't be reached. Can be null
+     * @param solver evaluates the position from the local database
+     * @param binary true to use the binary format of WlocCodec instead of the text one
+     * @param localFirstMinAps resolve the scans with the local database without asking the server when at least
+     *                         this number of their access points are known, 0 to always ask the server
+     * @param apSelector told about the access points the server couldn't locate
      */
-    DatabaseRequester(String url, String postData, Messenger incomingMsg) {
+    DatabaseRequester(LocatorPool servers, ScanBatch batch, Messenger incomingMsg, ApStore apStore, PositionSolver solver,
+                      boolean binary, int localFirstMinAps, ApSelector apSelector) {
         this.messenger = incomingMsg;
-        this.websiteURL = url;
-        this.postData =  postData;
-        outputStream = null;
-        con = null;
+        this.servers = servers;
+        this.batch = batch;
+        this.apStore = apStore;
+        this.solver = solver;
+        this.binary = binary;
+        this.localFirstMinAps = localFirstMinAps;
+        this.apSelector = apSelector;
     }
 
-    @Override
-    public void run() {
-        int rc;
-        position = new WlocPosition();
-        try {
-            URL serverURL= new URL(websiteURL);
-            con = (HttpURLConnection) serverURL.openConnection();
-            if (con == null) return;
-            con.setDoOutput(true); // enable POST
-            con.setRequestMethod("POST");
-            con.addRequestProperty("Content-Type", "application/x-www-form-urlencoded, *.*");
-            con.addRequestProperty("Content-Length", "" + postData.length());
-            outputStream = new BufferedOutputStream(con.getOutputStream());
-            outputStream.write(postData.getBytes(), 0, postData.length());
-            outputStream.flush();
-            outputStream.close();
-            rc = con.getResponseCode();
-            if (rc != HttpURLConnection.HTTP_OK) {
-                sendErrorMessage(WLocate.WLOC_CONNECTION_ERROR);
-                return;
-            }
-            BufferedReader buffReader = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            try {
-                String line;
-                while ((line = buffReader.readLine())!=null) {
-                    line = line.trim();
-                    if (line.contains("result=0"))
-                        sendErrorMessage(WLocate.PARSING_RESPONSE_ERROR); //todo thread stopping
-                    else if (line.contains("quality=")) {
-                        line = line.substring(8);
-                        position.setQuality((short) Integer.parseInt(line));
-                    } else if (line.contains("lat=")) {
-                        line = line.substring(4);
-                        position.lat = Double.parseDouble(line);
-                    } else if (line.contains("lon=")) {
-                        line = line.substring(4);
-                        position.lon = Double.parseDouble(line);
-                    }
-                }
-            } catch (NumberFormatException nfe) {
-                buffReader.close();
-                con.disconnect();
-                sendErrorMessage(WLocate.WLOC_SERVER_ERROR);
-                return;
-            }
-            buffReader.close();
-            con.disconnect();
-        } catch (IOException excep) {
-            excep.printStackTrace();
-            sendErrorMessage(WLocate.IO_ERROR);
-            return;
-        }
-        sendPosition();
+    /**
+     * @return true when the requester has been picked up by a worker thread, before that it can
+     * still be cancelled without losing work
+     */
+    boolean isStarted() {
+        return started;
     }
 
-    private void sendPosition() {
-        Message msg =  new Message();
-        msg.what = WLocate.WLOC_OK;
-        msg.obj = position;
+    @Override
+    public void run() {
+        started = true;
+        // overwritten by the resolver, the scans it doesn't get to get an error
+        Arrays.fill(batch.results, ResultCode.IO_ERROR);
         try {
-            messenger.send(msg);
-        } catch (RemoteException e) {
+            PositionResolver resolver = new PositionResolver(servers, binary);
+            resolver.setApStore(apStore);
+            resolver.setPositionSolver(solver);
+            resolver.setLocalFirst(localFirstMinAps);
+            resolver.setApSelector(apSelector);
+            resolver.resolve(batch);
+        } catch (RuntimeException e) {
+            // it would be lost in the FutureTask, and the batch never handed back
             e.printStackTrace();
+        } finally {
+            sendBatch();
         }
+    }
 
+    /**
+     * The batch has been dropped from the queue for newer ones, possibly of another WLocate: its owner gets it
+     * back with an error, so that it doesn't wait for it forever
+     */
+    @Override
+    public void dropped() {
+        for (int i = 0; i < batch.size(); i++) batch.results[i] = ResultCode.IO_ERROR;
+        sendBatch();
     }
 
-    private void sendErrorMessage(int error) {
-        Message msg = new Message();
-        msg.what=error;
+    /**
+     * Hand the batch back to WLocate, with BATCH_DONE
+     */
+    void sendBatch() {
+        Message msg =  new Message();
+        msg.what = WLocate.BATCH_DONE;
+        msg.obj = batch;
+        batch.sentNanos = System.nanoTime();
         try {
             messenger.send(msg);
         } catch (RemoteException e) {
@@ -195,34 +153,74 @@ public class WLocate
    public static final int FLAG_NO_IP_LOCATION=0x0004; /** Don't send a request to the server for IP-based location in case no WLANs are available */
    public static final int FLAG_UPDATE_AGPS   =0x0008; /** Update AGPS data to get better/faster/mor accurate GPS fixes; this flag is useless when FLAG_NO_GPS_ACCESS is set too */
 
-   public static final int WLOC_OK=0;               /** Result code for position request, given position information are OK */
-   public static final int WLOC_CONNECTION_ERROR=1; /** Result code for position request, a connection error occurred, no position information are available */
-   public static final int WLOC_SERVER_ERROR=2;
-   public static final int PARSING_RESPONSE_ERROR =3;   /** Result code for position request, error occured while parsing the server response, no position information are available */
+   public static final int WLOC_OK=ResultCode.OK;               /** Result code for position request, given position information are OK */
+   public static final int WLOC_CONNECTION_ERROR=ResultCode.CONNECTION_ERROR; /** Result code for position request, a connection error occurred, no position information are available */
+   public static final int WLOC_SERVER_ERROR=ResultCode.SERVER_ERROR;
+   public static final int PARSING_RESPONSE_ERROR =ResultCode.PARSING_RESPONSE_ERROR;   /** Result code for position request, error occured while parsing the server response, no position information are available */
+   public static final int NO_LOCAL_POSITION=ResultCode.NO_LOCAL_POSITION;     /** Result code for position request, network access is disabled and no access point is known to the local database */
    public static final int WLOC_ERROR=100;
     public static final int WIFI_DISABLED = 6;
+    /** @deprecated requests are now queued on a shared worker pool, this code isn't returned anymore */
+    @Deprecated
     public static final int THREAD_ALREADY_RUNNING=7;
    public static final String LOC_SERVER_OPENWLANMAP = "http://openwlanmap.org/";
    public static final String LOC_SERVER_OPENWIFISU = "http://openwifi.su/";
    private static final int WLOC_RESULT_OK=1;
-    public static final int IO_ERROR = 4;
+    public static final int IO_ERROR = ResultCode.IO_ERROR;
+    /** Message sent by DatabaseRequester when all the scans of a batch have been processed */
+    static final int BATCH_DONE = 1000;
 
-   private Location            lastLocation=null;
    private LocationManager     location;
    private GPSLocationListener locationListener;
    private GPSStatusListener   statusListener;
    private WifiManager         wifiMgr;
    private WifiReceiver        receiverWifi = new WifiReceiver();
    boolean   gpsLocationWanted;
-   private boolean             GPSAvailable=false,scanStarted=false,AGPSUpdated=false;
-   private double              m_lat,m_lon;
-   private float               m_radius=1.0f,m_speed=-1.0f,m_cog=-1.0f;
+   private boolean             AGPSUpdated=false;
    private int                 scanFlags;
-   private long                lastLocationMillis=0;
+   private long                scanStartNanos;
    private Context             ctx;
-   private loc_info            locationInfo=new loc_info();
-   private Thread              netThread=null;
-    private String              locatorURL;
+   /** GPS fix and last scan, written by the GPS listener and the scan receiver and read from any thread */
+   private final SharedLocationState state=new SharedLocationState();
+   private Future<?>           netTask=null;
+   private DatabaseRequester   netRequester=null;
+   private ScanBatch           netBatch=null;
+   private PositionHandler     positionHandler;
+   private Messenger           messenger;
+   private final ScanQueue     pendingScans=new ScanQueue();
+   private boolean             binaryProtocol=false;
+   private boolean             continuous=false,continuousPaused=false;
+   private int                 continuousFlags;
+   private long                minScanInterval,maxScanInterval,scanInterval;
+   private float               changeThreshold;
+   private long[]              lastResolvedMacs=new long[wloc_req.WLOC_MAX_NETWORKS];
+   private long[]              scanMacs=new long[wloc_req.WLOC_MAX_NETWORKS];
+   private int                 lastResolvedCount=-1;
+    private LocatorPool         locatorServers;
+    private PositionCache       positionCache=new PositionCache();
+    private volatile ApStore    apStore;
+    private boolean             apStoreReplaced;
+    private final FutureTask<ApStore> apStoreOpening;
+    private PositionSolver      positionSolver=new WeightedCentroidSolver();
+    private TilePrefetcher      tilePrefetcher;
+    private PositionFilter      fusion;
+    private long                fusionInterval;
+    private final double[]      fusionEstimate=new double[3];
+    private int                 localFirstMinAps;
+    private ScanDiff            scanDiff;
+    private CountryLocator      countryLocator;
+    private volatile boolean    groupDevices=true;
+    private volatile ApLearner  apLearner;
+    private volatile ApSelector apSelector=new ApSelector(ApSelector.STRONGEST, wloc_req.WLOC_MAX_NETWORKS);
+    private final PositionPublisher publisher=new PositionPublisher();
+    /** Name of the local access point database, in the files directory of the application */
+    public static final String  AP_STORE_FILE="wloc_ap.db";
+    /** Scans are learnt with a GPS fix at most this old, in milliseconds */
+    public static final long    MAX_LEARN_FIX_AGE_MILLIS=2000;
+    /** Directory of the prefetched tiles, in the cache directory of the application */
+    public static final String  TILE_CACHE_DIR="wloc_tiles";
+    /** With tile prefetching, scans with at least this number of known access points are resolved locally */
+    public static final int     LOCAL_FIRST_MIN_APS=2;
     protected WLocListener wLocListener;
 
 
@@ -237,9 +235,28 @@ public class WLocate
    throws IllegalArgumentException
    {
       gpsLocationWanted = useGps;
-      locatorURL=url;
+      locatorServers=servers(url);
       wifiMgr = (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
       this.ctx=ctx;
+      positionHandler = new PositionHandler(new WeakReference<WLocate>(this));
+      messenger = new Messenger(positionHandler);
+      // the database is read from disk, not on the main thread. Until then the requests go to the server
+      apStoreOpening=new FutureTask<ApStore>(new Callable<ApStore>() {
+         @Override
+         public ApStore call() {
+            try {
+               ApStore store=ApStore.open(new File(WLocate.this.ctx.getFilesDir(), AP_STORE_FILE));
+               apStoreOpened(store);
+               return store;
+            } catch (IOException e) {
+               Log.e("WLocate", "Can't open the local access point database", e);
+               return null;
+            }
+         }
+      });
+      Thread opener=new Thread(apStoreOpening, "wlocate-apstore");
+      opener.setDaemon(true);
+      opener.start();
       if(gpsLocationWanted) startGPSLocation();
        doResume();
    }
@@ -265,6 +282,173 @@ public class WLocate
         this.wLocListener = wLocListener;
     }
 
+    /**
+     * Positions and errors for any number of subscribers, delivered on their own executors instead of the
+     * main thread, with backpressure: a subscriber that is busy only gets the latest position when it asks again.
+     * It receives the same positions as the WLocListener
+     * @return the publisher of this instance
+     */
+    public PositionPublisher getPositionPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Send the requests to several servers instead of the one given to the constructor. Each request goes to the
+     * fastest server that works, and to another one as well when the first doesn't respond within its usual time.
+     * Servers that fail repeatedly are left out for a while
+     * @param urls domain names / URLs (with appended slash!) where getpos.php can be found,
+     *             e.g. LOC_SERVER_OPENWLANMAP and LOC_SERVER_OPENWIFISU
+     */
+    public void setLocatorServers(String... urls) {
+        locatorServers=servers(urls);
+    }
+
+    /**
+     * @return the servers, with their latency and state. Null if their URLs are not valid
+     */
+    public LocatorPool getLocatorServers() {
+        return locatorServers;
+    }
+
+    private static LocatorPool servers(String... urls) {
+        URL[] getposURLs=new URL[urls.length];
+        try {
+            for (int i=0; i<urls.length; i++) getposURLs[i]=new URL(urls[i]+"getpos.php");
+        } catch (MalformedURLException e) {
+            Log.e("WLocate", "Invalid server URL", e);
+            return null;
+        }
+        return new LocatorPool(getposURLs);
+    }
+
+    /**
+     * @return the cache of the positions received from the server, or null if it has been disabled.
+     * Use it to read the hit, miss and eviction counters
+     */
+    public PositionCache getPositionCache() {
+        return positionCache;
+    }
+
+    /**
+     * Replace the cache used to avoid repeating requests for the same access points
+     * @param cache the new cache, or null to send every scan to the server
+     */
+    public void setPositionCache(PositionCache cache) {
+        positionCache = cache;
+    }
+
+    /**
+     * @return the local access point database, used when FLAG_NO_NET_ACCESS is set or the server
+     * can't be reached. Dumps can be imported with ApStore.importDump(). Null if it couldn't be opened.
+     * It is opened in background by the constructor, this waits for it
+     */
+    public ApStore getApStore() {
+        synchronized (this) {
+            if (apStoreReplaced) return apStore;
+        }
+        try {
+            apStoreOpening.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return apStore;
+    }
+
+    /**
+     * @param store the local access point database to use instead of the default one, null to disable it
+     */
+    public synchronized void setApStore(ApStore store) {
+        apStoreReplaced = true;
+        apStore = store;
+    }
+
+    private synchronized void apStoreOpened(ApStore store) {
+        if (!apStoreReplaced) apStore = store;
+    }
+
+    /**
+     * Enable sending the scans to the server in batches. While a request is running, or until the batch
+     * is full, the scans are queued instead of being rejected with THREAD_ALREADY_RUNNING, then they are sent
+     * together and every scan gets its own result through the listener, in the same order.
+     * @param batchSize number of scans sent together, 1 disables batching (the default)
+     * @param maxLingerMillis maximum time a scan waits for the batch to be full before it is sent anyway
+     */
+    public void setBatching(int batchSize, long maxLingerMillis) {
+        if (maxLingerMillis<0) throw new IllegalArgumentException("maxLingerMillis can't be negative");
+        pendingScans.setBatching(batchSize, maxLingerMillis);
+        if (batchSize==1) flushScans();
+    }
+
+    /**
+     * Use the compact binary request and response of the original libwlocate protocol instead of the
+     * text one. Only enable it if the server at the locator URL supports it
+     * @param binary true for the binary protocol, false for the text one (the default)
+     */
+    public void setBinaryProtocol(boolean binary) {
+        binaryProtocol = binary;
+    }
+
+    /**
+     * Learn the positions of the access points from the scans made while a GPS fix is available, into the
+     * local database, so that the scans in the places already visited can be resolved without the server.
+     * Needs the GPS, see the constructor
+     * @param enabled true to learn from the scans, false (the default) to stop
+     * @throws IllegalStateException if there is no local database
+     */
+    public void setApLearning(boolean enabled) {
+        if (apLearner!=null) apLearner.shutdown();
+        apLearner=null;
+        if (!enabled) return;
+        ApStore store=getApStore();
+        if (store==null) throw new IllegalStateException("Learning access points needs the local database");
+        apLearner=new ApLearner(store);
+    }
+
+    /**
+     * Download in background the access points around each position into the local database, so that the
+     * next scans in the same area are resolved locally when at least LOCAL_FIRST_MIN_APS of their access points
+     * are known, without asking the server
+     * @param tileURL prefix of the URLs of the tiles, see TilePrefetcher. Null to disable prefetching
+     * @param maxCacheBytes maximum size of the tiles kept in the cache directory, the access points imported
+     *                      from them into the local database are not counted
+     * @throws IllegalStateException if there is no local database
+     */
+    public void setTilePrefetching(String tileURL, long maxCacheBytes) {
+        if (tilePrefetcher!=null) tilePrefetcher.shutdown();
+        tilePrefetcher=null;
+        localFirstMinAps=0;
+        if (tileURL==null) return;
+        ApStore store=getApStore();
+        if (store==null) throw new IllegalStateException("Tile prefetching needs the local database");
+        try {
+            TileCache cache=new TileCache(new File(ctx.getCacheDir(), TILE_CACHE_DIR), maxCacheBytes);
+            tilePrefetcher=new TilePrefetcher(tileURL, cache, store);
+            localFirstMinAps=LOCAL_FIRST_MIN_APS;
+        } catch (IOException e) {
+            Log.e("WLocate", "Can't open the tile cache", e);
+        }
+    }
+
+    /**
+     * @return the tile prefetcher, to change the area and the maximum age of the tiles. Null if prefetching is disabled
+     */
+    public TilePrefetcher getTilePrefetcher() {
+        return tilePrefetcher;
+    }
+
+    /**
+     * Choose how the position is evaluated from the access points of the local database, the
+     * default is WeightedCentroidSolver. TrilaterationSolver can be more precise when the device sees
+     * at least three known access points
+     * @param solver the solver, not null
+     */
+    public void setPositionSolver(PositionSolver solver) {
+        if (solver==null) throw new IllegalArgumentException("solver can't be null");
+        positionSolver = solver;
+    }
+
 
     private void startGPSLocation()
    {
@@ -282,6 +466,13 @@ public class WLocate
    */
    public void doPause()
    {
+      if (continuous)
+      {
+         continuousPaused=true;
+         positionHandler.removeCallbacks(continuousScanTask);
+      }
+      positionHandler.removeCallbacks(fusionTask);
+      if (apLearner!=null) apLearner.flush();
       try
 	  {
          ctx.unregisterReceiver(receiverWifi);
@@ -302,6 +493,16 @@ public class WLocate
    public void doResume()
    {
       ctx.registerReceiver(receiverWifi, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));            
+      if (continuous && continuousPaused)
+      {
+         continuousPaused=false;
+         positionHandler.post(continuousScanTask);
+      }
+      if (fusion!=null)
+      {
+         positionHandler.removeCallbacks(fusionTask);
+         positionHandler.postDelayed(fusionTask, fusionInterval);
+      }
    }
    
    
@@ -315,7 +516,7 @@ public class WLocate
    public void wlocRequestPosition(int flags)
    {
       scanFlags=flags;
-      scanStarted=true;
+      state.scanStarted();
        if(gpsLocationWanted)
       if (((scanFlags & FLAG_NO_GPS_ACCESS)==0) && ((scanFlags & FLAG_UPDATE_AGPS)!=0) && (!AGPSUpdated))
       {
@@ -326,17 +527,203 @@ public class WLocate
          AGPSUpdated=true;
       }
       if (!wifiMgr.isWifiEnabled()) sendLocationError(WIFI_DISABLED);
-       wifiMgr.startScan();
+       scanStartNanos=System.nanoTime();
+       // another instance may have started a scan already, its results are broadcast to all the receivers
+       if (LocationCoordinator.get().requestScan(SystemClock.elapsedRealtime())) wifiMgr.startScan();
    }
 
 
 
 
+    /**
+     * Start streaming positions to the listener: scans are started periodically and the position is
+     * only evaluated again (with the server or the local database) when the visible networks have changed.
+     * The interval between scans starts at minIntervalMillis and doubles up to maxIntervalMillis while the
+     * networks stay the same, then goes back to minIntervalMillis as soon as they change.
+     * Unchanged scans don't produce a new position.
+     * @param flags the same flags of wlocRequestPosition()
+     * @param minIntervalMillis shortest time between two scans
+     * @param maxIntervalMillis longest time between two scans, when the device doesn't move
+     * @param similarityThreshold the networks are considered unchanged when the Jaccard index of the sets of
+     *                            the last resolved scan and the new one is at least this value, in (0,1]
+     */
+    public void startContinuousPositioning(int flags, long minIntervalMillis, long maxIntervalMillis,
+                                           float similarityThreshold)
+    {
+        if (minIntervalMillis<=0 || maxIntervalMillis<minIntervalMillis)
+            throw new IllegalArgumentException("Invalid scan intervals");
+        if (similarityThreshold<=0 || similarityThreshold>1)
+            throw new IllegalArgumentException("similarityThreshold must be in (0,1]");
+        continuousFlags=flags;
+        minScanInterval=minIntervalMillis;
+        maxScanInterval=maxIntervalMillis;
+        scanInterval=minIntervalMillis;
+        changeThreshold=similarityThreshold;
+        lastResolvedCount=-1;
+        continuous=true;
+        continuousPaused=false;
+        positionHandler.removeCallbacks(continuousScanTask);
+        positionHandler.post(continuousScanTask);
+    }
+
+    /**
+     * Stop the positions started with startContinuousPositioning()
+     */
+    public void stopContinuousPositioning()
+    {
+        continuous=false;
+        positionHandler.removeCallbacks(continuousScanTask);
+    }
+
+    private final Runnable continuousScanTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!continuous) return;
+            wlocRequestPosition(continuousFlags);
+            // in case the scan doesn't complete, e.g. WiFi is disabled, try again later
+            positionHandler.postDelayed(continuousScanTask, maxScanInterval);
+        }
+    };
+
+    /**
+     * Compare a scan of the continuous mode with the last one that was resolved and adapt the scan interval
+     * @param request the new scan
+     * @return true if the networks have changed and the position has to be evaluated again
+     */
+    private boolean continuousScanChanged(wloc_req request)
+    {
+        if (scanMacs.length<request.bssids.length) scanMacs=new long[request.bssids.length];
+        int count=ScanSimilarity.sortedMacs(request, scanMacs);
+        boolean changed=lastResolvedCount<0 ||
+                ScanSimilarity.jaccard(lastResolvedMacs, lastResolvedCount, scanMacs, count)<changeThreshold;
+        if (changed)
+        {
+            long[] swap=lastResolvedMacs;
+            lastResolvedMacs=scanMacs;
+            scanMacs=swap;
+            lastResolvedCount=count;
+            scanInterval=minScanInterval;
+        }
+        else scanInterval=Math.min(scanInterval*2, maxScanInterval);
+        return changed;
+    }
+
+    /**
+     * Schedule the next scan of the continuous mode, after the current interval
+     */
+    private void scheduleContinuousScan()
+    {
+        positionHandler.removeCallbacks(continuousScanTask);
+        if (continuous && !continuousPaused) positionHandler.postDelayed(continuousScanTask, scanInterval);
+    }
+
+    /**
+     * Blend GPS fixes and WiFi positions instead of switching between them: every position goes into a
+     * PositionFilter, weighted by its radius, and the listener receives the filtered position at a fixed rate
+     * instead of the single positions. The WiFi scans are resolved even when a GPS fix is available
+     * @param filter the filter, e.g. a new PositionFilter()
+     * @param emitIntervalMillis time between two positions sent to the listener
+     */
+    public void startFusion(PositionFilter filter, long emitIntervalMillis)
+    {
+        if (filter==null) throw new IllegalArgumentException("filter can't be null");
+        if (emitIntervalMillis<=0) throw new IllegalArgumentException("emitIntervalMillis must be positive");
+        fusion=filter;
+        fusionInterval=emitIntervalMillis;
+        positionHandler.removeCallbacks(fusionTask);
+        positionHandler.postDelayed(fusionTask, fusionInterval);
+    }
+
+    /**
+     * Stop the fusion started with startFusion(), the positions are sent to the listener as they come again
+     */
+    public void stopFusion()
+    {
+        fusion=null;
+        positionHandler.removeCallbacks(fusionTask);
+    }
+
+    private final Runnable fusionTask = new Runnable() {
+        @Override
+        public void run() {
+            if (fusion==null) return;
+            if (fusion.estimate(SystemClock.elapsedRealtime(), fusionEstimate))
+                sendPosition(fusionEstimate[PositionSolver.LAT], fusionEstimate[PositionSolver.LON],
+                        (float) fusionEstimate[PositionSolver.RADIUS], (short) 0);
+            positionHandler.postDelayed(fusionTask, fusionInterval);
+        }
+    };
+
+    /**
+     * Reuse the position of the last resolved scan, without asking the server, for the following scans whose
+     * networks are similar enough. The networks are weighted by their signal strength, so that weak ones
+     * appearing or disappearing don't count much. The position moves towards the new networks that are known
+     * to the local database
+     * @param minSimilarity minimum weighted Jaccard index between the scans in (0,1], 0 to resolve every scan
+     * @param maxAgeMillis how long the position of a resolved scan can be reused
+     */
+    public void setIncrementalScans(float minSimilarity, long maxAgeMillis)
+    {
+        scanDiff=minSimilarity>0 ? new ScanDiff(minSimilarity, maxAgeMillis) : null;
+    }
+
+    /**
+     * Choose which access points of the scans are sent, and how many. By default the 16 strongest ones
+     * @param selector the policy and the capacity of the requests, see ApSelector
+     */
+    public void setApSelector(ApSelector selector)
+    {
+        if (selector==null) throw new IllegalArgumentException("selector can't be null");
+        apSelector=selector;
+    }
+
+    /**
+     * Send a single BSSID for each physical access point, the strongest one, instead of all the BSSIDs it
+     * advertises for its radios and SSIDs, so that the request holds as many different places as possible.
+     * Enabled by default
+     * @param groupDevices false to send the strongest BSSIDs, whatever their access point
+     */
+    public void setGroupDevices(boolean groupDevices)
+    {
+        this.groupDevices=groupDevices;
+    }
+
+    /**
+     * @return a copy of the information about the last scan, changing it has no effect on WLocate.
+     * The networks of wifiScanResult are sorted from the strongest to the weakest
+     */
     public loc_info last_location_info()
    {
-      return locationInfo;
+      LocationState current=state.get();
+      loc_info info=new loc_info();
+      info.lastLocMethod=current.getLastMethod();
+      info.lastSpeed=current.getLastSpeed();
+      if (current.getRequest()!=null) info.requestData=current.getRequest().copy();
+      @SuppressWarnings("unchecked")
+      List<ScanResult> results=(List<ScanResult>)current.getScanResults();
+      if (results!=null) {
+         info.wifiScanResult=new ArrayList<ScanResult>(results);
+         Collections.sort(info.wifiScanResult, STRONGER_SIGNAL_FIRST);
+      }
+      return info;
    }
 
+    private static final Comparator<ScanResult> STRONGER_SIGNAL_FIRST=new Comparator<ScanResult>() {
+        @Override
+        public int compare(ScanResult lhs, ScanResult rhs) {
+            //if level is higher then should be on top -> order is reversed
+            return lhs.level<rhs.level ? 1 : lhs.level==rhs.level ? 0 : -1;
+        }
+    };
+
+    /**
+     * @return the last GPS fix and scan, as a consistent snapshot that can be read from any thread
+     */
+    public LocationState getLocationState()
+    {
+        return state.get();
+    }
+
     /**
      *
      * @param request the request data
@@ -344,45 +731,197 @@ public class WLocate
      */
    private int get_position(wloc_req request)
    {
-       StringBuilder sb=new StringBuilder();
-       Handler mhandler = new PositionHandler(new WeakReference<WLocate>(this));
-       Messenger messenger = new Messenger(mhandler);
-       for (int i=0; i<wloc_req.WLOC_MAX_NETWORKS; i++)
-       if ((request.bssids[i]!=null) && (request.bssids[i].length()>0)) {
-           sb.append(request.bssids[i]);
-           sb.append("\r\n");
+       if (scanDiff!=null) {
+           WlocPosition reused=scanDiff.reuse(request, apStore, SystemClock.elapsedRealtime());
+           if (reused!=null) {
+               returnPosition(reused);
+               return 0;
+           }
+       }
+       if (positionCache!=null) {
+           WlocPosition cached=positionCache.get(request, SystemClock.elapsedRealtime());
+           WlocMetrics.get().recordCacheLookup(cached!=null);
+           if (cached!=null) {
+               returnResolvedPosition(request, cached);
+               return 0;
+           }
        }
-       if (netThread==null || !(netThread.isAlive())){
-       Runnable runnable = new DatabaseRequester(locatorURL+"getpos.php", sb.toString(), messenger);
-       netThread = new Thread(runnable);
-       netThread.start();
+       if ((scanFlags & FLAG_NO_NET_ACCESS)!=0) {
+           WlocPosition local=apStore!=null ? apStore.locate(request, positionSolver) : null;
+           if (local==null) return NO_LOCAL_POSITION;
+           returnResolvedPosition(request, local);
            return 0;
        }
-       else return THREAD_ALREADY_RUNNING;
+       // share the result of a similar lookup that another instance (or this one) is already doing
+       LocationCoordinator<WLocate> coordinator=LocationCoordinator.get();
+       long now=SystemClock.elapsedRealtime();
+       if (coordinator.join(request, this, now)) {
+           // in case the lookup never completes
+           positionHandler.removeCallbacks(expireLookupsTask);
+           positionHandler.postDelayed(expireLookupsTask, LocationCoordinator.LOOKUP_TIMEOUT_MILLIS+1);
+           return 0;
+       }
+       coordinator.begin(request, now);
+       if (pendingScans.getBatchSize()==1) {
+           startRequester(new ScanBatch(request));
+           return 0;
+       }
+       if (pendingScans.isEmpty()) positionHandler.postDelayed(flushScansTask, pendingScans.getLingerMillis());
+       wloc_req dropped=pendingScans.add(request, now);
+       if (dropped!=null) // the lookups that joined it get an error
+           deliverError(coordinator.complete(dropped), IO_ERROR);
+       if (pendingScans.isFull()) flushScans();
+       return 0;
    }
 
+    private final Runnable expireLookupsTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverError(LocationCoordinator.get().expire(SystemClock.elapsedRealtime()), IO_ERROR);
+        }
+    };
+
+    /**
+     * @param waiting the instances waiting for lookups that won't complete
+     * @param error the error they get
+     */
+    private static void deliverError(List<WLocate> waiting, int error) {
+        for (WLocate wlocate : waiting) wlocate.deliverResult(null, error, null);
+    }
+
+    private final Runnable flushScansTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScans();
+        }
+    };
+
+    /**
+     * Send a batch of the queued scans, if no request is running
+     */
+    private void flushScans() {
+        if (pendingScans.isEmpty() || isRequestRunning()) return;
+        positionHandler.removeCallbacks(flushScansTask);
+        startRequester(pendingScans.take(SystemClock.elapsedRealtime()));
+        // the scans left for the next batch wait again
+        if (!pendingScans.isEmpty()) positionHandler.postDelayed(flushScansTask, pendingScans.getLingerMillis());
+    }
+
+    /**
+     * Queue a batch on the shared worker pool. A previous batch that is still waiting for a worker has been
+     * superseded by this one and is cancelled, one that is already running is left to complete.
+     * @param batch the scans to send
+     */
+    private void startRequester(ScanBatch batch) {
+        if (netTask!=null && !netTask.isDone() && !netRequester.isStarted() && netTask.cancel(false)) {
+            // superseded, the lookups that joined it get an error
+            for (wloc_req request : netBatch.requests)
+                deliverError(LocationCoordinator.get().complete(request), IO_ERROR);
+        }
+        netRequester = new DatabaseRequester(locatorServers, batch, messenger, apStore, positionSolver,
+                binaryProtocol, localFirstMinAps, apSelector);
+        netTask = RequestExecutor.submit(netRequester);
+        netBatch = batch;
+    }
+
+    /**
+     * @return true if the last batch is still waiting for a worker or running
+     */
+    private boolean isRequestRunning() {
+        // netBatch is cleared by onBatchDone(), the task itself may not be done yet at that time
+        return netBatch!=null && !netTask.isCancelled();
+    }
+
+    /**
+     * Called on the main thread when the requester is done with a batch
+     * @param batch the batch, with its results
+     */
+    private void onBatchDone(ScanBatch batch) {
+        if (batch==netBatch) netBatch=null;
+        for (int i=0; i<batch.size(); i++) {
+            deliverResult(batch.requests[i], batch.results[i], batch.positions[i]);
+            for (WLocate waiting : LocationCoordinator.get().complete(batch.requests[i]))
+                waiting.deliverResult(batch.requests[i], batch.results[i], batch.positions[i]);
+        }
+        // scans queued while the requester was running
+        if (pendingScans.isDue(SystemClock.elapsedRealtime())) flushScans();
+    }
+
+    /**
+     * Deliver the result of a lookup, done by this instance or by another one this instance joined
+     * @param request the request that was sent
+     * @param result WLOC_OK or the error code
+     * @param position the position, only when the result is WLOC_OK
+     */
+    void deliverResult(wloc_req request, int result, WlocPosition position) {
+        if (result==WLOC_OK) {
+            if (positionCache!=null)
+                positionCache.put(request, position, SystemClock.elapsedRealtime());
+            if (tilePrefetcher!=null) tilePrefetcher.prefetch(position.getLatitude(), position.getLongitude());
+            returnResolvedPosition(request, position);
+        }
+        else sendLocationError(result);
+    }
+
+    /**
+     * Send the position of a scan that has been resolved, and remember it for the following scans
+     * @param request the scan
+     * @param position its position
+     */
+    private void returnResolvedPosition(wloc_req request, WlocPosition position) {
+        if (scanDiff!=null) scanDiff.resolved(request, position, SystemClock.elapsedRealtime());
+        returnPosition(position);
+    }
+
     /**
      * Send the location back to the calling class
      * @param latitude the position latitude
      * @param longitude the position longitude
      * @param radius the position radius of uncertainty
      *               can be quite random, as it isn't very clear on how it obtained
+     * @param ccode the country code, 0 if it's not known
      */
-    private void returnPosition(double latitude, double longitude, float radius) {
+    private void returnPosition(double latitude, double longitude, float radius, short ccode) {
+        if (fusion!=null) {
+            // sent by fusionTask
+            fusion.update(latitude, longitude, radius, SystemClock.elapsedRealtime());
+            return;
+        }
+        sendPosition(latitude, longitude, radius, ccode);
+    }
+
+    private void sendPosition(double latitude, double longitude, float radius, short ccode) {
+        if (ccode==0 && countryLocator!=null && (wLocListener==null || publisher.hasSubscribers()))
+            ccode=countryLocator.locate(latitude, longitude);
+        publisher.publish(new PositionUpdate(WLOC_OK, latitude, longitude, radius, ccode, SystemClock.elapsedRealtime()));
         if(wLocListener!=null)
         wLocListener.onLocationReceived(latitude,longitude,radius);
         else {
             //fallback on previous methods
-        wloc_return_position(WLOC_OK,latitude,longitude,radius,(short)0);
-        wloc_return_position(WLOC_OK,latitude,longitude,radius,(short)0,m_cog);
+        wloc_return_position(WLOC_OK,latitude,longitude,radius,ccode);
+        wloc_return_position(WLOC_OK,latitude,longitude,radius,ccode,state.get().getGpsCourse());
         }
     }
 
+    /**
+     * Send a position received from the server (or from the cache) back to the calling class
+     * @param position the position, its quality is turned into the radius if it wasn't evaluated locally
+     */
+    private void returnPosition(WlocPosition position) {
+        WlocMetrics.get().recordResult(WLOC_OK);
+        state.located(LocationState.METHOD_WLOCATE, -1);
+        returnPosition(position.getLatitude(), position.getLongitude(), position.getRadius(), position.getCountryCode());
+    }
+
     /**
      * Inform the location-awaiting class that some error happened
      * @param errorcode the code error
      */
     private void sendLocationError(int errorcode) {
+        // in continuous mode the next scan has to be resolved even if it's unchanged
+        lastResolvedCount=-1;
+        WlocMetrics.get().recordResult(errorcode);
+        publisher.publish(PositionUpdate.error(errorcode, SystemClock.elapsedRealtime()));
         if(wLocListener!=null)
             wLocListener.onLocationError(errorcode);
     }
@@ -397,76 +936,88 @@ public class WLocate
             this.wLocateWeakReference=WeakReference;
         }
         WeakReference<WLocate> wLocateWeakReference;
-        WlocPosition position;
         @Override
         public void handleMessage(Message msg) {
-            if(msg.what==WLOC_OK){
-                position=(WlocPosition)msg.obj;
-                wLocateWeakReference.get().returnPosition(position.lat,position.lon,120-position.quality);
+            WLocate wLocate=wLocateWeakReference.get();
+            if (wLocate==null) return;
+            if(msg.what==BATCH_DONE) {
+                ScanBatch batch=(ScanBatch)msg.obj;
+                WlocMetrics.get().record(WlocMetrics.STAGE_DELIVERY, batch.sentNanos);
+                wLocate.onBatchDone(batch);
             }
-           else if(msg.what<5 && msg.what>0)
-
-                wLocateWeakReference.get().sendLocationError(msg.what);
         }
     }
    
    class WifiReceiver extends BroadcastReceiver 
    {
+      private final ScanBuffer scanBuffer=new ScanBuffer();
+
       public void onReceive(Context c, Intent intent) 
       {
-         int           netCnt=0;
-          //Comparator to compare the signal strengths
-          Comparator<ScanResult> strongerSignalComp = new Comparator<ScanResult>() {
-              @Override
-              public int compare(ScanResult lhs, ScanResult rhs) {
-                  //if level is higher then should be on top -> order is reversed
-                  if(lhs.level < rhs.level) return 1;
-                  else if(lhs.level==rhs.level) return 0;
-                  else return -1;
-              }
-          };
-
-         if (!scanStarted) return;
-         scanStarted=false;
+         LocationCoordinator.get().scanResultsAvailable();
+         // only the results of a scan started by this instance, once
+         if (!state.takeScan()) return;
+         long start=WlocMetrics.get().record(WlocMetrics.STAGE_SCAN, scanStartNanos);
+         try
+         {
+            processScan();
+         }
+         finally
+         {
+            WlocMetrics.get().record(WlocMetrics.STAGE_RECEIVE, start);
+         }
+      }
+
+      /**
+       * Pair the scan with the GPS fix taken at the same time, for the ApLearner
+       * @param fix the last GPS fix
+       */
+      private void learnAps(LocationState fix)
+      {
+         ApLearner learner=apLearner;
+         if (learner==null) return;
+         long age=SystemClock.elapsedRealtime()-fix.getGpsFixMillis();
+         if (age>MAX_LEARN_FIX_AGE_MILLIS || fix.getGpsRadius()<0) return;
+         // how far the device may have moved since the fix
+         float radius=fix.getGpsRadius()+(fix.getGpsSpeed()>0 ? fix.getGpsSpeed()*age/1000f : 0);
+         learner.learn(scanBuffer, fix.getGpsLatitude(), fix.getGpsLongitude(), radius);
+      }
+
+      private void processScan()
+      {
          List<ScanResult> configs= wifiMgr.getScanResults();
          if (configs==null) return;
-          //Testing ordering list by stronger signal
-          Collections.sort(configs,strongerSignalComp);
-          locationInfo.wifiScanResult=configs;
-         locationInfo.requestData=new wloc_req();
-
-
-
-         if (configs.size()>0) for (ScanResult config : configs) 
-         {            
-            config.BSSID=config.BSSID.toUpperCase(Locale.US).replace(".",""); // some strange devices use a dot instead of :
-            config.BSSID=config.BSSID.toUpperCase(Locale.US).replace(":",""); // some strange devices use a dot instead of :
-            if (config.BSSID.equalsIgnoreCase("000000000000")) continue; // invalid BSSID
-            locationInfo.requestData.bssids[netCnt]=config.BSSID;
-            locationInfo.requestData.signal[netCnt]=(byte)Math.abs(config.level);               
-            Log.d("LocDemo wifiScan", "Current network RSSI: "+config.level);
-            netCnt++;
-            if (netCnt>=wloc_req.WLOC_MAX_NETWORKS) break;   
+         // parse the BSSIDs into MACs and keep only the best networks, without garbage for each network
+         scanBuffer.clear();
+         for (int i=0; i<configs.size(); i++)
+         {
+            ScanResult config=configs.get(i);
+            scanBuffer.add(config.BSSID, config.level);
          }
-
-         locationInfo.lastLocMethod=loc_info.LOC_METHOD_NONE;
-         locationInfo.lastSpeed=-1.0f;
+         // on the clock of PositionResolver, which tells the selector about the misses
+         wloc_req request=apSelector.select(scanBuffer, groupDevices, apStore, System.nanoTime()/1000000);
+         state.scanReceived(request, configs);
           /**
            * The library checks if a  GPS Location is available before sending the wlocation request
            *
            */
-          if (GPSAvailable  && gpsLocationWanted) GPSAvailable=(SystemClock.elapsedRealtime()-lastLocationMillis) < 7500;
-          if(GPSAvailable && gpsLocationWanted){
-              returnPosition(m_lat,m_lon,m_radius);
+          LocationState current=gpsLocationWanted ? state.expireGps(SystemClock.elapsedRealtime(), 7500) : state.get();
+          if(current.isGpsAvailable() && gpsLocationWanted) learnAps(current);
+          if(current.isGpsAvailable() && gpsLocationWanted && fusion==null){
+              state.located(LocationState.METHOD_GPS,
+                      current.getGpsSpeed()>=0 ? current.getGpsSpeed()*3.6f : -1);
+              returnPosition(current.getGpsLatitude(),current.getGpsLongitude(),current.getGpsRadius(),(short)0);
+              if (continuous) scheduleContinuousScan();
               return;
           }
           /**
            * If there is none, use wifi
            */
-          if(configs.size()>0){
-              int errcode = get_position(locationInfo.requestData);
+          if(scanBuffer.size()>0 && (!continuous || continuousScanChanged(request))){
+              int errcode = get_position(request);
               if (errcode!=0) sendLocationError(errcode);
           }
+          if (continuous) scheduleContinuousScan();
 
           //todo separate GPS and WLAN positioning methods, so that one can choose the preferred method
       }
@@ -533,269 +1084,27 @@ public class WLocate
     */
    public String wloc_get_country_from_code(short ccode)
    {
-      switch (ccode)
-      {
-         case 1:
-            return "DE";
-         case 2:
-            return "AT";
-         case 3:
-            return "CH";
-         case 4:
-            return "NL";
-         case 5:
-            return "BE";
-         case 6:
-            return "LU";
-         case 7:
-            return "NO";
-         case 8:
-            return "SE";
-         case 9:
-            return "DK";
-         case 10:
-            return "AF";
-         case 12:
-            return "AL";
-         case 13:
-            return "DZ";
-         case 17:
-            return "AN";
-         case 18:
-            return "AG";
-         case 19:
-            return "AR";
-         case 20:
-            return "AM";
-         case 21:
-            return "AU";
-         case 23:
-            return "BS";
-         case 24:
-            return "BH";
-         case 25:
-            return "BD";
-         case 26:
-            return "BB";
-         case 27:
-            return "BY";
-         case 28:
-            return "BZ";
-         case 29:
-            return "BJ";
-         case 30:
-            return "BM";
-         case 32:
-            return "BO";
-         case 33:
-            return "BA";
-         case 36:
-            return "BR";
-         case 37:
-            return "BN";
-         case 38:
-            return "BG";
-         case 43:
-            return "CA";
-         case 44:
-            return "CV";
-         case 47:
-            return "CL";
-         case 48:
-            return "CN";
-         case 49:
-            return "CO";
-         case 52:
-            return "CR";
-         case 53:
-            return "HR";
-         case 55:
-            return "CY";
-         case 56:
-            return "CZ";
-         case 59:
-            return "DO";
-         case 60:
-            return "EC";
-         case 61:
-            return "EG";
-         case 66:
-            return "ET";
-         case 68:
-            return "FI";
-         case 69:
-            return "FR";
-         case 73:
-            return "GH";
-         case 75:
-            return "GR";
-         case 76:
-            return "GL";
-         case 77:
-            return "GD";
-         case 78:
-            return "GU";
-         case 79:
-            return "GT";
-         case 82:
-            return "HT";
-         case 83:
-            return "HN";
-         case 84:
-            return "HK";
-         case 85:
-            return "HU";
-         case 86:
-            return "IS";
-         case 87:
-            return "IN";
-         case 88:
-            return "ID";
-         case 89:
-            return "IR";
-         case 90:
-            return "IQ";
-         case 91:
-            return "IE";
-         case 93:
-            return "IT";
-         case 94:
-            return "JM";
-         case 95:
-            return "JP";
-         case 97:
-            return "JO";
-         case 98:
-            return "KZ";
-         case 99:
-            return "KE";
-         case 102:
-            return "KR";
-         case 103:
-            return "KW";
-         case 104:
-            return "KG";
-         case 105:
-            return "LA";
-         case 106:
-            return "LV";
-         case 107:
-            return "LB";
-         case 108:
-            return "LS";
-         case 111:
-            return "LT";
-         case 115:
-            return "MY";
-         case 116:
-            return "MV";
-         case 118:
-            return "MT";
-         case 119:
-            return "MQ";
-         case 121:
-            return "MU";
-         case 123:
-            return "MX";
-         case 124:
-            return "MC";
-         case 125:
-            return "MN";
-         case 126:
-            return "MA";
-         case 127:
-            return "MZ";
-         case 131:
-            return "NZ";
-         case 133:
-            return "NI";
-         case 135:
-            return "NG";
-         case 137:
-            return "OM";
-         case 138:
-            return "PK";
-         case 141:
-            return "PA";
-         case 142:
-            return "PY";
-         case 144:
-            return "PE";
-         case 145:
-            return "PH";
-         case 147:
-            return "PL";
-         case 148:
-            return "PT";
-         case 149:
-            return "PR";
-         case 150:
-            return "QA";
-         case 151:
-            return "RO";
-         case 152:
-            return "RU";
-         case 155:
-            return "SM";
-         case 157:
-            return "SA";
-         case 158:
-            return "SN";
-         case 161:
-            return "SG";
-         case 162:
-            return "SK";
-         case 163:
-            return "SI";
-         case 166:
-            return "ZA";
-         case 167:
-            return "ES";
-         case 168:
-            return "LK";
-         case 169:
-            return "SD";
-         case 170:
-            return "SR";
-         case 172:
-            return "SY";
-         case 173:
-            return "TW";
-         case 174:
-            return "TJ";
-         case 175:
-            return "TZ";
-         case 176:
-            return "TH";
-         case 179:
-            return "TT";
-         case 180:
-            return "TN";
-         case 181:
-            return "TR";
-         case 182:
-            return "TM";
-         case 185:
-            return "UA";
-         case 186:
-            return "AE";
-         case 187:
-            return "UK";
-         case 188:
-            return "US";
-         case 189:
-            return "UY";
-         case 191:
-            return "VE";
-         case 192:
-            return "VN";
-         case 195:
-            return "ZM";
-         case 196:
-            return "ZW";
-         default:
-            return "";
-      }
+      return WlocCountry.fromCode(ccode);
+   }
+
+   /**
+    * Convert a short text that specifies a country, as returned by wloc_get_country_from_code(), to its code.
+    * @param country the two letter name of the country
+    * @return the country code, 0 if the country is not known
+    */
+   public short wloc_get_code_from_country(String country)
+   {
+      return WlocCountry.toCode(country);
+   }
+
+   /**
+    * Find the country of the positions locally when it's not known, e.g. for GPS fixes or positions
+    * evaluated from the local database, so that wloc_return_position() receives it
+    * @param locator the borders of the countries, see CountryLocator.read(). Null to leave the country unknown
+    */
+   public void setCountryLocator(CountryLocator locator)
+   {
+      countryLocator=locator;
    }
 
    
@@ -808,17 +1117,18 @@ public class WLocate
          switch (event) 
          {
             case GpsStatus.GPS_EVENT_SATELLITE_STATUS:
-               if (lastLocation != null)
+               LocationState current=state.get();
+               if (current.getGpsFixMillis()!=0)
                {
-                  GPSAvailable=(SystemClock.elapsedRealtime()-lastLocationMillis) < 3500;
+                  state.gpsAvailable((SystemClock.elapsedRealtime()-current.getGpsFixMillis()) < 3500);
                }
                break;
             case GpsStatus.GPS_EVENT_FIRST_FIX:
                // Do something.
-               GPSAvailable=true;
+               state.gpsAvailable(true);
                break;
             case GpsStatus.GPS_EVENT_STOPPED:
-               GPSAvailable=false;
+               state.gpsAvailable(false);
                break;
          }
       }
@@ -830,23 +1140,20 @@ public class WLocate
       public void onLocationChanged(Location gLocation) 
       {
          if (location == null) return;
-         lastLocationMillis = SystemClock.elapsedRealtime();
-         lastLocation =new Location(gLocation);         
-//         GPSAvailable=true;
-         m_lat=gLocation.getLatitude();
-         m_lon=gLocation.getLongitude();
-         m_cog=gLocation.getBearing(); // course over ground/orientation
-         if (gLocation.hasSpeed()) m_speed=gLocation.getSpeed(); //m/sec
-         else m_speed=-1;
-         if (gLocation.hasAccuracy()) m_radius=gLocation.getAccuracy();
-         else m_radius=-1;
+         long now=SystemClock.elapsedRealtime();
+         float speed=gLocation.hasSpeed() ? gLocation.getSpeed() : -1; //m/sec
+         float radius=gLocation.hasAccuracy() ? gLocation.getAccuracy() : -1;
+         // the whole fix is published at once, so that no reader sees the latitude of a fix with the longitude of another
+         state.gpsFix(gLocation.getLatitude(), gLocation.getLongitude(), radius, speed,
+                 gLocation.getBearing(), now); // bearing is the course over ground/orientation
+         if (fusion!=null) fusion.update(gLocation.getLatitude(), gLocation.getLongitude(), radius, now);
       }
 
       public void onStatusChanged(String provider, int status, Bundle extras)
       {
          if ((provider!=null) && (provider.equalsIgnoreCase(LocationManager.GPS_PROVIDER)))
          {
-            if (status!=LocationProvider.AVAILABLE) GPSAvailable=false;
+            if (status!=LocationProvider.AVAILABLE) state.gpsAvailable(false);
          }
       }
 
@@ -856,7 +1163,7 @@ public class WLocate
 
       public void onProviderDisabled(String provider)
       {
-         GPSAvailable=false;
+         state.gpsAvailable(false);
       }
    };
    
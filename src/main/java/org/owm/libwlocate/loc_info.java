@@ -24,9 +24,9 @@ import android.net.wifi.ScanResult;
 
 public class loc_info
 {
-   public static final int LOC_METHOD_NONE=0;
-   public static final int LOC_METHOD_LIBWLOCATE=1;
-   public static final int LOC_METHOD_GPS=2;
+   public static final int LOC_METHOD_NONE=LocationState.METHOD_NONE;
+   public static final int LOC_METHOD_LIBWLOCATE=LocationState.METHOD_WLOCATE;
+   public static final int LOC_METHOD_GPS=LocationState.METHOD_GPS;
    
    /** describes based on which method the last location was performed with */
    public int lastLocMethod=LOC_METHOD_NONE;
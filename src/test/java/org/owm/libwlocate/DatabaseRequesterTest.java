@@ -0,0 +1,39 @@
+package org.owm.libwlocate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DatabaseRequesterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void batchIsHandedBackWhenTheResolverThrows() throws Exception {
+        wloc_req broken = new wloc_req();
+        broken.bssids = null;
+        ScanBatch batch = new ScanBatch(broken, new wloc_req());
+        final AtomicInteger sent = new AtomicInteger();
+        ApStore store = ApStore.open(new File(folder.getRoot(), "aps.db"));
+        LocatorPool servers = new LocatorPool(new URL("http://127.0.0.1:1/getpos.php"));
+        // the local database is looked at first, and can't handle the broken request
+        DatabaseRequester requester = new DatabaseRequester(servers, batch, null, store,
+                new WeightedCentroidSolver(), false, 1, null) {
+            @Override
+            void sendBatch() {
+                sent.incrementAndGet();
+            }
+        };
+        requester.run();
+        assertEquals(1, sent.get());
+        assertEquals(ResultCode.IO_ERROR, batch.results[0]);
+        assertEquals(ResultCode.IO_ERROR, batch.results[1]);
+        assertNull(batch.positions[0]);
+    }
+}
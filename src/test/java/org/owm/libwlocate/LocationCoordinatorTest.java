@@ -0,0 +1,57 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationCoordinatorTest {
+    private static wloc_req request(int first, int count) {
+        wloc_req req = new wloc_req();
+        for (int i = 0; i < count; i++) req.bssids[i] = String.format("0011223344%02x", first + i);
+        return req;
+    }
+
+    @Test
+    public void similarLookupJoinsAndGetsTheResult() {
+        LocationCoordinator<String> coordinator = new LocationCoordinator<String>();
+        wloc_req sent = request(0, 10);
+        assertFalse(coordinator.join(sent, "first", 0));
+        coordinator.begin(sent, 0);
+        assertTrue(coordinator.join(request(0, 9), "second", 100));
+        assertFalse(coordinator.join(request(5, 10), "third", 100));
+        List<String> waiting = coordinator.complete(sent);
+        assertEquals(1, waiting.size());
+        assertEquals("second", waiting.get(0));
+        assertTrue(coordinator.complete(sent).isEmpty());
+    }
+
+    @Test
+    public void expiredLookupHandsBackItsWaiters() {
+        LocationCoordinator<String> coordinator = new LocationCoordinator<String>();
+        wloc_req sent = request(0, 10), recent = request(32, 10);
+        coordinator.begin(sent, 0);
+        coordinator.begin(recent, 20000);
+        assertTrue(coordinator.join(request(0, 10), "waiter", 1000));
+        assertTrue(coordinator.join(request(32, 10), "other", 21000));
+        // an expired lookup can't be joined anymore
+        long late = LocationCoordinator.LOOKUP_TIMEOUT_MILLIS + 1;
+        assertFalse(coordinator.join(request(0, 10), "late", late));
+        List<String> expired = coordinator.expire(late);
+        assertEquals(1, expired.size());
+        assertEquals("waiter", expired.get(0));
+        assertTrue(coordinator.complete(sent).isEmpty());
+        assertEquals("other", coordinator.complete(recent).get(0));
+    }
+
+    @Test
+    public void scanIsNotStartedTwice() {
+        LocationCoordinator<String> coordinator = new LocationCoordinator<String>();
+        assertTrue(coordinator.requestScan(0));
+        assertFalse(coordinator.requestScan(1000));
+        coordinator.scanResultsAvailable();
+        assertTrue(coordinator.requestScan(2000));
+        assertTrue(coordinator.requestScan(2000 + LocationCoordinator.SCAN_COALESCE_MILLIS));
+    }
+}
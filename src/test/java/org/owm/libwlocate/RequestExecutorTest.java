@@ -0,0 +1,74 @@
+package org.owm.libwlocate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RequestExecutorTest {
+    static class Request implements RequestExecutor.Droppable {
+        final CountDownLatch release;
+        final AtomicInteger runs = new AtomicInteger(), drops = new AtomicInteger();
+
+        Request(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void dropped() {
+            drops.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void theOldestWaitingRequestIsDroppedAndToldSo() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Request> requests = new ArrayList<Request>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            // the workers are busy, then the queue is filled
+            for (int i = 0; i < RequestExecutor.THREADS + RequestExecutor.QUEUE_SIZE + 1; i++) {
+                Request request = new Request(release);
+                requests.add(request);
+                futures.add(RequestExecutor.submit(request));
+                if (i < RequestExecutor.THREADS) {
+                    long end = System.currentTimeMillis() + 5000;
+                    while (request.runs.get() == 0 && System.currentTimeMillis() < end) Thread.sleep(10);
+                }
+            }
+            // cancelled by its owner, it's not dropped
+            futures.get(RequestExecutor.THREADS + 1).cancel(false);
+        } finally {
+            release.countDown();
+        }
+        for (Future<?> future : futures) {
+            if (!future.isCancelled()) future.get(5, TimeUnit.SECONDS);
+        }
+        Request oldest = requests.get(RequestExecutor.THREADS);
+        assertEquals(1, oldest.drops.get());
+        assertEquals(0, oldest.runs.get());
+        assertTrue(futures.get(RequestExecutor.THREADS).isCancelled());
+        assertEquals(0, requests.get(RequestExecutor.THREADS + 1).drops.get());
+        assertEquals(0, requests.get(RequestExecutor.THREADS + 1).runs.get());
+        for (int i = RequestExecutor.THREADS + 2; i < requests.size(); i++) {
+            assertEquals(1, requests.get(i).runs.get());
+            assertEquals(0, requests.get(i).drops.get());
+        }
+    }
+}